@@ -115,6 +115,88 @@ public class Coff {
 		return sections[sectionNumber];
 	}
 
+	/**
+	 * Return the number of pages the sections span, from page 0.
+	 * 
+	 * @return one past the last virtual page used by any section.
+	 */
+	public int getNumPages() {
+		int numPages = 0;
+		for (int s = 0; s < sections.length; s++)
+			numPages = Math.max(numPages, sections[s].getFirstVPN()
+					+ sections[s].getLength());
+		return numPages;
+	}
+
+	/**
+	 * Test whether every section on a page is read-only. A page may hold the
+	 * ends of more than one section when pages are larger than the alignment
+	 * the executable was linked with.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page should never be written.
+	 */
+	public boolean isReadOnlyPage(int vpn) {
+		for (int s = 0; s < sections.length; s++)
+			if (onPage(sections[s], vpn) && !sections[s].isReadOnly())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Test whether any section on a page is initialized, so that loading it
+	 * requires a disk access rather than only zero-filling.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page holds initialized data.
+	 */
+	public boolean isInitializedPage(int vpn) {
+		for (int s = 0; s < sections.length; s++)
+			if (onPage(sections[s], vpn) && sections[s].isInitialzed())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Load a page of the executable into physical memory, whichever sections
+	 * it holds. Bytes of the page in no section are zero-filled.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @param ppn the physical page to load into.
+	 */
+	public void loadPage(int vpn, int ppn) {
+		loadPages(vpn, new int[] { ppn });
+	}
+
+	/**
+	 * Load consecutive pages of the executable into physical memory, with one
+	 * read for each section on them. Bytes of the pages in no section are
+	 * zero-filled.
+	 * 
+	 * @param vpn the virtual page number of the first page.
+	 * @param ppns the physical page to load each page into.
+	 */
+	public void loadPages(int vpn, int[] ppns) {
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+
+		byte[] buf = new byte[ppns.length * pageSize];
+		for (int s = 0; s < sections.length; s++)
+			sections[s].load(vpn * pageSize, buf, 0, buf.length);
+
+		for (int i = 0; i < ppns.length; i++) {
+			Lib.assertTrue(ppns[i] >= 0
+					&& ppns[i] < Machine.processor().getNumPhysPages());
+			System.arraycopy(buf, i * pageSize, memory, ppns[i] * pageSize,
+					pageSize);
+		}
+	}
+
+	private static boolean onPage(CoffSection section, int vpn) {
+		return vpn >= section.getFirstVPN()
+				&& vpn < section.getFirstVPN() + section.getLength();
+	}
+
 	/**
 	 * Return the program entry point. This is the value that to which the PC
 	 * register should be initialized to before running the program.
@@ -31,6 +31,7 @@ public class CoffSection {
 		this.firstVPN = firstVPN;
 
 		file = null;
+		vaddr = firstVPN * Processor.pageSize;
 		size = 0;
 		contentOffset = 0;
 		initialized = true;
@@ -59,7 +60,7 @@ public class CoffSection {
 		Lib.strictReadFile(file, headerOffset, buf, 0, headerLength);
 
 		name = Lib.bytesToString(buf, 0, 8);
-		int vaddr = Lib.bytesToInt(buf, 12);
+		vaddr = Lib.bytesToInt(buf, 12);
 		size = Lib.bytesToInt(buf, 16);
 		contentOffset = Lib.bytesToInt(buf, 20);
 		int numRelocations = Lib.bytesToUnsignedShort(buf, 32);
@@ -96,7 +97,9 @@ public class CoffSection {
 			throw new EOFException();
 		}
 
-		if (vaddr % Processor.pageSize != 0 || size < 0 || initialized
+		// sections need not start on a page: with pages larger than the
+		// alignment the executable was linked with, neighbors share pages
+		if (vaddr < 0 || size < 0 || initialized
 				&& (contentOffset < 0 || contentOffset + size > file.length())) {
 			Lib.debug(dbgCoffSection, "\tinvalid section addresses: "
 					+ "vaddr=" + vaddr + " size=" + size + " contentOffset="
@@ -104,7 +107,8 @@ public class CoffSection {
 			throw new EOFException();
 		}
 
-		numPages = Lib.divRoundUp(size, Processor.pageSize);
+		numPages = Lib.divRoundUp(vaddr % Processor.pageSize + size,
+				Processor.pageSize);
 		firstVPN = vaddr / Processor.pageSize;
 	}
 
@@ -166,34 +170,67 @@ public class CoffSection {
 	}
 
 	/**
-	 * Load a page from this segment into physical memory.
+	 * Load a page from this segment into physical memory. The bytes of the
+	 * page outside this section are zero-filled; see <tt>Coff.loadPage()</tt>
+	 * for pages shared with other sections.
 	 * 
 	 * @param spn the page number within this segment.
 	 * @param ppn the physical page to load into.
 	 */
 	public void loadPage(int spn, int ppn) {
-		Lib.assertTrue(file != null);
+		loadPages(spn, new int[] { ppn });
+	}
 
-		Lib.assertTrue(spn >= 0 && spn < numPages);
-		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+	/**
+	 * Load consecutive pages from this segment into physical memory, with a
+	 * single read of the executable. As with <tt>loadPage()</tt>, bytes
+	 * outside this section are zero-filled.
+	 *
+	 * @param spn the page number within this segment of the first page.
+	 * @param ppns the physical page to load each page into.
+	 */
+	public void loadPages(int spn, int[] ppns) {
+		Lib.assertTrue(spn >= 0 && spn + ppns.length <= numPages);
 
 		int pageSize = Processor.pageSize;
 		byte[] memory = Machine.processor().getMemory();
-		int paddr = ppn * pageSize;
-		int faddr = contentOffset + spn * pageSize;
-		int initlen;
-
-		if (!initialized)
-			initlen = 0;
-		else if (spn == numPages - 1)
-			initlen = size % pageSize;
-		else
-			initlen = pageSize;
 
-		if (initlen > 0)
-			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+		byte[] buf = new byte[ppns.length * pageSize];
+		load((firstVPN + spn) * pageSize, buf, 0, buf.length);
+
+		for (int i = 0; i < ppns.length; i++) {
+			Lib.assertTrue(ppns[i] >= 0
+					&& ppns[i] < Machine.processor().getNumPhysPages());
+			System.arraycopy(buf, i * pageSize, memory, ppns[i] * pageSize,
+					pageSize);
+		}
+	}
+
+	/**
+	 * Copy the part of this section in a range of virtual memory into a
+	 * buffer holding the range, with one read of the executable. The
+	 * uninitialized part is zero-filled; bytes of the range outside the
+	 * section are left alone.
+	 *
+	 * @param start the first virtual address of the range.
+	 * @param buf the buffer.
+	 * @param offset where the range starts in the buffer.
+	 * @param length the length of the range.
+	 */
+	void load(int start, byte[] buf, int offset, int length) {
+		Lib.assertTrue(file != null);
+
+		int first = Math.max(start, vaddr);
+		int end = Math.min(start + length, vaddr + size);
+		if (first >= end)
+			return;
 
-		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		if (initialized)
+			Lib.strictReadFile(file, contentOffset + first - vaddr, buf,
+					offset + first - start, end - first);
+		else
+			Arrays.fill(buf, offset + first - start, offset + end - start,
+					(byte) 0);
 	}
 
 	/** The COFF object to which this section belongs. */
@@ -219,7 +256,7 @@ public class CoffSection {
 
 	private OpenFile file;
 
-	private int contentOffset, size;
+	private int vaddr, contentOffset, size;
 
 	/** The length of a COFF section header. */
 	public static final int headerLength = 40;
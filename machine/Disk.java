@@ -0,0 +1,247 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A simulated disk of fixed-size sectors, stored in a host image file that is
+ * mapped into memory, so the disk keeps its contents from one run of Nachos
+ * to the next. Like the console, the disk works on one request at a time and
+ * signals its completion with an interrupt.
+ *
+ * <p>
+ * A request takes the time to seek the head to the sector's track, to wait
+ * for the sector to rotate under the head, and to transfer it. A seek costs
+ * a settling time plus a time proportional to the distance, up to about
+ * <tt>Stats.SeekTime</tt> across the whole disk; one rotation takes
+ * <tt>Stats.RotationTime</tt>, and the platter turns at a steady rate with
+ * simulated time, so the rotational delay depends on when the request is
+ * made.
+ *
+ * <p>
+ * <tt>Disk.imageFile</tt> names the image file, <tt>Disk.numSectors</tt> the
+ * size of the disk, and <tt>Disk.sectorsPerTrack</tt> its geometry.
+ */
+public final class Disk {
+	/** The size of a sector, in bytes. */
+	public static final int sectorSize = 512;
+
+	/**
+	 * Allocate a new disk, creating or extending its image file as needed.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	public Disk(Privilege privilege) {
+		System.out.print(" disk");
+
+		this.privilege = privilege;
+
+		numSectors = Config.getInteger("Disk.numSectors", 4096);
+		sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+		final String imageName = Config.getString("Disk.imageFile", "nachos.disk");
+		Lib.assertTrue(numSectors > 0 && sectorsPerTrack > 0
+				&& numSectors % sectorsPerTrack == 0,
+				"Disk.numSectors must be a multiple of Disk.sectorsPerTrack");
+
+		numTracks = numSectors / sectorsPerTrack;
+		sectorTime = Math.max(1, Stats.RotationTime / sectorsPerTrack);
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					RandomAccessFile file = new RandomAccessFile(new File(
+							imageName), "rw");
+					long size = (long) numSectors * sectorSize;
+					if (file.length() < size)
+						file.setLength(size);
+					image = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+							0, size);
+					file.close();
+				}
+				catch (IOException e) {
+					image = null;
+				}
+			}
+		});
+		Lib.assertTrue(image != null, "cannot map disk image " + imageName);
+
+		completion = new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		};
+	}
+
+	/**
+	 * Set the handler called when a request completes.
+	 *
+	 * @param interruptHandler the disk interrupt handler.
+	 */
+	public void setInterruptHandler(Runnable interruptHandler) {
+		this.interruptHandler = interruptHandler;
+	}
+
+	/**
+	 * Return the number of sectors on the disk.
+	 *
+	 * @return the number of sectors.
+	 */
+	public int getNumSectors() {
+		return numSectors;
+	}
+
+	/**
+	 * Return the number of sectors on a track.
+	 *
+	 * @return the number of sectors per track.
+	 */
+	public int getSectorsPerTrack() {
+		return sectorsPerTrack;
+	}
+
+	/**
+	 * Return the track the head is over, or moving to.
+	 *
+	 * @return the head's track.
+	 */
+	public int getHeadTrack() {
+		return headTrack;
+	}
+
+	/**
+	 * Start reading a sector. The data is in <i>data</i> when the interrupt
+	 * handler is called.
+	 *
+	 * @param sector the sector to read.
+	 * @param data where to put the sector.
+	 * @param offset the offset in <i>data</i> of the sector's first byte.
+	 */
+	public void readRequest(int sector, byte[] data, int offset) {
+		startRequest(sector, 1, data, offset, false);
+	}
+
+	/**
+	 * Start reading consecutive sectors in one request, which pays for one
+	 * seek and one rotational delay.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors.
+	 * @param data where to put the sectors.
+	 * @param offset the offset in <i>data</i> of the first sector's first byte.
+	 */
+	public void readRequest(int sector, int count, byte[] data, int offset) {
+		startRequest(sector, count, data, offset, false);
+	}
+
+	/**
+	 * Start writing a sector. The interrupt handler is called when the write
+	 * is complete.
+	 *
+	 * @param sector the sector to write.
+	 * @param data the data to write.
+	 * @param offset the offset in <i>data</i> of the sector's first byte.
+	 */
+	public void writeRequest(int sector, byte[] data, int offset) {
+		startRequest(sector, 1, data, offset, true);
+	}
+
+	/**
+	 * Start writing consecutive sectors in one request.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors.
+	 * @param data the data to write.
+	 * @param offset the offset in <i>data</i> of the first sector's first byte.
+	 */
+	public void writeRequest(int sector, int count, byte[] data, int offset) {
+		startRequest(sector, count, data, offset, true);
+	}
+
+	private void startRequest(int sector, int count, byte[] data, int offset,
+			boolean writing) {
+		Lib.assertTrue(!busy, "disk request already in progress");
+		Lib.assertTrue(count > 0 && sector >= 0 && sector + count <= numSectors,
+				"bad disk sector");
+		Lib.assertTrue(offset >= 0 && offset + count * sectorSize <= data.length);
+
+		busy = true;
+		this.sector = sector;
+		this.count = count;
+		this.data = data;
+		this.offset = offset;
+		this.writing = writing;
+
+		privilege.interrupt.schedule(latency(sector, count), "disk", completion);
+	}
+
+	/**
+	 * Return the time a request for sectors will take if started now, and
+	 * move the head to the track of the last.
+	 */
+	private int latency(int sector, int count) {
+		int track = sector / sectorsPerTrack;
+		int distance = Math.abs(track - headTrack);
+		int seek = 0;
+		if (distance > 0) {
+			seek = Stats.SeekTime / 10 + Stats.SeekTime * distance / numTracks;
+			privilege.stats.numDiskSeeks++;
+			privilege.stats.diskSeekTicks += seek;
+		}
+		headTrack = (sector + count - 1) / sectorsPerTrack;
+
+		// the sector under the head advances every sectorTime ticks
+		long start = privilege.stats.totalTicks + seek;
+		long slot = (start + sectorTime - 1) / sectorTime;
+		int under = (int) (slot % sectorsPerTrack);
+		int wanted = sector % sectorsPerTrack;
+		long rotation = (slot * sectorTime - start)
+				+ (long) ((wanted - under + sectorsPerTrack) % sectorsPerTrack)
+				* sectorTime;
+		privilege.stats.diskRotationTicks += rotation;
+
+		return (int) (seek + rotation + (long) count * sectorTime);
+	}
+
+	private void requestDone() {
+		Lib.assertTrue(busy);
+
+		image.position(sector * sectorSize);
+		if (writing) {
+			image.put(data, offset, count * sectorSize);
+			privilege.stats.numDiskWrites += count;
+		}
+		else {
+			image.get(data, offset, count * sectorSize);
+			privilege.stats.numDiskReads += count;
+		}
+
+		busy = false;
+		data = null;
+
+		if (interruptHandler != null)
+			interruptHandler.run();
+	}
+
+	private Privilege privilege;
+
+	private MappedByteBuffer image;
+
+	private int numSectors, sectorsPerTrack, numTracks, sectorTime;
+
+	private int headTrack = 0;
+
+	private Runnable completion;
+
+	private Runnable interruptHandler = null;
+
+	private boolean busy = false, writing;
+
+	private int sector, count, offset;
+
+	private byte[] data;
+}
@@ -0,0 +1,143 @@
+package nachos.machine;
+
+/**
+ * A histogram of non-negative <tt>long</tt> values with a fixed relative
+ * precision, in the style of an HDR histogram. Values below
+ * 2<sup><i>precisionBits</i></sup> are counted exactly; larger values fall into
+ * buckets whose width grows with the value, so each power-of-two range is split
+ * into 2<sup><i>precisionBits</i></sup> equal buckets.
+ *
+ * <p>
+ * All storage is allocated by the constructor, so <tt>record()</tt> never
+ * allocates and is cheap enough to call on every system call.
+ */
+public final class Histogram {
+	/**
+	 * Allocate a new, empty histogram.
+	 * 
+	 * @param precisionBits the number of bits of precision to keep in each
+	 * bucket; 3 bits gives a worst-case error of 12.5%.
+	 * @param maxValueBits values of 2<sup><i>maxValueBits</i></sup> or more
+	 * are counted in the highest bucket.
+	 */
+	public Histogram(int precisionBits, int maxValueBits) {
+		Lib.assertTrue(precisionBits > 0 && precisionBits < maxValueBits
+				&& maxValueBits < 63);
+
+		this.precisionBits = precisionBits;
+		this.maxValueBits = maxValueBits;
+		subBuckets = 1 << precisionBits;
+		counts = new long[(maxValueBits - precisionBits + 1) * subBuckets];
+	}
+
+	/**
+	 * Count one occurrence of the specified value. Negative values are
+	 * counted as 0.
+	 * 
+	 * @param value the value to record.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		counts[bucketOf(value)]++;
+		count++;
+		total += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Discard every recorded value.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+
+		count = total = max = 0;
+		min = Long.MAX_VALUE;
+	}
+
+	/** Return the number of values recorded. */
+	public long getCount() {
+		return count;
+	}
+
+	/** Return the smallest value recorded, or 0 if none were. */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/** Return the largest value recorded, or 0 if none were. */
+	public long getMax() {
+		return max;
+	}
+
+	/** Return the mean of the values recorded, or 0 if none were. */
+	public long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * Return an upper bound on the value at the specified percentile, accurate
+	 * to the precision of this histogram.
+	 * 
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the highest value in the bucket holding the percentile.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+
+		long target = (long) Math.ceil(percentile / 100.0 * count);
+		if (target < 1)
+			target = 1;
+
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(highestValueIn(i), max);
+		}
+
+		return max;
+	}
+
+	/**
+	 * Return a one-line summary of this histogram.
+	 */
+	public String toString() {
+		return "mean " + getMean() + ", p50 " + getValueAtPercentile(50)
+				+ ", p90 " + getValueAtPercentile(90) + ", p99 "
+				+ getValueAtPercentile(99) + ", max " + getMax();
+	}
+
+	private int bucketOf(long value) {
+		if (value < subBuckets)
+			return (int) value;
+
+		if (value >= (1L << maxValueBits))
+			return counts.length - 1;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - precisionBits;
+		return (shift + 1) * subBuckets + (int) ((value >> shift) - subBuckets);
+	}
+
+	private long highestValueIn(int bucket) {
+		if (bucket < subBuckets)
+			return bucket;
+
+		int shift = bucket / subBuckets - 1;
+		long lowest = (long) (subBuckets + bucket % subBuckets) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	private final int precisionBits, maxValueBits, subBuckets;
+
+	private final long[] counts;
+
+	private long count = 0, total = 0, max = 0, min = Long.MAX_VALUE;
+}
@@ -178,6 +178,9 @@ public final class Interrupt {
 				privilege.processor.flushPipe();
 
 			Lib.debug(dbgInt, "  " + next.type);
+			if (Tracer.compiled && Tracer.isEnabled(Tracer.catInterrupt))
+				Tracer.record(Tracer.catInterrupt,
+						Tracer.eventFor(Tracer.catInterrupt, next.type), 0, 0, 0);
 
 			next.handler.run();
 		}
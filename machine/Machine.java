@@ -37,6 +37,7 @@ public final class Machine {
 		processArgs();
 
 		Config.load(configFileName);
+		Tracer.initialize();
 
 		// get the current directory (.)
 		baseDirectory = new File(new File("").getAbsolutePath());
@@ -104,11 +105,20 @@ public final class Machine {
 	}
 
 	/**
-	 * Print stats, and terminate Nachos.
+	 * Print stats, write the trace file, and terminate Nachos.
 	 */
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		if (processor != null)
+			processor.closeReferenceTrace();
+		if (Tracer.compiled) {
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					Tracer.dump();
+				}
+			});
+		}
 		terminate();
 	}
 
@@ -194,6 +204,9 @@ public final class Machine {
 		if (Config.getBoolean("Machine.console"))
 			console = new StandardConsole(privilege);
 
+		if (Config.getBoolean("Machine.disk"))
+			disk = new Disk(privilege);
+
 		if (Config.getBoolean("Machine.stubFileSystem"))
 			stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
@@ -323,6 +336,16 @@ public final class Machine {
 		return timer;
 	}
 
+	/**
+	 * Return the statistics object, so that the kernel can record its own
+	 * counters alongside the ones kept by the hardware.
+	 * 
+	 * @return the runtime statistics.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	/**
 	 * Return the hardware elevator bank.
 	 * 
@@ -342,6 +365,15 @@ public final class Machine {
 		return processor;
 	}
 
+	/**
+	 * Return the simulated disk.
+	 * 
+	 * @return the disk, or <tt>null</tt> if it is not present.
+	 */
+	public static Disk disk() {
+		return disk;
+	}
+
 	/**
 	 * Return the hardware console.
 	 * 
@@ -390,6 +422,8 @@ public final class Machine {
 
 	private static FileSystem stubFileSystem = null;
 
+	private static Disk disk = null;
+
 	private static NetworkLink networkLink = null;
 
 	private static AutoGrader autoGrader = null;
@@ -174,6 +174,10 @@ public class NetworkLink {
 					incomingPacket = new Packet(incomingBytes);
 
 					privilege.stats.numPacketsReceived++;
+					if (Tracer.compiled)
+						Tracer.record(Tracer.catPacket, 1, incomingPacket.srcLink,
+								incomingPacket.dstLink,
+								incomingPacket.contents.length);
 				}
 				catch (MalformedPacketException e) {
 				}
@@ -279,6 +283,9 @@ public class NetworkLink {
 					localHost, portBase + p.dstLink));
 
 			privilege.stats.numPacketsSent++;
+			if (Tracer.compiled)
+				Tracer.record(Tracer.catPacket, 0, p.srcLink, p.dstLink,
+						p.contents.length);
 		}
 		catch (IOException e) {
 		}
@@ -48,6 +48,8 @@ public final class Processor {
 		mainMemory = new byte[pageSize * numPhysPages];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			Lib.assertTrue(tlbSize > 0);
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -55,6 +57,17 @@ public final class Processor {
 		else {
 			translations = null;
 		}
+
+		// the VM kernel's page tables are packed, unless it uses the TLB
+		usingPacked = (clsVMKernel != null && clsVMKernel
+				.isAssignableFrom(clsKernel) && !usingTLB);
+		usingPacked = Config.getBoolean("Processor.packedPageTable", usingPacked);
+		Lib.assertTrue(!(usingPacked && usingTLB),
+				"Processor.packedPageTable cannot be used with a TLB");
+
+		String traceFile = Config.getString("Processor.referenceTrace", "");
+		if (traceFile.length() > 0)
+			referenceTrace = new ReferenceTrace(privilege, traceFile);
 	}
 
 	/**
@@ -136,7 +149,8 @@ public final class Processor {
 	 * 
 	 * <p>
 	 * If <tt>false</tt>, this processor directly supports single-level paging;
-	 * use <tt>setPageTable()</tt>.
+	 * use <tt>setPageTable()</tt>, or <tt>setPackedPageTable()</tt> if
+	 * <tt>hasPackedPageTable()</tt>.
 	 * 
 	 * <p>
 	 * If <tt>true</tt>, this processor has a software-managed TLB; use
@@ -159,7 +173,7 @@ public final class Processor {
 	 * @return the current page table.
 	 */
 	public TranslationEntry[] getPageTable() {
-		Lib.assertTrue(!usingTLB);
+		Lib.assertTrue(!usingTLB && !usingPacked);
 
 		return translations;
 	}
@@ -172,11 +186,52 @@ public final class Processor {
 	 * @param pageTable the page table to use.
 	 */
 	public void setPageTable(TranslationEntry[] pageTable) {
-		Lib.assertTrue(!usingTLB);
+		Lib.assertTrue(!usingTLB && !usingPacked);
 
 		this.translations = pageTable;
 	}
 
+	/**
+	 * Test whether this processor walks a packed page table, set with
+	 * <tt>Processor.packedPageTable</tt>, instead of an array of
+	 * <tt>TranslationEntry</tt> objects.
+	 * 
+	 * <p>
+	 * If <tt>true</tt>, use <tt>setPackedPageTable()</tt>; each entry is one
+	 * <tt>int</tt>, made of the <tt>pte</tt> bits and a physical page number.
+	 * Bits 24 to 27 are ignored, and left to the kernel. A zero entry is not
+	 * valid.
+	 * 
+	 * @return <tt>true</tt> if this processor uses a packed page table.
+	 */
+	public boolean hasPackedPageTable() {
+		return usingPacked;
+	}
+
+	/**
+	 * Get the current packed page table, set by the last call to
+	 * setPackedPageTable().
+	 * 
+	 * @return the current packed page table.
+	 */
+	public int[] getPackedPageTable() {
+		Lib.assertTrue(usingPacked);
+
+		return packedTable;
+	}
+
+	/**
+	 * Set the packed page table pointer. All further address translations will
+	 * use the specified table, and set the used and dirty bits in it.
+	 * 
+	 * @param pageTable the packed page table to use.
+	 */
+	public void setPackedPageTable(int[] pageTable) {
+		Lib.assertTrue(usingPacked);
+
+		this.packedTable = pageTable;
+	}
+
 	/**
 	 * Return the number of entries in this processor's TLB.
 	 * 
@@ -278,6 +333,29 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Tag the memory references that follow in the reference trace with an
+	 * address space id. The kernel calls this when it switches address
+	 * spaces; it has no effect unless <tt>Processor.referenceTrace</tt> is
+	 * set.
+	 * 
+	 * @param id the address space id, such as a process id.
+	 */
+	public void setAddressSpace(int id) {
+		if (referenceTrace != null)
+			referenceTrace.setAddressSpace(id);
+	}
+
+	/**
+	 * Finish writing the reference trace, if there is one. Called by
+	 * <tt>Machine.halt()</tt>.
+	 */
+	void closeReferenceTrace() {
+		if (referenceTrace != null)
+			referenceTrace.close();
+		referenceTrace = null;
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
@@ -308,6 +386,10 @@ public final class Processor {
 
 		TranslationEntry entry = null;
 
+		// a packed table is indexed like a page table, and holds its bits in place
+		if (usingPacked)
+			return translatePacked(vaddr, vpn, offset, writing);
+
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
 			if (translations == null || vpn >= translations.length
@@ -332,6 +414,7 @@ public final class Processor {
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
+			privilege.stats.numTLBHits++;
 		}
 
 		// check if trying to write a read-only page
@@ -352,6 +435,47 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		if (referenceTrace != null)
+			referenceTrace.record(vpn, writing);
+
+		int paddr = (ppn * pageSize) + offset;
+
+		if (Lib.test(dbgProcessor))
+			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	}
+
+	/**
+	 * Translate a virtual address through the packed page table, setting the
+	 * used and dirty bits of its entry. Kept apart from <tt>translate()</tt>
+	 * so that the other mechanisms' path stays small enough to inline.
+	 */
+	private int translatePacked(int vaddr, int vpn, int offset, boolean writing)
+			throws MipsException {
+		int pte = 0;
+		if (packedTable != null && vpn < packedTable.length)
+			pte = packedTable[vpn];
+		if ((pte & pteValid) == 0) {
+			privilege.stats.numPageFaults++;
+			Lib.debug(dbgProcessor, "\t\tpage fault");
+			throw new MipsException(exceptionPageFault, vaddr);
+		}
+		if ((pte & pteReadOnly) != 0 && writing) {
+			Lib.debug(dbgProcessor, "\t\tread-only exception");
+			throw new MipsException(exceptionReadOnly, vaddr);
+		}
+		int ppn = pte & ptePPNMask;
+		if (ppn >= numPhysPages) {
+			Lib.debug(dbgProcessor, "\t\tbad ppn");
+			throw new MipsException(exceptionBusError, vaddr);
+		}
+		int marked = pte | pteUsed | (writing ? pteDirty : 0);
+		if (marked != pte)
+			packedTable[vpn] = marked;
+
+		if (referenceTrace != null)
+			referenceTrace.record(vpn, writing);
+
 		int paddr = (ppn * pageSize) + offset;
 
 		if (Lib.test(dbgProcessor))
@@ -549,7 +673,7 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
-	/** Number of TLB entries. */
+	/** Number of TLB entries, set by <tt>Processor.tlbSize</tt>. */
 	private int tlbSize = 4;
 
 	/**
@@ -558,8 +682,30 @@ public final class Processor {
 	 */
 	private TranslationEntry[] translations;
 
-	/** Size of a page, in bytes. */
-	public static final int pageSize = 0x400;
+	/** <tt>true</tt> if using a packed page table. */
+	private boolean usingPacked;
+
+	/** The packed page table, if using one. */
+	private int[] packedTable = null;
+
+	/** Packed page table entry bits: valid, read-only, used and dirty. */
+	public static final int pteValid = 1 << 31, pteReadOnly = 1 << 30,
+			pteUsed = 1 << 29, pteDirty = 1 << 28;
+
+	/** The physical page number in a packed page table entry. */
+	public static final int ptePPNMask = (1 << 24) - 1;
+
+	/**
+	 * Size of a page, in bytes: a power of two, set by
+	 * <tt>Processor.pageSize</tt>, 1K by default. It may not be smaller than
+	 * 1K, the section alignment the test programs are linked with.
+	 */
+	public static final int pageSize = Config.getInteger("Processor.pageSize", 0x400);
+
+	static {
+		Lib.assertTrue(pageSize >= 0x400 && (pageSize & (pageSize - 1)) == 0,
+				"Processor.pageSize must be a power of two, at least 1024");
+	}
 
 	/** Number of pages in a 32-bit address space. */
 	public static final int maxPages = (int) (0x100000000L / pageSize);
@@ -567,6 +713,12 @@ public final class Processor {
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
+	/**
+	 * The trace of memory references, or <tt>null</tt> if
+	 * <tt>Processor.referenceTrace</tt> is not set.
+	 */
+	private ReferenceTrace referenceTrace = null;
+
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
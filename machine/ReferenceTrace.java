@@ -0,0 +1,261 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A trace of the memory references the processor translates, written for
+ * offline analysis by <tt>nachos.vm.TraceSimulator</tt>. The processor
+ * records one when the <tt>nachos.conf</tt> key
+ * <tt>Processor.referenceTrace</tt> names an output file. References the
+ * kernel makes through <tt>readVirtualMemory()</tt> and
+ * <tt>writeVirtualMemory()</tt> do not pass through the processor and are not
+ * traced, and a reference that faults is traced only when it is retried.
+ *
+ * <p>
+ * The file is gzip-compressed. After a header of the magic number, the
+ * version and the page size, each reference is a variable-length integer:
+ * the difference from the previous reference's vpn, zigzag-encoded and
+ * shifted left by two, with bit 1 set for a write and bit 0 set when the
+ * address space changed, in which case the new address space id follows as
+ * another variable-length integer. A reference that repeats the one before
+ * it exactly is dropped, since it cannot change what any replacement policy
+ * does.
+ */
+public final class ReferenceTrace {
+	/** Identifies a reference trace file. */
+	public static final int magic = 0x4e524546;
+
+	/** The reference trace file format version. */
+	public static final int version = 1;
+
+	/**
+	 * Open a reference trace file for writing.
+	 *
+	 * @param privilege used to write the file on the host file system.
+	 * @param fileName the name of the file.
+	 */
+	ReferenceTrace(Privilege privilege, final String fileName) {
+		this.privilege = privilege;
+		this.fileName = fileName;
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					out = new DataOutputStream(new GZIPOutputStream(
+							new FileOutputStream(fileName), buffer.length));
+					out.writeInt(magic);
+					out.writeInt(version);
+					out.writeInt(Processor.pageSize);
+				}
+				catch (IOException e) {
+					System.out.println("Could not write reference trace to "
+							+ fileName);
+					out = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set the address space tagged on the references that follow.
+	 *
+	 * @param id the address space id.
+	 */
+	void setAddressSpace(int id) {
+		addressSpace = id;
+	}
+
+	/**
+	 * Record a memory reference.
+	 *
+	 * @param vpn the virtual page referenced.
+	 * @param writing <tt>true</tt> if the reference is a write.
+	 */
+	void record(int vpn, boolean writing) {
+		boolean switched = addressSpace != lastAddressSpace;
+		if (!switched && vpn == lastVpn && writing == lastWriting)
+			return;
+
+		if (count + 10 > buffer.length)
+			flush();
+
+		int delta = vpn - lastVpn;
+		int zigzag = (delta << 1) ^ (delta >> 31);
+		putVarint(((long) (zigzag & 0xFFFFFFFFL) << 2) | (writing ? 2 : 0)
+				| (switched ? 1 : 0));
+		if (switched)
+			putVarint(addressSpace & 0xFFFFFFFFL);
+
+		lastVpn = vpn;
+		lastWriting = writing;
+		lastAddressSpace = addressSpace;
+		numRecorded++;
+	}
+
+	/**
+	 * Write out what is buffered and close the file. Called by
+	 * <tt>Machine.halt()</tt>.
+	 */
+	void close() {
+		flush();
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					if (out != null)
+						out.close();
+					System.out.println("Reference trace written to " + fileName
+							+ " (" + numRecorded + " references)");
+				}
+				catch (IOException e) {
+					System.out.println("Could not write reference trace to "
+							+ fileName);
+				}
+				out = null;
+			}
+		});
+	}
+
+	private void putVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[count++] = (byte) value;
+	}
+
+	private void flush() {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					if (out != null)
+						out.write(buffer, 0, count);
+				}
+				catch (IOException e) {
+					System.out.println("Could not write reference trace to "
+							+ fileName);
+					out = null;
+				}
+			}
+		});
+		count = 0;
+	}
+
+	private Privilege privilege;
+
+	private String fileName;
+
+	private DataOutputStream out;
+
+	private byte[] buffer = new byte[65536];
+
+	private int count = 0;
+
+	private int addressSpace = 0, lastAddressSpace = -1, lastVpn = 0;
+
+	private boolean lastWriting = false;
+
+	private long numRecorded = 0;
+
+	/**
+	 * Reads a reference trace file, one reference at a time. This runs on the
+	 * host, outside of Nachos.
+	 */
+	public static class Reader {
+		/**
+		 * Open a reference trace file and read its header.
+		 *
+		 * @param fileName the name of the file.
+		 * @exception IOException if the file cannot be read or is not a
+		 * reference trace.
+		 */
+		public Reader(String fileName) throws IOException {
+			in = new BufferedInputStream(new GZIPInputStream(
+					new FileInputStream(fileName)));
+			DataInputStream header = new DataInputStream(in);
+			if (header.readInt() != magic)
+				throw new IOException(fileName + " is not a reference trace");
+			int fileVersion = header.readInt();
+			if (fileVersion != version)
+				throw new IOException(fileName + " has unsupported version "
+						+ fileVersion);
+			pageSize = header.readInt();
+		}
+
+		/**
+		 * Advance to the next reference.
+		 *
+		 * @return <tt>false</tt> at the end of the trace.
+		 * @exception IOException if the file cannot be read.
+		 */
+		public boolean next() throws IOException {
+			long word = getVarint(true);
+			if (word < 0)
+				return false;
+
+			int zigzag = (int) (word >>> 2);
+			vpn += (zigzag >>> 1) ^ -(zigzag & 1);
+			writing = (word & 2) != 0;
+			if ((word & 1) != 0)
+				addressSpace = (int) getVarint(false);
+			return true;
+		}
+
+		/** Return the address space id of the current reference. */
+		public int getAddressSpace() {
+			return addressSpace;
+		}
+
+		/** Return the virtual page of the current reference. */
+		public int getVpn() {
+			return vpn;
+		}
+
+		/** Return <tt>true</tt> if the current reference is a write. */
+		public boolean isWrite() {
+			return writing;
+		}
+
+		/** Return the page size of the machine that wrote the trace. */
+		public int getPageSize() {
+			return pageSize;
+		}
+
+		/** Close the file. */
+		public void close() throws IOException {
+			in.close();
+		}
+
+		// returns -1 at a clean end of file if atStart
+		private long getVarint(boolean atStart) throws IOException {
+			long value = 0;
+			for (int shift = 0;; shift += 7) {
+				int b = in.read();
+				if (b < 0) {
+					if (atStart && shift == 0)
+						return -1;
+					throw new EOFException("reference trace is truncated");
+				}
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+		}
+
+		private InputStream in;
+
+		private int pageSize, addressSpace = 0, vpn = 0;
+
+		private boolean writing;
+	}
+}
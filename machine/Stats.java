@@ -21,16 +21,29 @@ public final class Stats {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
 				+ kernelTicks + ", user " + userTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
-				+ numDiskWrites);
+				+ numDiskWrites
+				+ (numDiskReads + numDiskWrites > 0 ? ", seeks " + numDiskSeeks
+						+ " (" + diskSeekTicks + " ticks), rotational delay "
+						+ diskRotationTicks + " ticks" : ""));
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
-				+ ", TLB misses " + numTLBMisses);
+				+ ", TLB misses " + numTLBMisses
+				+ (numTLBHits > 0 ? String.format(" (hit rate %.2f%%)",
+						100.0 * numTLBHits / (numTLBHits + numTLBMisses)) : ""));
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
+		if (numCacheHits + numCacheMisses > 0)
+			System.out.println("Buffer cache: hits " + numCacheHits
+					+ ", misses " + numCacheMisses
+					+ String.format(" (hit rate %.2f%%)", 100.0 * numCacheHits
+							/ (numCacheHits + numCacheMisses))
+					+ ", write-backs " + numCacheWriteBacks);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		if (syscalls.getNumCalls() > 0)
+			syscalls.print("all processes");
 	}
 
 	/**
@@ -54,6 +67,15 @@ public final class Stats {
 	/** The total number of sectors Nachos has written to the simulated disk. */
 	public int numDiskWrites = 0;
 
+	/** The total number of times the disk head has moved to another track. */
+	public int numDiskSeeks = 0;
+
+	/** The total amount of simulated time the disk has spent seeking. */
+	public long diskSeekTicks = 0;
+
+	/** The total amount of simulated time spent waiting for disk rotation. */
+	public long diskRotationTicks = 0;
+
 	/** The total number of characters Nachos has read from the console. */
 	public int numConsoleReads = 0;
 
@@ -66,6 +88,9 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of translations the TLB has found. */
+	public long numTLBHits = 0;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
@@ -75,12 +100,24 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/** The total number of block lookups the buffer cache served. */
+	public int numCacheHits = 0;
+
+	/** The total number of blocks the buffer cache had to bring in. */
+	public int numCacheMisses = 0;
+
+	/** The total number of dirty blocks the buffer cache wrote back. */
+	public int numCacheWriteBacks = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/** Counters and latencies for every system call made by user programs. */
+	public final SyscallStats syscalls = new SyscallStats();
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
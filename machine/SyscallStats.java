@@ -0,0 +1,153 @@
+package nachos.machine;
+
+/**
+ * Counters for the system calls made by user programs, kept per syscall
+ * number: how many calls were made, how many returned an error, and how long
+ * they took, both in simulated ticks and in host nanoseconds. The kernel keeps
+ * one of these globally (in <tt>Stats</tt>) and one per process.
+ *
+ * <p>
+ * A histogram for a syscall number is allocated the first time that syscall
+ * is made, so recording is allocation-free from then on.
+ */
+public final class SyscallStats {
+	/**
+	 * Allocate a new, empty set of syscall counters.
+	 */
+	public SyscallStats() {
+	}
+
+	/**
+	 * Give a syscall number a name to use when printing.
+	 * 
+	 * @param syscall the syscall number.
+	 * @param name the name of the syscall.
+	 */
+	public static void setName(int syscall, String name) {
+		if (syscall >= 0 && syscall < maxSyscalls)
+			names[syscall] = name;
+	}
+
+	/**
+	 * Count a call to the specified syscall. Called before the syscall is
+	 * carried out, so calls that never return (such as <tt>exit()</tt>) are
+	 * still counted.
+	 * 
+	 * @param syscall the syscall number.
+	 */
+	public void recordCall(int syscall) {
+		if (syscall < 0 || syscall >= maxSyscalls)
+			return;
+
+		calls[syscall]++;
+		numCalls++;
+	}
+
+	/**
+	 * Record the result and latency of a call to the specified syscall.
+	 * 
+	 * @param syscall the syscall number.
+	 * @param result the value returned to the user; negative values are
+	 * counted as errors.
+	 * @param ticks the simulated time the syscall took.
+	 * @param nanos the host time the syscall took.
+	 */
+	public void recordReturn(int syscall, int result, long ticks, long nanos) {
+		if (syscall < 0 || syscall >= maxSyscalls)
+			return;
+
+		if (result < 0) {
+			errors[syscall]++;
+			numErrors++;
+		}
+
+		if (tickLatency[syscall] == null) {
+			tickLatency[syscall] = new Histogram(precisionBits, maxValueBits);
+			nanoLatency[syscall] = new Histogram(precisionBits, maxValueBits);
+		}
+		tickLatency[syscall].record(ticks);
+		nanoLatency[syscall].record(nanos);
+	}
+
+	/** Return the total number of syscalls made. */
+	public long getNumCalls() {
+		return numCalls;
+	}
+
+	/** Return the total number of syscalls that returned an error. */
+	public long getNumErrors() {
+		return numErrors;
+	}
+
+	/**
+	 * Return the number of calls made to the specified syscall.
+	 * 
+	 * @param syscall the syscall number.
+	 */
+	public long getNumCalls(int syscall) {
+		return calls[syscall];
+	}
+
+	/**
+	 * Return the simulated-tick latency histogram for the specified syscall,
+	 * or <tt>null</tt> if the syscall has never returned.
+	 * 
+	 * @param syscall the syscall number.
+	 */
+	public Histogram getTickLatency(int syscall) {
+		return tickLatency[syscall];
+	}
+
+	/**
+	 * Return the host-nanosecond latency histogram for the specified syscall,
+	 * or <tt>null</tt> if the syscall has never returned.
+	 * 
+	 * @param syscall the syscall number.
+	 */
+	public Histogram getNanoLatency(int syscall) {
+		return nanoLatency[syscall];
+	}
+
+	/**
+	 * Print a summary line, followed by one block for each syscall that has
+	 * been called.
+	 * 
+	 * @param label a name for the owner of these counters.
+	 */
+	public void print(String label) {
+		System.out.println("Syscalls (" + label + "): calls " + numCalls
+				+ ", errors " + numErrors);
+
+		for (int i = 0; i < maxSyscalls; i++) {
+			if (calls[i] == 0)
+				continue;
+
+			String name = names[i] != null ? names[i] : "syscall " + i;
+			System.out.println("\t" + name + ": calls " + calls[i]
+					+ ", errors " + errors[i]);
+			if (tickLatency[i] != null) {
+				System.out.println("\t\tticks: " + tickLatency[i]);
+				System.out.println("\t\thost ns: " + nanoLatency[i]);
+			}
+		}
+	}
+
+	/** The number of syscall numbers tracked; higher numbers are ignored. */
+	public static final int maxSyscalls = 32;
+
+	private static final int precisionBits = 3;
+
+	private static final int maxValueBits = 40;
+
+	private static String[] names = new String[maxSyscalls];
+
+	private long numCalls = 0, numErrors = 0;
+
+	private long[] calls = new long[maxSyscalls];
+
+	private long[] errors = new long[maxSyscalls];
+
+	private Histogram[] tickLatency = new Histogram[maxSyscalls];
+
+	private Histogram[] nanoLatency = new Histogram[maxSyscalls];
+}
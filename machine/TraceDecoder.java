@@ -0,0 +1,180 @@
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Decodes a trace file written by <tt>Tracer</tt>. Prints a summary of each
+ * category, followed by the records of every category merged into a single
+ * timeline ordered by time. This runs on the host, outside of Nachos:
+ *
+ * <pre>
+ * java nachos.machine.TraceDecoder [-summary] nachos.trace
+ * </pre>
+ *
+ * <p>
+ * With <tt>-summary</tt>, only the per-category summaries are printed.
+ */
+public final class TraceDecoder {
+	/**
+	 * Prevent instantiation.
+	 */
+	private TraceDecoder() {
+	}
+
+	/**
+	 * Decode the trace file named on the command line.
+	 *
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean summaryOnly = false;
+		String fileName = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-summary"))
+				summaryOnly = true;
+			else
+				fileName = args[i];
+		}
+
+		if (fileName == null) {
+			System.err.println("usage: java nachos.machine.TraceDecoder "
+					+ "[-summary] <trace file>");
+			System.exit(1);
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(fileName)));
+
+		if (in.readInt() != Tracer.magic) {
+			System.err.println(fileName + " is not a Nachos trace file");
+			System.exit(1);
+		}
+		int version = in.readInt();
+		if (version != Tracer.version) {
+			System.err.println(fileName + " has unsupported version " + version);
+			System.exit(1);
+		}
+
+		int numCategories = in.readInt();
+		String[] categories = new String[numCategories];
+		HashMap<Integer, String>[] names = newNameTables(numCategories);
+		long[][] records = new long[numCategories][];
+
+		for (int cat = 0; cat < numCategories; cat++) {
+			categories[cat] = in.readUTF();
+
+			int numNames = in.readInt();
+			for (int i = 0; i < numNames; i++) {
+				int event = in.readInt();
+				names[cat].put(event, in.readUTF());
+			}
+
+			long total = in.readLong();
+			int kept = in.readInt();
+			records[cat] = new long[kept * Tracer.recordLongs];
+			for (int i = 0; i < records[cat].length; i++)
+				records[cat][i] = in.readLong();
+
+			printSummary(categories[cat], names[cat], records[cat], total);
+		}
+		in.close();
+
+		if (!summaryOnly)
+			printTimeline(categories, names, records);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static HashMap<Integer, String>[] newNameTables(int count) {
+		HashMap<Integer, String>[] tables = new HashMap[count];
+		for (int i = 0; i < count; i++)
+			tables[i] = new HashMap<Integer, String>();
+		return tables;
+	}
+
+	/**
+	 * Print the number of records of a category, and how often each event
+	 * occurred among the records that were kept.
+	 */
+	private static void printSummary(String category,
+			HashMap<Integer, String> names, long[] records, long total) {
+		int kept = records.length / Tracer.recordLongs;
+		if (total == 0)
+			return;
+
+		System.out.print(category + ": " + total + " records");
+		if (kept < total)
+			System.out.print(", " + (total - kept) + " overwritten");
+		System.out.println();
+
+		HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (int i = 0; i < kept; i++) {
+			int event = (int) (records[i * Tracer.recordLongs + 1] >> 32);
+			Integer count = counts.get(event);
+			counts.put(event, count == null ? 1 : count + 1);
+		}
+
+		for (Integer event : new TreeSet<Integer>(counts.keySet()))
+			System.out.println("\t" + eventName(names, event) + ": "
+					+ counts.get(event));
+	}
+
+	/**
+	 * Print every record, merging the categories in time order. Each category
+	 * is already in time order, so this is a merge of sorted lists.
+	 */
+	private static void printTimeline(String[] categories,
+			HashMap<Integer, String>[] names, long[][] records) {
+		int[] next = new int[categories.length];
+
+		while (true) {
+			int cat = -1;
+			for (int i = 0; i < categories.length; i++) {
+				if (next[i] < records[i].length
+						&& (cat < 0 || records[i][next[i]] < records[cat][next[cat]]))
+					cat = i;
+			}
+			if (cat < 0)
+				break;
+
+			long time = records[cat][next[cat]];
+			long word1 = records[cat][next[cat] + 1];
+			long word2 = records[cat][next[cat] + 2];
+			next[cat] += Tracer.recordLongs;
+
+			int event = (int) (word1 >> 32);
+			int a = (int) word1, b = (int) (word2 >> 32), c = (int) word2;
+
+			System.out.println(time + "\t" + categories[cat] + "\t"
+					+ eventName(names[cat], event) + "\t"
+					+ describe(cat, a, b, c));
+		}
+	}
+
+	private static String describe(int cat, int a, int b, int c) {
+		switch (cat) {
+		case Tracer.catSyscall:
+			return "pid " + a + " result " + b + " ticks " + c;
+		case Tracer.catContextSwitch:
+			return "from thread " + a + " status " + b;
+		case Tracer.catPageFault:
+			return "pid " + a + " vpn " + b + " ppn " + c;
+		case Tracer.catPacket:
+			return "src " + a + " dst " + b + " bytes " + c;
+		case Tracer.catInterrupt:
+			return "";
+		default:
+			return a + " " + b + " " + c;
+		}
+	}
+
+	private static String eventName(HashMap<Integer, String> names, int event) {
+		String name = names.get(event);
+		return name != null ? name : "#" + event;
+	}
+}
@@ -0,0 +1,242 @@
+package nachos.machine;
+
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * A low-overhead binary event tracer. Events are recorded into a preallocated
+ * ring buffer per category as fixed-size records, and the buffers are written
+ * to a file when the machine halts. The file can be rendered as a timeline with
+ * <tt>TraceDecoder</tt>.
+ *
+ * <p>
+ * Call sites are guarded by the compile-time constant <tt>compiled</tt>, so
+ * setting it to <tt>false</tt> removes tracing from the build entirely:
+ *
+ * <pre>
+ * if (Tracer.compiled)
+ * 	Tracer.record(Tracer.catSyscall, syscall, pid, result, ticks);
+ * </pre>
+ *
+ * <p>
+ * At run time, categories are enabled with the <tt>nachos.conf</tt> key
+ * <tt>Tracer.categories</tt>, a string of category flags in the style of the
+ * debug flags: <tt>s</tt> for syscalls, <tt>c</tt> for context switches,
+ * <tt>p</tt> for page faults, <tt>i</tt> for interrupts, <tt>n</tt> for
+ * packets, or <tt>+</tt> for all of them. <tt>Tracer.bufferSize</tt> sets the
+ * number of records kept per category (the oldest are overwritten), and
+ * <tt>Tracer.file</tt> names the output file.
+ *
+ * <p>
+ * Each record holds the simulated time, an event number, and three integer
+ * arguments whose meaning depends on the category. Recording a disabled
+ * category costs one array lookup; recording an enabled one never allocates.
+ */
+public final class Tracer {
+	/**
+	 * Set to <tt>false</tt> to compile every trace point out of Nachos.
+	 */
+	public static final boolean compiled = true;
+
+	/** Syscalls: event is the syscall number, args are pid, result, ticks. */
+	public static final int catSyscall = 0;
+
+	/**
+	 * Context switches: event is the new thread's id, args are the old
+	 * thread's id, and the old thread's status.
+	 */
+	public static final int catContextSwitch = 1;
+
+	/** Page faults: event is the fault source, args are pid, vpn, ppn. */
+	public static final int catPageFault = 2;
+
+	/** Interrupts: event is the interrupt type, args are unused. */
+	public static final int catInterrupt = 3;
+
+	/**
+	 * Packets: event is 0 for sent and 1 for received, args are source link,
+	 * destination link, and contents length.
+	 */
+	public static final int catPacket = 4;
+
+	/** The number of categories. */
+	public static final int numCategories = 5;
+
+	/** The name of each category, as written to the trace file. */
+	public static final String[] categoryNames = { "syscall", "switch",
+			"fault", "interrupt", "packet" };
+
+	private static final String categoryFlags = "scpin";
+
+	/** The number of longs in each record. */
+	static final int recordLongs = 3;
+
+	/** Identifies a trace file. */
+	static final int magic = 0x4e545243;
+
+	/** The trace file format version. */
+	static final int version = 1;
+
+	/**
+	 * Prevent instantiation.
+	 */
+	private Tracer() {
+	}
+
+	/**
+	 * Read the tracer configuration and allocate the buffers of the enabled
+	 * categories. Called once, after the configuration file is loaded.
+	 */
+	public static void initialize() {
+		String flags = Config.getString("Tracer.categories", "");
+		int bufferSize = Config.getInteger("Tracer.bufferSize", 65536);
+		fileName = Config.getString("Tracer.file", "nachos.trace");
+
+		Lib.assertTrue(bufferSize > 0, "Tracer.bufferSize must be positive");
+
+		for (int cat = 0; cat < numCategories; cat++) {
+			if (flags.indexOf('+') >= 0
+					|| flags.indexOf(categoryFlags.charAt(cat)) >= 0) {
+				buffers[cat] = new long[bufferSize * recordLongs];
+				enabled[cat] = true;
+				anyEnabled = true;
+			}
+		}
+	}
+
+	/**
+	 * Test whether a category is being traced.
+	 *
+	 * @param category the category.
+	 * @return <tt>true</tt> if events in the category are recorded.
+	 */
+	public static boolean isEnabled(int category) {
+		return enabled[category];
+	}
+
+	/**
+	 * Record an event, if its category is enabled.
+	 *
+	 * @param category the category of the event.
+	 * @param event the event number.
+	 * @param a the first argument.
+	 * @param b the second argument.
+	 * @param c the third argument.
+	 */
+	public static void record(int category, int event, int a, int b, int c) {
+		if (!enabled[category])
+			return;
+
+		long[] buffer = buffers[category];
+		int slot = (int) (counts[category] % (buffer.length / recordLongs))
+				* recordLongs;
+
+		buffer[slot] = Machine.stats().totalTicks;
+		buffer[slot + 1] = ((long) event << 32) | (a & 0xFFFFFFFFL);
+		buffer[slot + 2] = ((long) b << 32) | (c & 0xFFFFFFFFL);
+		counts[category]++;
+	}
+
+	/**
+	 * Give an event of a category a name to print in timelines.
+	 *
+	 * @param category the category.
+	 * @param event the event number.
+	 * @param name the name of the event.
+	 */
+	public static void setEventName(int category, int event, String name) {
+		names[category].put(event, name);
+	}
+
+	/**
+	 * Return an event number for the specified name, assigning a new one the
+	 * first time the name is seen. Used for events that are identified by a
+	 * string, such as interrupt types.
+	 *
+	 * @param category the category.
+	 * @param name the name of the event.
+	 * @return the event number.
+	 */
+	public static int eventFor(int category, String name) {
+		Integer event = eventsByName[category].get(name);
+		if (event == null) {
+			event = eventsByName[category].size();
+			eventsByName[category].put(name, event);
+			names[category].put(event, name);
+		}
+		return event;
+	}
+
+	/**
+	 * Write every enabled category to the trace file. Called by
+	 * <tt>Machine.halt()</tt> with privilege, since the file is written on the
+	 * host file system.
+	 */
+	public static void dump() {
+		if (!anyEnabled)
+			return;
+
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(fileName)));
+
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeInt(numCategories);
+
+			for (int cat = 0; cat < numCategories; cat++) {
+				out.writeUTF(categoryNames[cat]);
+
+				out.writeInt(names[cat].size());
+				for (Integer event : names[cat].keySet()) {
+					out.writeInt(event);
+					out.writeUTF(names[cat].get(event));
+				}
+
+				// oldest record first
+				int capacity = enabled[cat] ? buffers[cat].length / recordLongs
+						: 0;
+				long kept = Math.min(counts[cat], capacity);
+				out.writeLong(counts[cat]);
+				out.writeInt((int) kept);
+				for (long i = counts[cat] - kept; i < counts[cat]; i++) {
+					int slot = (int) (i % capacity) * recordLongs;
+					for (int j = 0; j < recordLongs; j++)
+						out.writeLong(buffers[cat][slot + j]);
+				}
+			}
+
+			out.close();
+			System.out.println("Trace written to " + fileName);
+		}
+		catch (IOException e) {
+			System.out.println("Could not write trace to " + fileName);
+		}
+	}
+
+	private static boolean[] enabled = new boolean[numCategories];
+
+	private static boolean anyEnabled = false;
+
+	private static long[][] buffers = new long[numCategories][];
+
+	private static long[] counts = new long[numCategories];
+
+	@SuppressWarnings("unchecked")
+	private static HashMap<Integer, String>[] names = new HashMap[numCategories];
+
+	@SuppressWarnings("unchecked")
+	private static HashMap<String, Integer>[] eventsByName = new HashMap[numCategories];
+
+	static {
+		for (int cat = 0; cat < numCategories; cat++) {
+			names[cat] = new HashMap<Integer, String>();
+			eventsByName[cat] = new HashMap<String, Integer>();
+		}
+	}
+
+	private static String fileName;
+}
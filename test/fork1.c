@@ -0,0 +1,90 @@
+/*
+ * fork1.c
+ *
+ * Exercise fork(): the parent and the child each write the same global
+ * variable and the same array, which they share copy-on-write, and check
+ * that each sees only its own values. The child also checks that it
+ * inherited the parent's open file at the parent's position, and that
+ * reading it moves only the child's position.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int value = 0;
+
+/* several pages, so copy-on-write faults on more than one */
+char pages[4096];
+
+int
+check (char expected)
+{
+    int i;
+
+    for (i = 0; i < sizeof(pages); i++) {
+	if (pages[i] != expected) {
+	    return 0;
+	}
+    }
+    return 1;
+}
+
+int
+main (int argc, char *argv[])
+{
+    char buf[4];
+    int fd, i, pid, status;
+
+    fd = creat("fork1.out");
+    if (fd < 0 || write(fd, "0123456789", 10) != 10) {
+	printf("cannot write fork1.out\n");
+	exit(-1);
+    }
+    close(fd);
+
+    fd = open("fork1.out");
+    read(fd, buf, 3);
+    for (i = 0; i < sizeof(pages); i++) {
+	pages[i] = 'x';
+    }
+
+    pid = fork();
+    if (pid < 0) {
+	printf("fork failed\n");
+	exit(-1);
+    }
+
+    if (pid == 0) {
+	value = 2;
+	for (i = 0; i < sizeof(pages); i++) {
+	    pages[i] = 'c';
+	}
+	buf[3] = '\0';
+	read(fd, buf, 3);
+	close(fd);
+	printf("child: value %d, pages %s, read %s\n", value,
+	       check('c') ? "ok" : "wrong", buf);
+	exit(value == 2 && check('c') ? 0 : 1);
+    }
+
+    value = 1;
+    for (i = 0; i < sizeof(pages); i++) {
+	pages[i] = 'p';
+    }
+
+    if (join(pid, &status) != 1) {
+	printf("join failed\n");
+	exit(-1);
+    }
+
+    /* the child's reads moved its own position, not this one */
+    buf[3] = '\0';
+    read(fd, buf, 3);
+    close(fd);
+    printf("parent: value %d, pages %s, read %s, child status %d\n", value,
+	   check('p') ? "ok" : "wrong", buf, status);
+    unlink("fork1.out");
+
+    return 0;
+}
@@ -0,0 +1,38 @@
+/*
+ * joinany1.c
+ *
+ * Exec several children and reap them in whatever order they exit with
+ * joinany(), then check that joinany() fails once no children are left.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NCHILDREN 5
+
+int
+main (int argc, char *argv[])
+{
+    char *args[1];
+    int i, pid, status, r;
+
+    args[0] = "exit1.coff";
+    for (i = 0; i < NCHILDREN; i++) {
+	pid = exec("exit1.coff", 1, args);
+	if (pid < 0) {
+	    printf("exec %d failed\n", i);
+	    exit(-1);
+	}
+    }
+
+    for (i = 0; i < NCHILDREN; i++) {
+	r = joinany(&pid, &status);
+	printf("joinany: %d pid %d status %d\n", r, pid, status);
+    }
+
+    r = joinany(&pid, &status);
+    printf("joinany with no children: %d\n", r);
+
+    return 0;
+}
@@ -0,0 +1,87 @@
+/*
+ * mmap1.c
+ *
+ * Exercise mmap(): map a file, check that the mapping holds its contents
+ * and that read() and write() on the descriptor fail while it is mapped,
+ * change it through memory, and check that close() wrote the changes back.
+ * Then exec a copy of this program that maps the file, changes it and
+ * exits without closing it, and check that exit wrote those back too.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define LENGTH 3000
+
+/* well above the heap and the stack, and page aligned */
+#define MAPPING ((char *) 0x800000)
+
+char buf[LENGTH];
+
+int
+main (int argc, char *argv[])
+{
+    char *args[2];
+    int fd, i, pid, status, errors;
+
+    /* the child: change the file and exit with it still mapped */
+    if (argc > 1) {
+	fd = open("mmap1.out");
+	if (fd < 0 || mmap(fd, MAPPING) != LENGTH) {
+	    exit(-1);
+	}
+	MAPPING[LENGTH - 1] = 'X';
+	exit(0);
+    }
+
+    for (i = 0; i < LENGTH; i++) {
+	buf[i] = 'a' + i % 26;
+    }
+    fd = creat("mmap1.out");
+    if (fd < 0 || write(fd, buf, LENGTH) != LENGTH) {
+	printf("cannot write mmap1.out\n");
+	exit(-1);
+    }
+    close(fd);
+
+    fd = open("mmap1.out");
+    printf("mmap: %d\n", mmap(fd, MAPPING));
+    printf("read while mapped: %d\n", read(fd, buf, 1));
+    printf("write while mapped: %d\n", write(fd, buf, 1));
+
+    errors = 0;
+    for (i = 0; i < LENGTH; i++) {
+	if (MAPPING[i] != 'a' + i % 26) {
+	    errors++;
+	}
+    }
+    printf("mapped contents: %d errors\n", errors);
+
+    /* one change on each page */
+    MAPPING[0] = 'A';
+    MAPPING[1500] = 'B';
+    MAPPING[LENGTH - 1] = 'C';
+    close(fd);
+
+    fd = open("mmap1.out");
+    printf("read after close: %d\n", read(fd, buf, LENGTH));
+    printf("written back: %c %c %c\n", buf[0], buf[1500], buf[LENGTH - 1]);
+    close(fd);
+
+    args[0] = "mmap1.coff";
+    args[1] = "child";
+    pid = exec("mmap1.coff", 2, args);
+    if (pid < 0 || join(pid, &status) != 1 || status != 0) {
+	printf("child failed\n");
+	exit(-1);
+    }
+
+    fd = open("mmap1.out");
+    read(fd, buf, LENGTH);
+    printf("written back on exit: %c\n", buf[LENGTH - 1]);
+    close(fd);
+    unlink("mmap1.out");
+
+    return 0;
+}
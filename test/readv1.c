@@ -0,0 +1,82 @@
+/*
+ * readv1.c
+ *
+ * Exercise the vectored and positional I/O syscalls: writev() a record
+ * made of several buffers, pread() single fields back out of it without
+ * moving the file position, pwrite() over one field, and readv() the whole
+ * record into separate buffers. Finally writev() with a bad second buffer,
+ * which writes the first buffer and returns its length.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    char key[4] = "key";
+    char value[6] = "value";
+    char tail[5] = "tail";
+    struct iovec iov[3];
+
+    int fd = creat("readv1.out");
+    if (fd < 0) {
+        printf("creat failed\n");
+        exit(-1);
+    }
+
+    iov[0].iov_base = key;
+    iov[0].iov_len = 4;
+    iov[1].iov_base = value;
+    iov[1].iov_len = 6;
+    iov[2].iov_base = tail;
+    iov[2].iov_len = 5;
+    int written = writev(fd, iov, 3);
+    printf("writev: %d\n", written);
+
+    char field[6];
+    int readNum = pread(fd, field, 6, 4);
+    printf("pread: %d %s\n", readNum, field);
+
+    int writeNum = pwrite(fd, "VALUE", 5, 4);
+    printf("pwrite: %d\n", writeNum);
+
+    /* the file position is still at the end of the record */
+    printf("read at end: %d\n", read(fd, field, 6));
+    close(fd);
+
+    char key2[4], value2[6], tail2[5];
+    fd = open("readv1.out");
+    iov[0].iov_base = key2;
+    iov[1].iov_base = value2;
+    iov[2].iov_base = tail2;
+    readNum = readv(fd, iov, 3);
+    printf("readv: %d %s %s %s\n", readNum, key2, value2, tail2);
+
+    /* streams have no position */
+    printf("pread stdin: %d\n", pread(fdStandardInput, field, 1, 0));
+    close(fd);
+    unlink("readv1.out");
+
+    /*
+     * the first buffer reaches the file, and the count says so; the bad
+     * buffer is in the heap's unmapped reserve, so this needs sbrk()
+     */
+    if (sbrk(0) == (void *) -1) {
+        printf("writev bad buffer: no heap\n");
+        return 0;
+    }
+    fd = creat("readv1.out");
+    iov[0].iov_base = key;
+    iov[1].iov_base = (char *) sbrk(0) + 8 * 1024;
+    written = writev(fd, iov, 3);
+    close(fd);
+    fd = open("readv1.out");
+    readNum = read(fd, field, 6);
+    printf("writev bad buffer: %d, file holds %d\n", written, readNum);
+    close(fd);
+    unlink("readv1.out");
+
+    return 0;
+}
@@ -0,0 +1,85 @@
+/*
+ * ring1.c
+ *
+ * Exercise the asynchronous submission ring: queue an open and several
+ * positional reads of file3, hand them all to the kernel with a single
+ * ringsubmit(), and reap the completions.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define ENTRIES 8
+
+/* the ring must start on a page boundary */
+char ringbuf[2 * 1024] __attribute__ ((aligned (1024)));
+
+struct ring_header *ring = (struct ring_header *) ringbuf;
+
+struct ring_sqe *
+sq (void)
+{
+    return (struct ring_sqe *) (ringbuf + sizeof(struct ring_header));
+}
+
+struct ring_cqe *
+cq (void)
+{
+    return (struct ring_cqe *) (ringbuf + sizeof(struct ring_header) +
+				ENTRIES * sizeof(struct ring_sqe));
+}
+
+void
+queue (int opcode, int fd, void *addr, int len, int offset, int user_data)
+{
+    struct ring_sqe *sqe = &sq()[ring->sq_tail % ENTRIES];
+
+    sqe->opcode = opcode;
+    sqe->fd = fd;
+    sqe->addr = addr;
+    sqe->len = len;
+    sqe->offset = offset;
+    sqe->user_data = user_data;
+    ring->sq_tail++;
+}
+
+int
+main (int argc, char *argv[])
+{
+    char buffers[4][4];
+    int i, fd;
+
+    if (ringsetup(ring, ENTRIES) != 0) {
+	printf("ringsetup failed\n");
+	exit(-1);
+    }
+
+    /* open through the ring, then wait for the descriptor */
+    queue(RING_OP_OPEN, 0, "file3", 0, 0, 100);
+    ringsubmit(1);
+    fd = cq()[ring->cq_head % ENTRIES].result;
+    ring->cq_head++;
+    printf("open: %d\n", fd);
+
+    /* four reads, one submit */
+    for (i = 0; i < 4; i++) {
+	queue(RING_OP_READ, fd, buffers[i], 3, i * 3, i);
+	buffers[i][3] = '\0';
+    }
+    printf("submitted: %d\n", ringsubmit(4));
+
+    while (ring->cq_head != ring->cq_tail) {
+	struct ring_cqe *cqe = &cq()[ring->cq_head % ENTRIES];
+	printf("read %d: %d %s\n", cqe->user_data, cqe->result,
+	       buffers[cqe->user_data]);
+	ring->cq_head++;
+    }
+
+    queue(RING_OP_CLOSE, fd, 0, 0, 0, 200);
+    ringsubmit(1);
+    printf("close: %d\n", cq()[ring->cq_head % ENTRIES].result);
+    ring->cq_head++;
+
+    return 0;
+}
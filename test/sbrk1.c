@@ -0,0 +1,73 @@
+/*
+ * sbrk1.c
+ *
+ * Exercise sbrk(): grow the heap, check that new memory reads as zeros,
+ * fill it with more pages than physical memory holds so some go to swap,
+ * and read them back. Then shrink the heap and grow it again, and check
+ * that the pages given up come back as zeros while the ones kept still
+ * hold their data. Finally check that a growth past the limit fails.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGE 1024
+#define NPAGES 64
+#define KEEP 4
+
+int
+main (int argc, char *argv[])
+{
+    char *base, *old;
+    int i, zeros, errors;
+
+    base = sbrk(0);
+    old = sbrk(NPAGES * PAGE);
+    printf("grow: %s\n", old == base ? "ok" : "wrong break");
+    printf("end: %s\n", sbrk(0) == base + NPAGES * PAGE ? "ok" : "wrong");
+
+    zeros = 1;
+    for (i = 0; i < NPAGES * PAGE; i++) {
+	if (base[i] != 0) {
+	    zeros = 0;
+	}
+	base[i] = i % 251;
+    }
+    printf("new memory zero: %d\n", zeros);
+
+    errors = 0;
+    for (i = 0; i < NPAGES * PAGE; i++) {
+	if (base[i] != (char) (i % 251)) {
+	    errors++;
+	}
+    }
+    printf("read back: %d errors\n", errors);
+
+    /* give up all but the first pages, then take them back */
+    old = sbrk(-(NPAGES - KEEP) * PAGE);
+    printf("shrink: %s\n", old == base + NPAGES * PAGE ? "ok" : "wrong break");
+    sbrk((NPAGES - KEEP) * PAGE);
+
+    errors = 0;
+    for (i = 0; i < KEEP * PAGE; i++) {
+	if (base[i] != (char) (i % 251)) {
+	    errors++;
+	}
+    }
+    printf("kept pages: %d errors\n", errors);
+
+    zeros = 1;
+    for (i = KEEP * PAGE; i < NPAGES * PAGE; i++) {
+	if (base[i] != 0) {
+	    zeros = 0;
+	}
+    }
+    printf("regrown memory zero: %d\n", zeros);
+
+    printf("huge growth: %s\n", sbrk(0x10000000) == (void *) -1 ? "fails" : "succeeds");
+    printf("shrink below start: %s\n",
+	   sbrk(-(NPAGES * PAGE) - PAGE) == (void *) -1 ? "fails" : "succeeds");
+
+    return 0;
+}
@@ -67,3 +67,12 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(pread, syscallPread)
+	SYSCALLSTUB(pwrite, syscallPwrite)
+	SYSCALLSTUB(ringsetup, syscallRingSetup)
+	SYSCALLSTUB(ringsubmit, syscallRingSubmit)
+	SYSCALLSTUB(joinany, syscallJoinAny)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(sbrk, syscallSbrk)
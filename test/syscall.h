@@ -25,6 +25,15 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallPread		15
+#define syscallPwrite		16
+#define syscallRingSetup	17
+#define syscallRingSubmit	18
+#define syscallJoinAny		19
+#define syscallFork		20
+#define syscallSbrk		21
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +62,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), joinany(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -108,6 +117,37 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Suspend execution of the current process until any of its child processes
+ * has exited, and then disown that child as join() does. Children whose
+ * parent exits are adopted by the first process, which can collect them with
+ * joinany().
+ *
+ * processID points to an integer where the process ID of the child is
+ * stored, and status to an integer where its exit status is stored, as for
+ * join().
+ *
+ * If the child exited normally, returns 1. If the child exited as a result of
+ * an unhandled exception, returns 0. If the current process has no children,
+ * returns -1.
+ */
+int joinany(int *processID, int *status);
+
+/**
+ * Create a child process that is a copy of the current process. The child
+ * has a new unique process ID, and continues from the return of fork() with
+ * a copy of the parent's memory and of its open file descriptors; a file is
+ * opened again for the child at the parent's position. Files mapped with
+ * mmap() are not mapped in the child.
+ *
+ * Memory is copied lazily: the two processes share every page until one of
+ * them writes to it.
+ *
+ * In the parent, fork() returns the child's process ID, which can be passed
+ * to join(). In the child, it returns 0. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -203,6 +243,126 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * A single buffer in a scatter/gather request. iov_base points to the buffer
+ * and iov_len is its length in bytes.
+ */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Read from the file or stream referred to by fileDescriptor into the
+ * iovcnt buffers described by iov, filling each buffer completely before
+ * moving on to the next. At most 16 buffers may be passed in one call.
+ *
+ * Behaves like a single read() of the total length of all buffers: on
+ * success the number of bytes read is returned and the file position is
+ * advanced by this number. On error, -1 is returned.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write to the file or stream referred to by fileDescriptor from the iovcnt
+ * buffers described by iov, in order. At most 16 buffers may be passed in one
+ * call.
+ *
+ * Behaves like a single write() of the total length of all buffers: on
+ * success the number of bytes written is returned and the file position is
+ * advanced by this number. On error, -1 is returned.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Attempt to read up to count bytes into buffer from the disk file referred
+ * to by fileDescriptor, starting at byte offset in the file. The file
+ * position is neither used nor changed.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred. This can
+ * happen if fileDescriptor is invalid or refers to a stream, or if offset is
+ * negative.
+ */
+int pread(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Attempt to write count bytes from buffer to the disk file referred to by
+ * fileDescriptor, starting at byte offset in the file. The file position is
+ * neither used nor changed.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred. This can
+ * happen if fileDescriptor is invalid or refers to a stream, or if offset is
+ * negative.
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int offset);
+
+/* ASYNCHRONOUS I/O SYSCALLS: ringsetup, ringsubmit
+ *
+ * A process can queue requests in a submission ring in its own memory and
+ * hand all of them to the kernel with one ringsubmit() call. Kernel worker
+ * threads carry the requests out concurrently and post a completion for each
+ * one to the completion ring, which the process reaps at its leisure.
+ *
+ * Head and tail values are free-running counters; the slot for counter n is
+ * n % entries. The process fills sq[sq_tail % entries] and then increments
+ * sq_tail; it reaps cq[cq_head % entries] while cq_head != cq_tail and then
+ * increments cq_head. The kernel owns sq_head, cq_tail and entries.
+ */
+#define RING_OP_NOP	0
+#define RING_OP_READ	1	/* read(fd, addr, len), at offset if >= 0 */
+#define RING_OP_WRITE	2	/* write(fd, addr, len), at offset if >= 0 */
+#define RING_OP_OPEN	3	/* open(addr) */
+#define RING_OP_CLOSE	4	/* close(fd) */
+
+struct ring_sqe {
+    int opcode;
+    int fd;
+    void *addr;
+    int len;
+    int offset;
+    int user_data;
+    int pad[2];
+};
+
+struct ring_cqe {
+    int user_data;
+    int result;		/* the return value of the equivalent syscall */
+};
+
+struct ring_header {
+    volatile int sq_head;
+    volatile int sq_tail;
+    volatile int cq_head;
+    volatile int cq_tail;
+    int entries;
+    int pad[3];
+};
+
+/* Bytes needed for a ring with n entries: header, n sqes, then n cqes. */
+#define RING_SIZE(n) \
+    (sizeof(struct ring_header) + (n) * (sizeof(struct ring_sqe) + \
+				       sizeof(struct ring_cqe)))
+
+/**
+ * Set up the submission and completion rings at ring, which must be
+ * page-aligned, writable and at least RING_SIZE(entries) bytes long. entries
+ * must be a power of two no larger than 64. A process may set up only one
+ * ring, and any requests in flight are completed before it exits.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ringsetup(void *ring, int entries);
+
+/**
+ * Submit every request queued in the submission ring, as far as there is
+ * room in the completion ring for their results. If minComplete is positive,
+ * then wait until at least minComplete completions are ready to be reaped or
+ * nothing is left in flight.
+ *
+ * Returns the number of requests submitted, or -1 if an error occurred.
+ */
+int ringsubmit(int minComplete);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -217,6 +377,18 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Move the end of the heap, which starts right after the program, by
+ * increment bytes, which may be negative. New heap memory reads as zeros,
+ * and takes up no physical memory until it is touched. The heap and the
+ * stack may each grow up to a limit set by the kernel; the stack grows by
+ * itself when the program touches memory just below it.
+ *
+ * Returns the old end of the heap, so that sbrk(0) returns the current end,
+ * or (void *) -1 if the heap cannot be moved that far.
+ */
+void *sbrk(int increment);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -0,0 +1,471 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A block buffer cache in front of another file system. Files are cached in
+ * fixed-size blocks shared by every open instance of the same file, so small
+ * reads, such as the header reads of <tt>Coff</tt>, and repeated reads of the
+ * same executable are served from memory. Writes are held in the cache and
+ * written back when a block is evicted, by a flusher thread every so often,
+ * when the last open instance of a file is closed, and when the kernel halts.
+ *
+ * <p>
+ * The cache is turned on by giving it a size in blocks with the
+ * <tt>nachos.conf</tt> key <tt>BufferCache.blocks</tt>.
+ * <tt>BufferCache.blockSize</tt> sets the size of a block in bytes,
+ * <tt>BufferCache.policy</tt> chooses <tt>lru</tt> or <tt>2q</tt> eviction,
+ * and <tt>BufferCache.flushInterval</tt> sets the ticks between the flusher's
+ * sweeps, 0 to leave dirty blocks until they are evicted or synced.
+ *
+ * <p>
+ * 2Q keeps blocks seen once in a FIFO queue holding a quarter of the cache,
+ * and remembers the blocks recently evicted from it; a block referenced again
+ * while remembered is promoted into an LRU queue. A single pass over a large
+ * file then cannot flush the blocks that are used repeatedly.
+ */
+public class BufferCache implements FileSystem {
+	/**
+	 * Allocate a new buffer cache in front of a file system, and start its
+	 * flusher.
+	 *
+	 * @param fileSystem the file system to cache.
+	 */
+	public BufferCache(FileSystem fileSystem) {
+		this.fileSystem = fileSystem;
+
+		numBlocks = Config.getInteger("BufferCache.blocks", 0);
+		blockSize = Config.getInteger("BufferCache.blockSize", Processor.pageSize);
+		String policy = Config.getString("BufferCache.policy", "2q");
+		long interval = Config.getInteger("BufferCache.flushInterval", 100000);
+		Lib.assertTrue(numBlocks > 0 && blockSize > 0 && interval >= 0,
+				"bad buffer cache parameters");
+		Lib.assertTrue(policy.equals("lru") || policy.equals("2q"),
+				"BufferCache.policy must be lru or 2q");
+
+		twoQueue = policy.equals("2q");
+		maxProbation = twoQueue ? Math.max(1, numBlocks / 4) : 0;
+		maxGhosts = numBlocks / 2;
+
+		if (interval > 0) {
+			final long flushInterval = interval;
+			new KThread(new Runnable() {
+				public void run() {
+					while (true) {
+						ThreadedKernel.alarm.waitUntil(flushInterval);
+						sync();
+					}
+				}
+			}).setName("buffer flusher").fork();
+		}
+	}
+
+	public OpenFile open(String name, boolean create) {
+		OpenFile inner = fileSystem.open(name, create);
+		if (inner == null) {
+			return null;
+		}
+
+		lock.acquire();
+		CachedFile file = files.get(name);
+		if (file == null) {
+			file = new CachedFile(name, nextFileId++);
+			files.put(name, file);
+		}
+		if (create) {
+			// the file system truncates a file it opens to create
+			discard(file);
+			file.length = file.hostLength = inner.length();
+		}
+		if (file.inner == null) {
+			file.inner = inner;
+			file.length = file.hostLength = inner.length();
+			inner = null;
+		}
+		file.numOpen++;
+		lock.release();
+
+		if (inner != null) {
+			inner.close();
+		}
+		return new CachedOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+		CachedFile file = files.remove(name);
+		if (file != null) {
+			discard(file);
+		}
+		lock.release();
+
+		return fileSystem.remove(name);
+	}
+
+	public int getOpenCount() {
+		return fileSystem.getOpenCount();
+	}
+
+	/**
+	 * Return the file system this cache is in front of.
+	 *
+	 * @return the cached file system.
+	 */
+	public FileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	/**
+	 * Write every dirty block back to its file. Called before the kernel
+	 * halts.
+	 */
+	public void sync() {
+		lock.acquire();
+		flush(null);
+		lock.release();
+	}
+
+	/**
+	 * Return a description of the cache.
+	 *
+	 * @return the description.
+	 */
+	public String toString() {
+		return (twoQueue ? "2Q" : "LRU") + ", " + numBlocks + " blocks of "
+				+ blockSize + " bytes, " + (probation.size() + protectedBlocks.size())
+				+ " in use";
+	}
+
+	/**
+	 * The state of a file shared by its open instances: the file's blocks
+	 * are cached under its id, and the first instance opened in the
+	 * underlying file system is kept to read and write them.
+	 */
+	private class CachedFile {
+		CachedFile(String name, int id) {
+			this.name = name;
+			this.id = id;
+		}
+
+		String name;
+
+		int id;
+
+		OpenFile inner = null;
+
+		int numOpen = 0;
+
+		// the length as seen through the cache, and as written to the file
+		int length, hostLength;
+	}
+
+	private static class Block {
+		Block(CachedFile file, int index, int size) {
+			this.file = file;
+			this.index = index;
+			data = new byte[size];
+		}
+
+		CachedFile file;
+
+		int index;
+
+		byte[] data;
+
+		boolean dirty = false;
+
+		// being read or written back, so not to be touched
+		boolean busy = true;
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(BufferCache.this, file.name);
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || length < 0 || offset < 0
+					|| offset + length > buf.length) {
+				return -1;
+			}
+
+			lock.acquire();
+			int end = Math.min(pos + length, file.length);
+			int done = 0;
+			while (pos + done < end) {
+				int where = pos + done;
+				Block block = getBlock(file, where / blockSize, true);
+				int amount = Math.min(end - where, blockSize - where % blockSize);
+				System.arraycopy(block.data, where % blockSize, buf, offset + done, amount);
+				done += amount;
+			}
+			lock.release();
+			return done;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || length < 0 || offset < 0
+					|| offset + length > buf.length) {
+				return -1;
+			}
+
+			lock.acquire();
+			int done = 0;
+			while (done < length) {
+				int where = pos + done;
+				int amount = Math.min(length - done, blockSize - where % blockSize);
+				// a block about to be overwritten whole need not be read
+				Block block = getBlock(file, where / blockSize, amount < blockSize);
+				System.arraycopy(buf, offset + done, block.data, where % blockSize, amount);
+				block.dirty = true;
+				done += amount;
+				file.length = Math.max(file.length, where + amount);
+			}
+			lock.release();
+			return done;
+		}
+
+		public int length() {
+			return file == null ? -1 : file.length;
+		}
+
+		public void close() {
+			if (file == null) {
+				return;
+			}
+
+			// flush and let go of the file atomically, so no write-back can
+			// start after the last instance closes it
+			lock.acquire();
+			flush(file);
+			OpenFile inner = null;
+			if (--file.numOpen == 0) {
+				inner = file.inner;
+				file.inner = null;
+			}
+			lock.release();
+
+			if (inner != null) {
+				inner.close();
+			}
+			file = null;
+		}
+
+		private CachedFile file;
+	}
+
+	/**
+	 * Find a block in the cache, or make room for it and bring it in. Must
+	 * hold <tt>lock</tt>, which is released while waiting for I/O.
+	 */
+	private Block getBlock(CachedFile file, int index, boolean fill) {
+		long key = key(file, index);
+		while (true) {
+			Block block = probation.get(key);
+			if (block == null) {
+				block = protectedBlocks.get(key);
+			}
+			if (block != null) {
+				if (block.busy) {
+					blockReady.sleep();
+					continue;
+				}
+				Machine.stats().numCacheHits++;
+				return block;
+			}
+
+			if (probation.size() + protectedBlocks.size() >= numBlocks) {
+				if (!evict()) {
+					blockReady.sleep();
+				}
+				continue;
+			}
+
+			Machine.stats().numCacheMisses++;
+			block = new Block(file, index, blockSize);
+			if (ghosts.remove(key) != null || !twoQueue) {
+				protectedBlocks.put(key, block);
+			}
+			else {
+				probation.put(key, block);
+			}
+
+			int start = index * blockSize;
+			if (fill && start < file.hostLength) {
+				lock.release();
+				file.inner.read(start, block.data, 0, blockSize);
+				lock.acquire();
+			}
+			block.busy = false;
+			blockReady.wakeAll();
+			return block;
+		}
+	}
+
+	/**
+	 * Make room for a block: drop a clean block, or start writing back a
+	 * dirty one. Must hold <tt>lock</tt>.
+	 *
+	 * @return <tt>false</tt> if every block is busy.
+	 */
+	private boolean evict() {
+		LinkedHashMap<Long, Block> queue = probation.size() > maxProbation ? probation
+				: protectedBlocks;
+		Block victim = oldest(queue);
+		if (victim == null) {
+			queue = queue == probation ? protectedBlocks : probation;
+			victim = oldest(queue);
+		}
+		if (victim == null) {
+			return false;
+		}
+
+		if (victim.dirty) {
+			writeBack(victim);
+			return true;
+		}
+
+		long key = key(victim.file, victim.index);
+		queue.remove(key);
+		if (queue == probation && maxGhosts > 0) {
+			ghosts.put(key, Boolean.TRUE);
+			if (ghosts.size() > maxGhosts) {
+				ghosts.remove(ghosts.keySet().iterator().next());
+			}
+		}
+		return true;
+	}
+
+	private static Block oldest(LinkedHashMap<Long, Block> queue) {
+		for (Block block : queue.values()) {
+			if (!block.busy) {
+				return block;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Write back the dirty blocks of a file, or of every file if
+	 * <tt>file</tt> is <tt>null</tt>. Must hold <tt>lock</tt>.
+	 */
+	private void flush(CachedFile file) {
+		while (true) {
+			// a busy block may be being written back by another thread, which
+			// must finish before the file is closed
+			Block next = null;
+			for (Block block : allBlocks()) {
+				if ((block.dirty || block.busy) && (file == null || block.file == file)) {
+					next = block;
+					if (block.dirty) {
+						break;
+					}
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			if (next.dirty) {
+				writeBack(next);
+			}
+			else {
+				blockReady.sleep();
+			}
+		}
+	}
+
+	/**
+	 * Write a dirty block to its file. Must hold <tt>lock</tt>, which is
+	 * released during the write.
+	 */
+	private void writeBack(Block block) {
+		CachedFile file = block.file;
+		int start = block.index * blockSize;
+		int amount = Math.min(blockSize, file.length - start);
+
+		block.busy = true;
+		block.dirty = false;
+		if (amount > 0 && file.inner != null) {
+			Machine.stats().numCacheWriteBacks++;
+			lock.release();
+			file.inner.write(start, block.data, 0, amount);
+			lock.acquire();
+			file.hostLength = Math.max(file.hostLength, start + amount);
+		}
+		block.busy = false;
+		blockReady.wakeAll();
+	}
+
+	/**
+	 * Forget the cached blocks of a file without writing them back. Must hold
+	 * <tt>lock</tt>.
+	 */
+	private void discard(CachedFile file) {
+		while (true) {
+			boolean waited = false;
+			for (Block block : allBlocks()) {
+				if (block.file == file && block.busy) {
+					blockReady.sleep();
+					waited = true;
+					break;
+				}
+			}
+			if (!waited) {
+				break;
+			}
+		}
+		for (LinkedHashMap<Long, Block> queue : queues) {
+			Iterator<Block> i = queue.values().iterator();
+			while (i.hasNext()) {
+				if (i.next().file == file) {
+					i.remove();
+				}
+			}
+		}
+		file.length = file.hostLength = 0;
+	}
+
+	private ArrayList<Block> allBlocks() {
+		ArrayList<Block> blocks = new ArrayList<Block>(probation.values());
+		blocks.addAll(protectedBlocks.values());
+		return blocks;
+	}
+
+	private static long key(CachedFile file, int index) {
+		return ((long) file.id << 32) | (index & 0xFFFFFFFFL);
+	}
+
+	private FileSystem fileSystem;
+
+	private int numBlocks, blockSize, maxProbation, maxGhosts;
+
+	private boolean twoQueue;
+
+	private Lock lock = new Lock();
+
+	private Condition blockReady = new Condition(lock);
+
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	private int nextFileId = 0;
+
+	// blocks referenced once, oldest first; empty under LRU
+	private LinkedHashMap<Long, Block> probation = new LinkedHashMap<Long, Block>();
+
+	// blocks referenced again, least recently used first
+	private LinkedHashMap<Long, Block> protectedBlocks = new LinkedHashMap<Long, Block>(
+			16, 0.75f, true);
+
+	@SuppressWarnings("unchecked")
+	private LinkedHashMap<Long, Block>[] queues = new LinkedHashMap[] { probation,
+			protectedBlocks };
+
+	// keys of blocks recently evicted from probation, oldest first
+	private LinkedHashMap<Long, Boolean> ghosts = new LinkedHashMap<Long, Boolean>();
+}
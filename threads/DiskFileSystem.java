@@ -0,0 +1,838 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+/**
+ * A file system on the simulated disk. It is chosen with the
+ * <tt>nachos.conf</tt> key
+ * <tt>ThreadedKernel.fileSystem = nachos.threads.DiskFileSystem</tt>, and needs
+ * <tt>Machine.disk = true</tt>.
+ *
+ * <p>
+ * The disk holds a superblock in sector 0, a bitmap of free sectors, a table
+ * of inodes, and then the sectors of files. A file's inode records its length
+ * and up to <tt>maxExtents</tt> extents, each a run of contiguous sectors. A
+ * file that grows extends its last extent in place when the following sectors
+ * are free, and otherwise takes a new extent from the first free run large
+ * enough. Space is reserved ahead of the file's length, as much as it already
+ * has up to <tt>maxReserve</tt> sectors, so a file written a little at a time
+ * still ends up in a few long runs. Inode 0 is the root directory, a file of
+ * fixed-size entries naming the other files; like the stub file system, the
+ * name space is flat.
+ *
+ * <p>
+ * The disk is mounted when it is first used, since reading it blocks, and
+ * formatted if it holds no file system or <tt>DiskFileSystem.format</tt> is
+ * set; <tt>DiskFileSystem.numInodes</tt> sets the size of the inode table of a
+ * new file system. A file that is not on the disk but is in the stub file
+ * system's directory is copied onto the disk when it is first opened, so
+ * programs can be run from the disk without preparing an image, unless
+ * <tt>DiskFileSystem.importFromHost</tt> is <tt>false</tt>. Removing a file
+ * that is also in the stub file system's directory, imported or not, leaves
+ * a whiteout entry in the directory so it is not copied in again; creating
+ * the file replaces the whiteout.
+ *
+ * <p>
+ * Metadata is written through to the disk as it changes. Different files can
+ * be read and written at the same time; <tt>fsLock</tt> guards the bitmap,
+ * the inodes and the directory, and each inode has a lock for its data, taken
+ * before <tt>fsLock</tt> when both are needed.
+ */
+public class DiskFileSystem implements FileSystem {
+	/**
+	 * Allocate a new disk file system. The disk is not read until the file
+	 * system is first used.
+	 */
+	public DiskFileSystem() {
+		Lib.assertTrue(Machine.disk() != null, "DiskFileSystem needs Machine.disk");
+
+		disk = new SynchDisk(Machine.disk());
+		numSectors = disk.getNumSectors();
+		numInodes = Config.getInteger("DiskFileSystem.numInodes", 128);
+		format = Config.getBoolean("DiskFileSystem.format", false);
+		importFromHost = Config.getBoolean("DiskFileSystem.importFromHost", true);
+		Lib.assertTrue(numInodes > 0, "DiskFileSystem.numInodes must be positive");
+	}
+
+	public OpenFile open(String name, boolean create) {
+		if (!checkName(name)) {
+			return null;
+		}
+
+		fsLock.acquire();
+		mount();
+
+		Integer number = directory.get(name);
+		byte[] contents = null;
+		if (number == null && !create && !whiteouts.contains(name)
+				&& importFromHost && Machine.stubFileSystem() != null) {
+			fsLock.release();
+			contents = readHostFile(name);
+			fsLock.acquire();
+			number = directory.get(name);
+			// removed while it was being read
+			if (whiteouts.contains(name)) {
+				contents = null;
+			}
+		}
+
+		Inode inode;
+		if (number != null) {
+			inode = inodes[number];
+			contents = null;
+		}
+		else if (create || contents != null) {
+			inode = allocateInode();
+			if (inode == null || !addEntry(name, inode.number)) {
+				if (inode != null) {
+					freeInode(inode);
+				}
+				fsLock.release();
+				return null;
+			}
+		}
+		else {
+			fsLock.release();
+			return null;
+		}
+
+		inode.numOpen++;
+		numOpen++;
+		OpenFile file = new DiskOpenFile(inode, name);
+
+		if (contents != null) {
+			// no one else can hold the lock of an inode just allocated
+			inode.dataLock.acquire();
+			fsLock.release();
+			writeData(inode, 0, contents, 0, contents.length);
+			inode.dataLock.release();
+			numImported++;
+		}
+		else {
+			fsLock.release();
+			if (create && number != null) {
+				// like the stub file system, creating a file truncates it
+				inode.dataLock.acquire();
+				truncate(inode);
+				inode.dataLock.release();
+			}
+		}
+		return file;
+	}
+
+	public boolean remove(String name) {
+		if (!checkName(name)) {
+			return false;
+		}
+
+		boolean onHost = importFromHost && Machine.stubFileSystem() != null
+				&& hostFileExists(name);
+
+		fsLock.acquire();
+		mount();
+
+		Integer number = directory.get(name);
+		boolean removed = false;
+		if (number != null) {
+			removeEntry(name);
+			Inode inode = inodes[number];
+			if (inode.numOpen > 0) {
+				inode.removed = true;
+			}
+			else {
+				freeInode(inode);
+			}
+			removed = true;
+		}
+
+		// a host file, imported or not, would be copied in again
+		if (onHost && !whiteouts.contains(name)) {
+			removed |= addWhiteout(name);
+		}
+
+		fsLock.release();
+		return removed;
+	}
+
+	public int getOpenCount() {
+		return numOpen;
+	}
+
+	/**
+	 * Return a description of the file system: how many files it holds, in
+	 * how many extents, how much of the disk is free, and what the disk
+	 * scheduler has done.
+	 *
+	 * @return the description.
+	 */
+	public String toString() {
+		if (!mounted) {
+			return "not mounted";
+		}
+
+		int numFiles = 0, numExtents = 0;
+		for (Inode inode : inodes) {
+			if (inode.type == typeFile) {
+				numFiles++;
+				numExtents += inode.numExtents;
+			}
+		}
+		return numFiles + " files in " + numExtents + " extents, "
+				+ (numSectors - used.cardinality()) + " of " + numSectors
+				+ " sectors free, " + numImported + " imported from the host, "
+				+ whiteouts.size() + " removed host files hidden; scheduler " + disk;
+	}
+
+	private class Inode {
+		Inode(int number) {
+			this.number = number;
+		}
+
+		/** Return the number of sectors the file's extents hold. */
+		int numAllocated() {
+			int total = 0;
+			for (int i = 0; i < numExtents; i++) {
+				total += count[i];
+			}
+			return total;
+		}
+
+		/** Return the disk sector holding a sector of the file. */
+		int sectorFor(int index) {
+			for (int i = 0; i < numExtents; i++) {
+				if (index < count[i]) {
+					return start[i] + index;
+				}
+				index -= count[i];
+			}
+			Lib.assertNotReached("sector beyond the file's extents");
+			return -1;
+		}
+
+		int number, type = typeFree, length = 0, numExtents = 0;
+
+		int[] start = new int[maxExtents], count = new int[maxExtents];
+
+		int numOpen = 0;
+
+		// removed from the directory, to be freed when its last open
+		// instance closes
+		boolean removed = false;
+
+		Lock dataLock = new Lock();
+	}
+
+	private class DiskOpenFile extends OpenFileWithPosition {
+		DiskOpenFile(Inode inode, String name) {
+			super(DiskFileSystem.this, name);
+			this.inode = inode;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0 || length < 0 || offset < 0
+					|| offset + length > buf.length) {
+				return -1;
+			}
+
+			inode.dataLock.acquire();
+			int amount = readData(inode, pos, buf, offset, length);
+			inode.dataLock.release();
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0 || length < 0 || offset < 0
+					|| offset + length > buf.length) {
+				return -1;
+			}
+
+			inode.dataLock.acquire();
+			int amount = writeData(inode, pos, buf, offset, length);
+			inode.dataLock.release();
+			return amount;
+		}
+
+		public int length() {
+			return inode == null ? -1 : inode.length;
+		}
+
+		public void close() {
+			if (inode == null) {
+				return;
+			}
+
+			fsLock.acquire();
+			numOpen--;
+			if (--inode.numOpen == 0 && inode.removed) {
+				freeInode(inode);
+			}
+			fsLock.release();
+			inode = null;
+		}
+
+		private Inode inode;
+	}
+
+	/**
+	 * Read from a file. The caller must hold the inode's data lock, or
+	 * <tt>fsLock</tt> for the directory.
+	 */
+	private int readData(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (pos >= inode.length) {
+			return 0;
+		}
+		length = Math.min(length, inode.length - pos);
+
+		byte[] sector = new byte[Disk.sectorSize];
+		int done = 0;
+		while (done < length) {
+			int where = pos + done;
+			int within = where % Disk.sectorSize;
+			int amount = Math.min(length - done, Disk.sectorSize - within);
+			int diskSector = inode.sectorFor(where / Disk.sectorSize);
+			if (amount == Disk.sectorSize) {
+				int run = run(inode, where / Disk.sectorSize, (length - done) / Disk.sectorSize);
+				disk.readSectors(diskSector, run, buf, offset + done);
+				amount = run * Disk.sectorSize;
+			}
+			else {
+				disk.readSector(diskSector, sector, 0);
+				System.arraycopy(sector, within, buf, offset + done, amount);
+			}
+			done += amount;
+		}
+		return length;
+	}
+
+	/**
+	 * Write to a file, growing it as needed. The caller must hold the inode's
+	 * data lock, or <tt>fsLock</tt> for the directory.
+	 *
+	 * @return the number of bytes written, or -1 if the disk has no room.
+	 */
+	private int writeData(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		if (!reserve(inode, Lib.divRoundUp(pos + length, Disk.sectorSize))) {
+			return -1;
+		}
+
+		// sectors past the end of the file may hold an old file's data
+		if (pos > inode.length) {
+			byte[] zeros = new byte[pos - inode.length];
+			writeData(inode, inode.length, zeros, 0, zeros.length);
+		}
+
+		byte[] sector = new byte[Disk.sectorSize];
+		int done = 0;
+		while (done < length) {
+			int where = pos + done;
+			int within = where % Disk.sectorSize;
+			int amount = Math.min(length - done, Disk.sectorSize - within);
+			int diskSector = inode.sectorFor(where / Disk.sectorSize);
+			if (amount == Disk.sectorSize) {
+				int run = run(inode, where / Disk.sectorSize, (length - done) / Disk.sectorSize);
+				disk.writeSectors(diskSector, run, buf, offset + done);
+				amount = run * Disk.sectorSize;
+			}
+			else {
+				if (where - within < inode.length) {
+					disk.readSector(diskSector, sector, 0);
+				}
+				else {
+					Arrays.fill(sector, (byte) 0);
+				}
+				System.arraycopy(buf, offset + done, sector, within, amount);
+				disk.writeSector(diskSector, sector, 0);
+			}
+			done += amount;
+		}
+
+		if (pos + length > inode.length) {
+			boolean held = fsLock.isHeldByCurrentThread();
+			if (!held) {
+				fsLock.acquire();
+			}
+			inode.length = pos + length;
+			writeInode(inode);
+			if (!held) {
+				fsLock.release();
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Return how many of a file's sectors, starting at one and at most
+	 * <i>max</i>, lie one after another on the disk, so they can be read or
+	 * written in one request.
+	 */
+	private int run(Inode inode, int fileSector, int max) {
+		int first = inode.sectorFor(fileSector);
+		int run = 1;
+		while (run < max && run < maxRun
+				&& inode.sectorFor(fileSector + run) == first + run) {
+			run++;
+		}
+		return run;
+	}
+
+	/**
+	 * Make sure a file's extents hold at least a number of sectors, taking
+	 * more than asked for when the file is already large. The caller must
+	 * hold the inode's data lock, or <tt>fsLock</tt> for the directory.
+	 *
+	 * @return <tt>false</tt> if the disk has no room, or the file would need
+	 * too many extents.
+	 */
+	private boolean reserve(Inode inode, int numSectorsNeeded) {
+		int allocated = inode.numAllocated();
+		if (allocated >= numSectorsNeeded) {
+			return true;
+		}
+
+		boolean held = fsLock.isHeldByCurrentThread();
+		if (!held) {
+			fsLock.acquire();
+		}
+
+		int need = numSectorsNeeded - allocated;
+		int want = Math.max(need, Math.min(allocated, maxReserve));
+
+		// grow the last extent in place while the next sectors are free
+		if (inode.numExtents > 0) {
+			int last = inode.numExtents - 1;
+			int end = inode.start[last] + inode.count[last];
+			int grown = 0;
+			while (grown < want && end + grown < numSectors && !used.get(end + grown)) {
+				grown++;
+			}
+			if (grown > 0) {
+				used.set(end, end + grown);
+				writeBitmap(end, end + grown);
+				inode.count[last] += grown;
+				need -= grown;
+				want -= grown;
+			}
+		}
+
+		while (need > 0 && inode.numExtents < maxExtents) {
+			int[] run = findRun(want, need);
+			if (run == null) {
+				break;
+			}
+			used.set(run[0], run[0] + run[1]);
+			writeBitmap(run[0], run[0] + run[1]);
+			inode.start[inode.numExtents] = run[0];
+			inode.count[inode.numExtents] = run[1];
+			inode.numExtents++;
+			need -= run[1];
+			want -= run[1];
+		}
+
+		writeInode(inode);
+		if (!held) {
+			fsLock.release();
+		}
+		return need <= 0;
+	}
+
+	/**
+	 * Find free sectors: the first run of <i>want</i>, or else the first of
+	 * <i>need</i>, or else the largest run there is. Must hold
+	 * <tt>fsLock</tt>.
+	 *
+	 * @return the run's first sector and length, or <tt>null</tt> if the disk
+	 * is full.
+	 */
+	private int[] findRun(int want, int need) {
+		int[] fitsNeed = null, largest = null;
+		int sector = dataStart;
+		while (sector < numSectors) {
+			int first = used.nextClearBit(sector);
+			if (first >= numSectors) {
+				break;
+			}
+			int end = Math.min(used.nextSetBit(first) < 0 ? numSectors
+					: used.nextSetBit(first), numSectors);
+			int length = end - first;
+			if (length >= want) {
+				return new int[] { first, want };
+			}
+			if (length >= need && fitsNeed == null) {
+				fitsNeed = new int[] { first, need };
+			}
+			if (largest == null || length > largest[1]) {
+				largest = new int[] { first, length };
+			}
+			sector = end;
+		}
+		return fitsNeed != null ? fitsNeed : largest;
+	}
+
+	/**
+	 * Empty a file and give back its sectors. The caller must hold the
+	 * inode's data lock.
+	 */
+	private void truncate(Inode inode) {
+		fsLock.acquire();
+		freeExtents(inode);
+		inode.length = 0;
+		writeInode(inode);
+		fsLock.release();
+	}
+
+	private void freeExtents(Inode inode) {
+		for (int i = 0; i < inode.numExtents; i++) {
+			used.clear(inode.start[i], inode.start[i] + inode.count[i]);
+			writeBitmap(inode.start[i], inode.start[i] + inode.count[i]);
+		}
+		inode.numExtents = 0;
+	}
+
+	/**
+	 * Take a free inode for a new file. Must hold <tt>fsLock</tt>.
+	 */
+	private Inode allocateInode() {
+		for (Inode inode : inodes) {
+			if (inode.type == typeFree) {
+				inode.type = typeFile;
+				inode.length = 0;
+				inode.numExtents = 0;
+				inode.removed = false;
+				writeInode(inode);
+				return inode;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Free a file's inode and sectors. Must hold <tt>fsLock</tt>.
+	 */
+	private void freeInode(Inode inode) {
+		freeExtents(inode);
+		inode.type = typeFree;
+		inode.length = 0;
+		inode.removed = false;
+		writeInode(inode);
+	}
+
+	/**
+	 * Write the sector of the inode table holding an inode. Must hold
+	 * <tt>fsLock</tt>.
+	 */
+	private void writeInode(Inode inode) {
+		int perSector = Disk.sectorSize / inodeSize;
+		int first = inode.number / perSector * perSector;
+		byte[] sector = new byte[Disk.sectorSize];
+		for (int i = first; i < first + perSector && i < numInodes; i++) {
+			Inode each = inodes[i];
+			int base = (i - first) * inodeSize;
+			Lib.bytesFromInt(sector, base, each.type);
+			Lib.bytesFromInt(sector, base + 4, each.length);
+			Lib.bytesFromInt(sector, base + 8, each.numExtents);
+			for (int j = 0; j < maxExtents; j++) {
+				Lib.bytesFromInt(sector, base + 12 + 8 * j, each.start[j]);
+				Lib.bytesFromInt(sector, base + 16 + 8 * j, each.count[j]);
+			}
+		}
+		disk.writeSector(inodeStart + inode.number / perSector, sector, 0);
+	}
+
+	private void readInodes() {
+		int perSector = Disk.sectorSize / inodeSize;
+		byte[] sector = new byte[Disk.sectorSize];
+		for (int i = 0; i < numInodes; i++) {
+			if (i % perSector == 0) {
+				disk.readSector(inodeStart + i / perSector, sector, 0);
+			}
+			Inode inode = inodes[i];
+			int base = (i % perSector) * inodeSize;
+			inode.type = Lib.bytesToInt(sector, base);
+			inode.length = Lib.bytesToInt(sector, base + 4);
+			inode.numExtents = Lib.bytesToInt(sector, base + 8);
+			for (int j = 0; j < maxExtents; j++) {
+				inode.start[j] = Lib.bytesToInt(sector, base + 12 + 8 * j);
+				inode.count[j] = Lib.bytesToInt(sector, base + 16 + 8 * j);
+			}
+		}
+	}
+
+	/**
+	 * Write the sectors of the bitmap covering a range of disk sectors. Must
+	 * hold <tt>fsLock</tt>.
+	 */
+	private void writeBitmap(int from, int to) {
+		int bitsPerSector = Disk.sectorSize * 8;
+		byte[] sector = new byte[Disk.sectorSize];
+		for (int s = from / bitsPerSector; s <= (to - 1) / bitsPerSector; s++) {
+			Arrays.fill(sector, (byte) 0);
+			for (int bit = 0; bit < bitsPerSector; bit++) {
+				if (used.get(s * bitsPerSector + bit)) {
+					sector[bit / 8] |= 1 << (bit % 8);
+				}
+			}
+			disk.writeSector(bitmapStart + s, sector, 0);
+		}
+	}
+
+	private void readBitmap() {
+		int bitsPerSector = Disk.sectorSize * 8;
+		byte[] sector = new byte[Disk.sectorSize];
+		used.clear();
+		for (int s = 0; s < bitmapSectors; s++) {
+			disk.readSector(bitmapStart + s, sector, 0);
+			for (int bit = 0; bit < bitsPerSector; bit++) {
+				if ((sector[bit / 8] & (1 << (bit % 8))) != 0) {
+					used.set(s * bitsPerSector + bit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a directory entry, in the slot of the name's whiteout or else the
+	 * first free slot. Must hold <tt>fsLock</tt>.
+	 */
+	private boolean addEntry(String name, int number) {
+		if (whiteouts.contains(name)) {
+			if (!writeEntry(slots.get(name), name, number + 1)) {
+				return false;
+			}
+			whiteouts.remove(name);
+			directory.put(name, number);
+			return true;
+		}
+
+		int slot = freeSlots.isEmpty() ? numSlots : freeSlots.pollFirst();
+		if (!writeEntry(slot, name, number + 1)) {
+			if (slot < numSlots) {
+				freeSlots.add(slot);
+			}
+			return false;
+		}
+		if (slot == numSlots) {
+			numSlots++;
+		}
+		directory.put(name, number);
+		slots.put(name, slot);
+		return true;
+	}
+
+	/**
+	 * Add a whiteout entry, which hides a host file. Must hold
+	 * <tt>fsLock</tt>.
+	 */
+	private boolean addWhiteout(String name) {
+		int slot = freeSlots.isEmpty() ? numSlots : freeSlots.pollFirst();
+		if (!writeEntry(slot, name, whiteout)) {
+			if (slot < numSlots) {
+				freeSlots.add(slot);
+			}
+			return false;
+		}
+		if (slot == numSlots) {
+			numSlots++;
+		}
+		whiteouts.add(name);
+		slots.put(name, slot);
+		return true;
+	}
+
+	private void removeEntry(String name) {
+		int slot = slots.remove(name);
+		directory.remove(name);
+		writeEntry(slot, "", 0);
+		freeSlots.add(slot);
+	}
+
+	// an entry is the inode number plus one, 0 for a free slot or whiteout
+	// for a removed host file, and the name
+	private boolean writeEntry(int slot, String name, int value) {
+		byte[] entry = new byte[entrySize];
+		Lib.bytesFromInt(entry, 0, value);
+		byte[] bytes = name.getBytes();
+		System.arraycopy(bytes, 0, entry, 4, bytes.length);
+		return writeData(inodes[rootInode], slot * entrySize, entry, 0, entrySize) == entrySize;
+	}
+
+	private void readDirectory() {
+		Inode root = inodes[rootInode];
+		byte[] contents = new byte[root.length];
+		readData(root, 0, contents, 0, contents.length);
+		numSlots = contents.length / entrySize;
+		for (int slot = 0; slot < numSlots; slot++) {
+			int value = Lib.bytesToInt(contents, slot * entrySize);
+			if (value == 0) {
+				freeSlots.add(slot);
+				continue;
+			}
+			int length = 0;
+			while (length < maxNameLength && contents[slot * entrySize + 4 + length] != 0) {
+				length++;
+			}
+			String name = new String(contents, slot * entrySize + 4, length);
+			if (value == whiteout) {
+				whiteouts.add(name);
+			}
+			else {
+				directory.put(name, value - 1);
+			}
+			slots.put(name, slot);
+		}
+	}
+
+	/**
+	 * Read the file system from the disk, formatting it first if need be.
+	 * Must hold <tt>fsLock</tt>.
+	 */
+	private void mount() {
+		if (mounted) {
+			return;
+		}
+		mounted = true;
+
+		byte[] sector = new byte[Disk.sectorSize];
+		disk.readSector(0, sector, 0);
+		boolean valid = Lib.bytesToInt(sector, 0) == magic
+				&& Lib.bytesToInt(sector, 4) == version
+				&& Lib.bytesToInt(sector, 8) == numSectors;
+		if (valid && !format) {
+			numInodes = Lib.bytesToInt(sector, 12);
+		}
+
+		bitmapStart = 1;
+		bitmapSectors = Lib.divRoundUp(numSectors, Disk.sectorSize * 8);
+		inodeStart = bitmapStart + bitmapSectors;
+		dataStart = inodeStart + Lib.divRoundUp(numInodes, Disk.sectorSize / inodeSize);
+		Lib.assertTrue(dataStart < numSectors, "disk too small for the file system");
+
+		inodes = new Inode[numInodes];
+		for (int i = 0; i < numInodes; i++) {
+			inodes[i] = new Inode(i);
+		}
+
+		if (valid && !format) {
+			readBitmap();
+			readInodes();
+			readDirectory();
+			return;
+		}
+
+		used.clear();
+		used.set(0, dataStart);
+		writeBitmap(0, numSectors);
+		for (int i = 0; i < numInodes; i += Disk.sectorSize / inodeSize) {
+			writeInode(inodes[i]);
+		}
+		inodes[rootInode].type = typeDirectory;
+		writeInode(inodes[rootInode]);
+
+		Arrays.fill(sector, (byte) 0);
+		Lib.bytesFromInt(sector, 0, magic);
+		Lib.bytesFromInt(sector, 4, version);
+		Lib.bytesFromInt(sector, 8, numSectors);
+		Lib.bytesFromInt(sector, 12, numInodes);
+		disk.writeSector(0, sector, 0);
+	}
+
+	/**
+	 * Read a whole file from the stub file system, or return <tt>null</tt> if
+	 * it is not there.
+	 */
+	private byte[] readHostFile(String name) {
+		OpenFile host = Machine.stubFileSystem().open(name, false);
+		if (host == null) {
+			return null;
+		}
+		byte[] contents = new byte[Math.max(0, host.length())];
+		int amount = host.read(0, contents, 0, contents.length);
+		host.close();
+		return amount == contents.length ? contents : null;
+	}
+
+	private boolean hostFileExists(String name) {
+		OpenFile host = Machine.stubFileSystem().open(name, false);
+		if (host == null) {
+			return false;
+		}
+		host.close();
+		return true;
+	}
+
+	private static boolean checkName(String name) {
+		if (name.length() == 0 || name.length() > maxNameLength) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c <= ' ' || c >= 0x7F || c == '/') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final int magic = 0x4e414653;
+
+	private static final int version = 1;
+
+	private static final int typeFree = 0, typeFile = 1, typeDirectory = 2;
+
+	/** The most extents a file may have. */
+	private static final int maxExtents = 6;
+
+	/** The most sectors reserved ahead of a file's length. */
+	private static final int maxReserve = 64;
+
+	/** The most sectors read or written in one request. */
+	private static final int maxRun = 16;
+
+	// type, length, extent count, and the extents, padded
+	private static final int inodeSize = 64;
+
+	private static final int entrySize = 32, maxNameLength = entrySize - 4;
+
+	private static final int rootInode = 0;
+
+	// the value of a directory entry that hides a host file
+	private static final int whiteout = -1;
+
+	private SynchDisk disk;
+
+	private int numSectors, numInodes;
+
+	private boolean format, importFromHost;
+
+	private boolean mounted = false;
+
+	private int bitmapStart, bitmapSectors, inodeStart, dataStart;
+
+	private Lock fsLock = new Lock();
+
+	private BitSet used = new BitSet();
+
+	private Inode[] inodes;
+
+	// file name to inode number, and to directory slot, including whiteouts
+	private HashMap<String, Integer> directory = new HashMap<String, Integer>();
+
+	private HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+	// names of removed host files
+	private HashSet<String> whiteouts = new HashSet<String>();
+
+	private TreeSet<Integer> freeSlots = new TreeSet<Integer>();
+
+	private int numSlots = 0;
+
+	private int numOpen = 0, numImported = 0;
+}
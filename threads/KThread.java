@@ -105,6 +105,8 @@ public class KThread {
 	 */
 	public KThread setName(String name) {
 		this.name = name;
+		if (Tracer.compiled)
+			Tracer.setEventName(Tracer.catContextSwitch, id, name);
 		return this;
 	}
 
@@ -375,6 +377,9 @@ public class KThread {
 
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
+		if (Tracer.compiled)
+			Tracer.record(Tracer.catContextSwitch, id, currentThread.id,
+					currentThread.status, 0);
 
 		currentThread = this;
 
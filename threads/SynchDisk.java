@@ -0,0 +1,305 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A synchronous interface to the machine's disk. Reading or writing blocks
+ * the calling thread until the disk's interrupt says the request is done.
+ *
+ * <p>
+ * Requests from many threads wait in a queue while the disk is busy, and
+ * the next one is chosen by the policy named with the <tt>nachos.conf</tt>
+ * key <tt>SynchDisk.scheduler</tt>: <tt>fifo</tt> in arrival order,
+ * <tt>scan</tt> sweeping the head back and forth across the disk,
+ * <tt>clook</tt> sweeping upward and then jumping back to the lowest request,
+ * or <tt>deadline</tt>, which is C-LOOK except that a request waiting past its
+ * deadline (<tt>SynchDisk.readDeadline</tt> or
+ * <tt>SynchDisk.writeDeadline</tt> ticks) goes first. Queued requests for
+ * sectors adjacent to the chosen one, in the same direction, are merged into
+ * a single disk request of up to <tt>SynchDisk.maxMerge</tt> sectors, which
+ * pays for one seek and one rotational delay.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new <tt>SynchDisk</tt>.
+	 *
+	 * @param disk the disk to use.
+	 */
+	public SynchDisk(Disk disk) {
+		this.disk = disk;
+
+		String name = Config.getString("SynchDisk.scheduler", "clook");
+		policy = -1;
+		for (int i = 0; i < policyNames.length; i++) {
+			if (policyNames[i].equals(name))
+				policy = i;
+		}
+		Lib.assertTrue(policy >= 0, "SynchDisk.scheduler must be fifo, scan, clook or deadline");
+		maxMerge = Config.getInteger("SynchDisk.maxMerge", 16);
+		readDeadline = Config.getInteger("SynchDisk.readDeadline", 20000);
+		writeDeadline = Config.getInteger("SynchDisk.writeDeadline", 100000);
+		Lib.assertTrue(maxMerge > 0 && readDeadline > 0 && writeDeadline > 0,
+				"bad disk scheduler parameters");
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		});
+	}
+
+	/**
+	 * Return the number of sectors on the disk.
+	 *
+	 * @return the number of sectors.
+	 */
+	public int getNumSectors() {
+		return disk.getNumSectors();
+	}
+
+	/**
+	 * Read a sector, blocking until it is read.
+	 *
+	 * @param sector the sector to read.
+	 * @param data where to put the sector.
+	 * @param offset the offset in <i>data</i> of the sector's first byte.
+	 */
+	public void readSector(int sector, byte[] data, int offset) {
+		readSectors(sector, 1, data, offset);
+	}
+
+	/**
+	 * Write a sector, blocking until it is written.
+	 *
+	 * @param sector the sector to write.
+	 * @param data the data to write.
+	 * @param offset the offset in <i>data</i> of the sector's first byte.
+	 */
+	public void writeSector(int sector, byte[] data, int offset) {
+		writeSectors(sector, 1, data, offset);
+	}
+
+	/**
+	 * Read consecutive sectors, blocking until they are read.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors.
+	 * @param data where to put the sectors.
+	 * @param offset the offset in <i>data</i> of the first sector's first byte.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		submit(new Request(sector, count, data, offset, false));
+	}
+
+	/**
+	 * Write consecutive sectors, blocking until they are written.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors.
+	 * @param data the data to write.
+	 * @param offset the offset in <i>data</i> of the first sector's first byte.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		submit(new Request(sector, count, data, offset, true));
+	}
+
+	/**
+	 * Return a description of the scheduler and its counters.
+	 *
+	 * @return the description.
+	 */
+	public String toString() {
+		return policyNames[policy] + ", " + numRequests + " requests in "
+				+ numDispatches + " disk requests (" + numMerged + " merged), queue depth mean "
+				+ String.format("%.2f", numRequests == 0 ? 0.0 : (double) queueDepthSum / numRequests)
+				+ ", max " + maxQueueDepth + ", seek distance mean "
+				+ String.format("%.2f", numDispatches == 0 ? 0.0 : (double) seekDistanceSum / numDispatches)
+				+ " tracks";
+	}
+
+	private class Request {
+		Request(int sector, int count, byte[] data, int offset, boolean writing) {
+			this.sector = sector;
+			this.count = count;
+			this.data = data;
+			this.offset = offset;
+			this.writing = writing;
+			deadline = Machine.timer().getTime() + (writing ? writeDeadline : readDeadline);
+		}
+
+		int sector, count, offset;
+
+		byte[] data;
+
+		boolean writing;
+
+		long deadline;
+
+		Semaphore done = new Semaphore(0);
+	}
+
+	private void submit(Request request) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		numRequests++;
+		queueDepthSum += queue.size() + (batch != null ? 1 : 0);
+		queue.add(request);
+		maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+		if (batch == null)
+			dispatch();
+
+		Machine.interrupt().restore(intStatus);
+
+		request.done.P();
+	}
+
+	/**
+	 * Choose the next requests and start them. Called with interrupts
+	 * disabled, when the disk is idle.
+	 */
+	private void dispatch() {
+		if (queue.isEmpty())
+			return;
+
+		Request first = queue.remove(choose());
+
+		// merge queued requests that continue the run at either end
+		batch = new ArrayList<Request>();
+		batch.add(first);
+		int start = first.sector, end = first.sector + first.count;
+		boolean merged = true;
+		while (merged && policy != fifo) {
+			merged = false;
+			for (int i = 0; i < queue.size(); i++) {
+				Request next = queue.get(i);
+				if (next.writing != first.writing
+						|| end - start + next.count > maxMerge)
+					continue;
+				if (next.sector == end) {
+					end += next.count;
+					batch.add(next);
+				}
+				else if (next.sector + next.count == start) {
+					start = next.sector;
+					batch.add(0, next);
+				}
+				else {
+					continue;
+				}
+				queue.remove(i);
+				numMerged++;
+				merged = true;
+				break;
+			}
+		}
+
+		int track = start / disk.getSectorsPerTrack();
+		seekDistanceSum += Math.abs(track - disk.getHeadTrack());
+		numDispatches++;
+		headSector = end;
+
+		if (batch.size() == 1) {
+			bounce = null;
+			if (first.writing)
+				disk.writeRequest(first.sector, first.count, first.data, first.offset);
+			else
+				disk.readRequest(first.sector, first.count, first.data, first.offset);
+			return;
+		}
+
+		bounce = new byte[(end - start) * Disk.sectorSize];
+		if (first.writing) {
+			for (Request request : batch)
+				System.arraycopy(request.data, request.offset, bounce,
+						(request.sector - start) * Disk.sectorSize,
+						request.count * Disk.sectorSize);
+			disk.writeRequest(start, end - start, bounce, 0);
+		}
+		else {
+			disk.readRequest(start, end - start, bounce, 0);
+		}
+		bounceStart = start;
+	}
+
+	/**
+	 * Return the index in the queue of the request to serve next.
+	 */
+	private int choose() {
+		if (policy == fifo)
+			return 0;
+
+		if (policy == deadline) {
+			int oldest = 0;
+			for (int i = 1; i < queue.size(); i++) {
+				if (queue.get(i).deadline < queue.get(oldest).deadline)
+					oldest = i;
+			}
+			if (queue.get(oldest).deadline <= Machine.timer().getTime())
+				return oldest;
+		}
+
+		// the nearest request ahead of the head, in the direction of travel
+		int ahead = -1, lowest = 0, highest = 0;
+		for (int i = 0; i < queue.size(); i++) {
+			int sector = queue.get(i).sector;
+			if (sector < queue.get(lowest).sector)
+				lowest = i;
+			if (sector > queue.get(highest).sector)
+				highest = i;
+			boolean inDirection = goingUp ? sector >= headSector : sector <= headSector;
+			if (inDirection && (ahead < 0
+					|| Math.abs(sector - headSector) < Math.abs(queue.get(ahead).sector - headSector)))
+				ahead = i;
+		}
+		if (ahead >= 0)
+			return ahead;
+
+		if (policy == scan) {
+			goingUp = !goingUp;
+			return goingUp ? lowest : highest;
+		}
+		// C-LOOK and deadline go back to the lowest request
+		return lowest;
+	}
+
+	private void requestDone() {
+		for (Request request : batch) {
+			if (bounce != null && !request.writing)
+				System.arraycopy(bounce, (request.sector - bounceStart) * Disk.sectorSize,
+						request.data, request.offset, request.count * Disk.sectorSize);
+			request.done.V();
+		}
+		batch = null;
+		bounce = null;
+
+		dispatch();
+	}
+
+	private static final int fifo = 0, scan = 1, clook = 2, deadline = 3;
+
+	private static final String[] policyNames = { "fifo", "scan", "clook", "deadline" };
+
+	private Disk disk;
+
+	private int policy, maxMerge, readDeadline, writeDeadline;
+
+	private ArrayList<Request> queue = new ArrayList<Request>();
+
+	// the requests the disk is working on, and the buffer they share
+	private ArrayList<Request> batch = null;
+
+	private byte[] bounce = null;
+
+	private int bounceStart;
+
+	// where the last request left the head, and which way SCAN is sweeping
+	private int headSector = 0;
+
+	private boolean goingUp = true;
+
+	private int numRequests = 0, numDispatches = 0, numMerged = 0, maxQueueDepth = 0;
+
+	private long queueDepthSum = 0, seekDistanceSum = 0;
+}
@@ -37,6 +37,10 @@ public class ThreadedKernel extends Kernel {
 		alarm = new Alarm();
 
 		Machine.interrupt().enable();
+
+		// put a buffer cache in front of the file system, if it has a size
+		if (fileSystem != null && Config.getInteger("BufferCache.blocks", 0) > 0)
+			fileSystem = new BufferCache(fileSystem);
 	}
 
 	/**
@@ -73,9 +77,25 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		syncFileSystem();
 		Machine.halt();
 	}
 
+	/**
+	 * Write back whatever the file system is holding in memory, before
+	 * halting.
+	 */
+	public static void syncFileSystem() {
+		FileSystem cached = fileSystem;
+		if (cached instanceof BufferCache) {
+			((BufferCache) cached).sync();
+			System.out.println("Buffer cache: " + cached);
+			cached = ((BufferCache) cached).getFileSystem();
+		}
+		if (cached instanceof DiskFileSystem)
+			System.out.println("Disk file system: " + cached);
+	}
+
 	/** Globally accessible reference to the scheduler. */
 	public static Scheduler scheduler = null;
 
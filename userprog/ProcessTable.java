@@ -0,0 +1,327 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The kernel's table of user processes, keyed by process ID.
+ *
+ * <p>
+ * A process is <i>running</i> from the time it is allocated until it exits,
+ * and then a <i>zombie</i> until its parent reaps it with <tt>join()</tt>.
+ * A zombie keeps only its exit status; its files and memory have already been
+ * released. When a process exits, its zombie children are reaped on the spot,
+ * since nobody else can join them, and its running children are handed to the
+ * init process (the first process created). Children that outlive init have
+ * no parent and are discarded as soon as they exit.
+ */
+public class ProcessTable {
+	/**
+	 * Allocate a new, empty process table.
+	 */
+	public ProcessTable() {
+	}
+
+	/**
+	 * Allocate a process ID for a new process and add it to the table as a
+	 * running process with no parent. The first process allocated becomes
+	 * the init process.
+	 *
+	 * @param process the new process.
+	 * @return the process ID.
+	 */
+	public int allocate(UserProcess process) {
+		lock.acquire();
+
+		Entry entry = new Entry(nextPid++, process);
+		entries.put(entry.pid, entry);
+		numRunning++;
+
+		if (init == null && entry.pid == 0)
+			init = entry;
+
+		lock.release();
+		return entry.pid;
+	}
+
+	/**
+	 * Make one running process the child of another.
+	 *
+	 * @param childPid the process ID of the child.
+	 * @param parentPid the process ID of the parent.
+	 */
+	public void setParent(int childPid, int parentPid) {
+		lock.acquire();
+
+		Entry child = entries.get(childPid);
+		Entry parent = entries.get(parentPid);
+		Lib.assertTrue(child != null && parent != null && child.parent == null);
+
+		child.parent = parent;
+		parent.children.add(child);
+
+		lock.release();
+	}
+
+	/**
+	 * Return the running process with the specified process ID.
+	 *
+	 * @param pid the process ID.
+	 * @return the process, or <tt>null</tt> if there is no running process
+	 * with that ID.
+	 */
+	public UserProcess get(int pid) {
+		lock.acquire();
+		Entry entry = entries.get(pid);
+		lock.release();
+
+		return entry == null ? null : entry.process;
+	}
+
+	/**
+	 * Return every process that has not yet exited.
+	 *
+	 * @return the running processes.
+	 */
+	public List<UserProcess> getRunning() {
+		lock.acquire();
+
+		List<UserProcess> running = new ArrayList<UserProcess>();
+		for (Entry entry : entries.values()) {
+			if (entry.state == stateRunning)
+				running.add(entry.process);
+		}
+
+		lock.release();
+		return running;
+	}
+
+	/**
+	 * Return the number of processes that have not yet exited.
+	 *
+	 * @return the number of running processes.
+	 */
+	public int numRunning() {
+		return numRunning;
+	}
+
+	/**
+	 * Remove a process that never ran, for example because its executable
+	 * could not be loaded.
+	 *
+	 * @param pid the process ID.
+	 */
+	public void discard(int pid) {
+		lock.acquire();
+
+		Entry entry = entries.remove(pid);
+		Lib.assertTrue(entry != null && entry.state == stateRunning
+				&& entry.children.isEmpty());
+
+		if (entry.parent != null)
+			entry.parent.children.remove(entry);
+		if (entry == init)
+			init = null;
+		numRunning--;
+
+		lock.release();
+	}
+
+	/**
+	 * Turn a running process into a zombie holding its exit status. Reaps
+	 * the process's zombie children, gives its running children to init,
+	 * and wakes its parent if the parent is waiting in <tt>join()</tt>.
+	 *
+	 * @param pid the process ID of the exiting process.
+	 * @param status the exit status.
+	 * @param normal <tt>false</tt> if the process is exiting because of an
+	 * unhandled exception.
+	 * @return the number of processes still running.
+	 */
+	public int exit(int pid, int status, boolean normal) {
+		lock.acquire();
+
+		Entry entry = entries.get(pid);
+		Lib.assertTrue(entry != null && entry.state == stateRunning);
+
+		entry.state = stateZombie;
+		entry.status = status;
+		entry.normal = normal;
+		entry.process = null;
+		numRunning--;
+
+		if (entry == init)
+			init = null;
+
+		for (Entry child : entry.children) {
+			if (child.state == stateZombie) {
+				entries.remove(child.pid);
+			}
+			else {
+				child.parent = init;
+				if (init != null)
+					init.children.add(child);
+			}
+		}
+		entry.children.clear();
+
+		if (entry.parent == null) {
+			// nobody can join an orphan, so reap it now
+			entries.remove(pid);
+		}
+		else {
+			entry.parent.childExited.wakeAll();
+		}
+
+		int result = numRunning;
+		lock.release();
+
+		Lib.debug(dbgProcess, "process " + pid + " exited, " + result
+				+ " still running, " + entries.size() + " in table");
+		return result;
+	}
+
+	/**
+	 * Wait for the specified child of the specified process to exit, and
+	 * then reap it.
+	 *
+	 * @param parentPid the process ID of the parent.
+	 * @param childPid the process ID of the child.
+	 * @return the reaped child, or <tt>null</tt> if <i>childPid</i> does not
+	 * refer to a child of <i>parentPid</i>.
+	 */
+	public Entry join(int parentPid, int childPid) {
+		lock.acquire();
+
+		Entry parent = entries.get(parentPid);
+		Entry child = entries.get(childPid);
+		if (parent == null || child == null || child.parent != parent) {
+			lock.release();
+			return null;
+		}
+
+		while (child.state != stateZombie)
+			parent.childExited.sleep();
+
+		reap(child);
+
+		lock.release();
+		return child;
+	}
+
+	/**
+	 * Wait for any child of the specified process to exit, and then reap it.
+	 *
+	 * @param parentPid the process ID of the parent.
+	 * @return the reaped child, or <tt>null</tt> if the process has no
+	 * children.
+	 */
+	public Entry joinAny(int parentPid) {
+		lock.acquire();
+
+		Entry parent = entries.get(parentPid);
+		Entry zombie = null;
+		while (parent != null && !parent.children.isEmpty()) {
+			for (Entry child : parent.children) {
+				if (child.state == stateZombie) {
+					zombie = child;
+					break;
+				}
+			}
+			if (zombie != null)
+				break;
+
+			parent.childExited.sleep();
+		}
+
+		if (zombie != null)
+			reap(zombie);
+
+		lock.release();
+		return zombie;
+	}
+
+	private void reap(Entry zombie) {
+		zombie.parent.children.remove(zombie);
+		zombie.parent = null;
+		entries.remove(zombie.pid);
+	}
+
+	/**
+	 * A process table entry.
+	 */
+	public class Entry {
+		Entry(int pid, UserProcess process) {
+			this.pid = pid;
+			this.process = process;
+		}
+
+		/**
+		 * Return the exit status of this process, if it has exited.
+		 *
+		 * @return the value the process passed to <tt>exit()</tt>.
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * Test whether this process exited by calling <tt>exit()</tt>, as
+		 * opposed to because of an unhandled exception.
+		 *
+		 * @return <tt>true</tt> if the process exited normally.
+		 */
+		public boolean exitedNormally() {
+			return normal;
+		}
+
+		/**
+		 * Return the process ID of this process.
+		 *
+		 * @return the process ID.
+		 */
+		public int getPid() {
+			return pid;
+		}
+
+		private final int pid;
+
+		private UserProcess process;
+
+		private Entry parent = null;
+
+		private Set<Entry> children = new LinkedHashSet<Entry>();
+
+		private int state = stateRunning;
+
+		private int status = 0;
+
+		private boolean normal = false;
+
+		private Condition childExited = new Condition(lock);
+	}
+
+	private Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+	private Entry init = null;
+
+	private int nextPid = 0;
+
+	private int numRunning = 0;
+
+	private Lock lock = new Lock();
+
+	private static final int stateRunning = 0;
+
+	private static final int stateZombie = 1;
+
+	private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,243 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A pair of submission and completion rings shared between a user process and
+ * the kernel. The rings live in pages of the process's own address space, so
+ * the process can queue many requests and reap their results without a trap
+ * per operation; a single <tt>ringsubmit()</tt> hands every queued request to
+ * a pool of kernel worker threads, which post completions back to the ring as
+ * the operations finish.
+ *
+ * <p>
+ * The ring occupies a page-aligned region laid out as follows (all fields are
+ * 32-bit words):
+ *
+ * <pre>
+ * header:  sq_head, sq_tail, cq_head, cq_tail, entries, (3 words padding)
+ * sq[entries]: opcode, fd, addr, len, offset, user_data, (2 words padding)
+ * cq[entries]: user_data, result
+ * </pre>
+ *
+ * <p>
+ * <tt>sq_tail</tt> and <tt>cq_head</tt> are written by the process,
+ * <tt>sq_head</tt>, <tt>cq_tail</tt> and <tt>entries</tt> by the kernel. The
+ * head and tail values are free-running counters; an entry's slot is its
+ * counter modulo <tt>entries</tt>.
+ */
+class SyscallRing {
+	static final int HEADER_SIZE = 32;
+	static final int SQE_SIZE = 32;
+	static final int CQE_SIZE = 8;
+	static final int MAX_ENTRIES = 64;
+
+	static final int OP_NOP = 0, OP_READ = 1, OP_WRITE = 2, OP_OPEN = 3,
+			OP_CLOSE = 4;
+
+	private static final int offSqHead = 0, offSqTail = 4, offCqHead = 8,
+			offCqTail = 12, offEntries = 16;
+
+	/**
+	 * Allocate a new ring for the specified process at the specified virtual
+	 * address. The caller must have checked that the region is mapped and
+	 * writable.
+	 *
+	 * @param process the process that owns the ring.
+	 * @param ringAddr the page-aligned virtual address of the ring.
+	 * @param entries the number of entries in each ring.
+	 */
+	SyscallRing(UserProcess process, int ringAddr, int entries) {
+		this.process = process;
+		this.ringAddr = ringAddr;
+		this.entries = entries;
+		this.sqAddr = ringAddr + HEADER_SIZE;
+		this.cqAddr = sqAddr + entries * SQE_SIZE;
+
+		startWorkers();
+
+		// the process starts with empty rings
+		writeWord(offSqHead, 0);
+		writeWord(offSqTail, 0);
+		writeWord(offCqHead, 0);
+		writeWord(offCqTail, 0);
+		writeWord(offEntries, entries);
+	}
+
+	/**
+	 * Return the number of bytes needed for a ring with the specified number
+	 * of entries.
+	 */
+	static int size(int entries) {
+		return HEADER_SIZE + entries * (SQE_SIZE + CQE_SIZE);
+	}
+
+	/**
+	 * Hand every queued submission to the worker threads, limited by the room
+	 * left in the completion ring.
+	 *
+	 * @return the number of requests submitted, or -1 if the ring is corrupt.
+	 */
+	int submit() {
+		lock.acquire();
+
+		int sqTail = readWord(offSqTail);
+		int pending = sqTail - sqHead;
+		if (pending < 0 || pending > entries) {
+			lock.release();
+			return -1;
+		}
+
+		// never let completions overrun entries the process has not reaped
+		int cqHead = readWord(offCqHead);
+		int room = entries - (cqTail - cqHead) - inFlight;
+		int count = Math.min(pending, Math.max(room, 0));
+
+		byte[] sqe = new byte[SQE_SIZE];
+		for (int i = 0; i < count; i++) {
+			int slot = (sqHead & (entries - 1)) * SQE_SIZE;
+			if (process.readVirtualMemory(sqAddr + slot, sqe) != SQE_SIZE)
+				break;
+
+			Request request = new Request();
+			request.ring = this;
+			request.opcode = Lib.bytesToInt(sqe, 0);
+			request.fd = Lib.bytesToInt(sqe, 4);
+			request.addr = Lib.bytesToInt(sqe, 8);
+			request.len = Lib.bytesToInt(sqe, 12);
+			request.offset = Lib.bytesToInt(sqe, 16);
+			request.userData = Lib.bytesToInt(sqe, 20);
+
+			sqHead++;
+			inFlight++;
+			workQueue.add(request);
+		}
+		writeWord(offSqHead, sqHead);
+
+		Lib.debug(dbgRing, "ring submit: " + count + " requests, "
+				+ inFlight + " in flight");
+
+		lock.release();
+		return count;
+	}
+
+	/**
+	 * Wait until at least <i>minComplete</i> completions are waiting to be
+	 * reaped, or until nothing is left in flight.
+	 *
+	 * @return the number of completions waiting to be reaped.
+	 */
+	int waitForCompletions(int minComplete) {
+		lock.acquire();
+		int available = cqTail - readWord(offCqHead);
+		while (available < minComplete && inFlight > 0) {
+			completed.sleep();
+			available = cqTail - readWord(offCqHead);
+		}
+		lock.release();
+		return available;
+	}
+
+	/**
+	 * Wait for every request in flight to complete. Called before the owning
+	 * process releases its files and memory.
+	 */
+	void drain() {
+		lock.acquire();
+		while (inFlight > 0)
+			completed.sleep();
+		lock.release();
+	}
+
+	/**
+	 * Post the result of a request to the completion ring.
+	 */
+	private void complete(Request request, int result) {
+		lock.acquire();
+
+		int slot = (cqTail & (entries - 1)) * CQE_SIZE;
+		byte[] cqe = new byte[CQE_SIZE];
+		Lib.bytesFromInt(cqe, 0, request.userData);
+		Lib.bytesFromInt(cqe, 4, result);
+		process.writeVirtualMemory(cqAddr + slot, cqe);
+
+		cqTail++;
+		writeWord(offCqTail, cqTail);
+
+		inFlight--;
+		completed.wakeAll();
+
+		lock.release();
+	}
+
+	private int readWord(int offset) {
+		byte[] word = new byte[4];
+		process.readVirtualMemory(ringAddr + offset, word);
+		return Lib.bytesToInt(word, 0);
+	}
+
+	private void writeWord(int offset, int value) {
+		process.writeVirtualMemory(ringAddr + offset, Lib.bytesFromInt(value));
+	}
+
+	/**
+	 * Start the worker threads shared by all rings, if they are not already
+	 * running. The number of workers is given by the <tt>nachos.conf</tt> key
+	 * <tt>UserKernel.ringWorkers</tt>.
+	 */
+	private static void startWorkers() {
+		if (workQueue != null)
+			return;
+
+		workQueue = new SynchList();
+
+		int numWorkers = Config.getInteger("UserKernel.ringWorkers", 4);
+		for (int i = 0; i < numWorkers; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					while (true) {
+						Request request = (Request) workQueue.removeFirst();
+						int result = request.ring.process.executeRingRequest(
+								request.opcode, request.fd, request.addr,
+								request.len, request.offset);
+						request.ring.complete(request, result);
+					}
+				}
+			}).setName("ring worker " + i).fork();
+		}
+	}
+
+	private static class Request {
+		SyscallRing ring;
+
+		int opcode, fd, addr, len, offset, userData;
+	}
+
+	/** The process that owns this ring. */
+	final UserProcess process;
+
+	/** The virtual address of the ring header. */
+	final int ringAddr;
+
+	/** The number of entries in each ring; always a power of two. */
+	final int entries;
+
+	private final int sqAddr, cqAddr;
+
+	// kernel copies of the kernel-owned indices
+	private int sqHead = 0;
+
+	private int cqTail = 0;
+
+	private int inFlight = 0;
+
+	private Lock lock = new Lock();
+
+	private Condition completed = new Condition(lock);
+
+	private static SynchList workQueue = null;
+
+	private static final char dbgRing = 'r';
+}
@@ -26,6 +26,7 @@ public class UserKernel extends ThreadedKernel {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
+		processTable = new ProcessTable();
 
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -122,15 +123,50 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Keep a process's syscall counters, so that they can be printed after
+	 * it exits. Called when the process is created.
+	 */
+	public static void addSyscallStats(int pid, SyscallStats stats) {
+		processSyscallStats.put(pid, stats);
+	}
+
+	/**
+	 * Print the syscall counters for all processes together, followed by the
+	 * counters of each process that has made a syscall, running or exited.
+	 * May be called at any time.
+	 */
+	public static void dumpSyscallStats() {
+		Machine.stats().syscalls.print("all processes");
+		dumpProcessSyscallStats();
+	}
+
+	// the syscall counters of each process that has made a syscall
+	private static void dumpProcessSyscallStats() {
+		for (Map.Entry<Integer, SyscallStats> entry : processSyscallStats.entrySet()) {
+			if (entry.getValue().getNumCalls() > 0)
+				entry.getValue().print("pid " + entry.getKey());
+		}
+	}
+
+	/**
+	 * Terminate this kernel. Never returns. Each process's syscall counters
+	 * are printed first; the totals follow from <tt>Stats.print()</tt> at
+	 * halt.
 	 */
 	public void terminate() {
+		dumpProcessSyscallStats();
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** Globally accessible reference to the process table. */
+	public static ProcessTable processTable;
+
+	// every process's syscall counters, by process ID
+	private static TreeMap<Integer, SyscallStats> processSyscallStats = new TreeMap<Integer, SyscallStats>();
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
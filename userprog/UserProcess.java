@@ -24,17 +24,16 @@ import java.util.*;
 public class UserProcess {
 	// static vars
 	static final int FD_TABLE_SIZE = 16;
-	static int globalPid = 0;
-	static int numProc = 0;
+	static final int IOV_MAX = 16;
+	static final int IO_CHUNK_SIZE = 16 * Processor.pageSize;
 	public static Lock bigLock = new Lock();
 	
 	// instance field
 	int pid;
 	OpenFile[] fileTable = new OpenFile[FD_TABLE_SIZE];
-	Queue<UserProcess> childrenList = new LinkedList<>();
-	Map<Integer, Integer> childrenStatus = new HashMap<>();
-	UserProcess parent;
 	boolean hasException = false;
+	SyscallRing ring = null;
+	SyscallStats syscallStats = new SyscallStats();
 
 	// pipe
 	static Map<String, List<Byte>> pipeTable = new HashMap<>();
@@ -49,16 +48,12 @@ public class UserProcess {
 	 */
 	public UserProcess() {
 		// one more process
-		bigLock.acquire();
-		numProc += 1;
-		
-		this.pid = globalPid;
-		globalPid += 1;
-		
+		this.pid = UserKernel.processTable.allocate(this);
+		UserKernel.addSyscallStats(pid, syscallStats);
+
 		// init fileTable
 		fileTable[0] = UserKernel.console.openForReading();
 		fileTable[1] = UserKernel.console.openForWriting();
-		bigLock.release();
 	}
 
 	/**
@@ -116,6 +111,7 @@ public class UserProcess {
 	 */
 	public void restoreState() {
 		Machine.processor().setPageTable(pageTable);
+		Machine.processor().setAddressSpace(pid);
 	}
 
 	/**
@@ -295,6 +291,7 @@ public class UserProcess {
 
 		try {
 			coff = new Coff(executable);
+			executableName = name;
 		}
 		catch (EOFException e) {
 			executable.close();
@@ -302,16 +299,18 @@ public class UserProcess {
 			return false;
 		}
 
-		// make sure the sections are contiguous and start at page 0
+		// make sure the sections are contiguous and start at page 0; a
+		// section may start on the last page of the one before it
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
-			if (section.getFirstVPN() != numPages) {
+			if (section.getFirstVPN() > numPages
+					|| (s == 0 && section.getFirstVPN() != 0)) {
 				coff.close();
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
-			numPages += section.getLength();
+			numPages = Math.max(numPages, section.getFirstVPN() + section.getLength());
 		}
 
 		// make sure the argv array will fit in one page
@@ -331,8 +330,9 @@ public class UserProcess {
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();
 
-		// next comes the stack; stack pointer initially points to top of it
-		numPages += stackPages;
+		// next comes the stack, after any room left for it and a heap to grow
+		// into; stack pointer initially points to top of it
+		numPages += growthPages() + stackPages;
 		initialSP = numPages * pageSize;
 
 		// and finally reserve 1 page for arguments
@@ -361,6 +361,15 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Return the number of pages of address space to leave between the
+	 * program and its stack, for a heap and the stack to grow into. None by
+	 * default; the stack is fixed and there is no heap.
+	 */
+	protected int growthPages() {
+		return 0;
+	}
+
 	/**
 	 * Allocates memory for this process, and loads the COFF sections into
 	 * memory. If this returns successfully, the process will definitely be run
@@ -378,29 +387,27 @@ public class UserProcess {
 		}
 
 		pageTable = new TranslationEntry[numPages];
-		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 
 			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 					+ " section (" + section.getLength() + " pages)");
+		}
 
-			for (int i = 0; i < section.getLength(); i++) {
-				int vpn = section.getFirstVPN() + i;
-				
-				// not enough memory
-				if(UserKernel.physMemory.size() == 0) {
-					coff.close();
-					Lib.debug(dbgProcess, "\tinsufficient physical memory");
-					bigLock.release();
-					return false;
-				}
-
-				Integer ppn = UserKernel.physMemory.poll();
-				boolean readOnly = section.isReadOnly();
-				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, readOnly, false, false);
-				section.loadPage(i, ppn);
+		// load sections a page at a time, since neighbors may share a page
+		for (int vpn = 0; vpn < coff.getNumPages(); vpn++) {
+			// not enough memory
+			if(UserKernel.physMemory.size() == 0) {
+				coff.close();
+				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+				bigLock.release();
+				return false;
 			}
+
+			Integer ppn = UserKernel.physMemory.poll();
+			boolean readOnly = coff.isReadOnlyPage(vpn);
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, readOnly, false, false);
+			coff.loadPage(vpn, ppn);
 		}
 
 		// load stack/arg stack + arg = 9 pages, rest are coff
@@ -467,6 +474,7 @@ public class UserProcess {
 		if(pid != 0) {
 			return -1;
 		}
+		ThreadedKernel.syncFileSystem();
 		Machine.halt();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
@@ -484,6 +492,15 @@ public class UserProcess {
 
 		Lib.debug(dbgProcess, "UserProcess.handleExit (" + status + ")");
 
+		if(Lib.test(dbgSyscallStats)) {
+			syscallStats.print("pid " + pid);
+		}
+
+		// let asynchronous requests finish before their files and memory go
+		if(ring != null) {
+			ring.drain();
+		}
+
 		// clean up fileTable
 		for(int i = 0; i < this.fileTable.length; i ++) {
 			if(this.fileTable[i] != null) {
@@ -492,33 +509,19 @@ public class UserProcess {
 			this.fileTable[i] = null;
 		}
 
-		// check child
-		while(this.childrenList.size() != 0) {
-			UserProcess child = childrenList.poll();
-			child.parent = null;
-		}
-
 		// clean memory
 		unloadSections();
 		
-		// update parent 
+		// become a zombie until the parent joins, children go to init
 		Lib.debug(dbgProcess, "has exception: " + hasException);
-		if(this.parent != null && !hasException) {
-			this.parent.childrenStatus.put(this.pid, status);
-		}
-		
-		bigLock.acquire();
-		numProc --;
-		Lib.debug(dbgProcess, "numProc is: " + numProc);
-		if(numProc > 0) {
-			bigLock.release();
-			Lib.debug(dbgProcess, "Process exit pid: " + pid);
+		int numRunning = UserKernel.processTable.exit(pid, status, !hasException);
+
+		Lib.debug(dbgProcess, "Process exit pid: " + pid);
+		if(numRunning > 0) {
 			KThread.finish();
 			return 0;
 		}
 		
-		Lib.debug(dbgProcess, "Process exit pid: " + pid);
-		bigLock.release();
 		Kernel.kernel.terminate();
 		return 0;
 	}
@@ -533,6 +536,13 @@ public class UserProcess {
 		}
 		return true;
 	}
+
+	/**
+	 * Test whether a user page may be written by the process.
+	 */
+	protected boolean isPageWritable(int vpn) {
+		return pageTable[vpn] != null && !pageTable[vpn].readOnly;
+	}
  
 	/**
 	 * Helper function to check file table
@@ -570,6 +580,84 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Return the file a descriptor refers to, or <tt>null</tt> if it is not
+	 * open or is a pipe.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+		if(!isFDValid(fd) || pipeFdTable[fd] != null) {
+			return null;
+		}
+		return fileTable[fd];
+	}
+
+	/**
+	 * Test whether the file a descriptor refers to is mapped into memory. A
+	 * mapped file's descriptor may not be read or written until it is
+	 * closed. Files are mapped only by <tt>VMProcess</tt>.
+	 */
+	protected boolean isMapped(int fd) {
+		return false;
+	}
+
+	/**
+	 * Called before a descriptor is closed, by <tt>close()</tt> or from the
+	 * syscall ring. Nothing to do here; <tt>VMProcess</tt> unmaps a file
+	 * mapped through the descriptor.
+	 */
+	protected void closingFile(int fd) {
+	}
+
+	/**
+	 * Called before a file is created, truncated, written, or removed by a
+	 * system call. Nothing to do here; <tt>VMProcess</tt> forgets the cached
+	 * text of an executable by that name.
+	 *
+	 * @param name the name of the file.
+	 */
+	protected void fileChanged(String name) {
+	}
+
+	// note a write to a file of the file system, not a console stream
+	private void fileWritten(OpenFile file) {
+		if(file.getFileSystem() != null) {
+			fileChanged(file.getName());
+		}
+	}
+
+	/**
+	 * Give a child made by <tt>fork()</tt> a copy of this process's file
+	 * descriptors. Files are opened again for the child, at the same
+	 * position; the console streams are the child's own, and pipes are
+	 * shared by name. A file that cannot be opened again is left closed.
+	 */
+	protected void copyFilesTo(UserProcess child) {
+		// let asynchronous requests finish, so the positions are final
+		if(ring != null) {
+			ring.drain();
+		}
+
+		for(int fd = 0; fd < FD_TABLE_SIZE; fd ++) {
+			child.pipeFdTable[fd] = pipeFdTable[fd];
+			OpenFile file = fileTable[fd];
+			if(file != null && file.getFileSystem() == null && child.fileTable[fd] != null) {
+				continue;
+			}
+			if(child.fileTable[fd] != null) {
+				child.fileTable[fd].close();
+				child.fileTable[fd] = null;
+			}
+			if(file != null && file.getFileSystem() != null) {
+				OpenFile copy = file.getFileSystem().open(file.getName(), false);
+				if(copy != null) {
+					copy.seek(file.tell());
+					child.fileTable[fd] = copy;
+				}
+			}
+		}
+		child.pipeCV = pipeCV;
+	}
+
 	private boolean isPipe(String name) {
 		if(name.startsWith("/pipe/") && name.length() > 6) {
 			return true;
@@ -624,6 +712,7 @@ public class UserProcess {
 		}
 
 		// if file exists, truncate
+		fileChanged(name);
 		OpenFile file = ThreadedKernel.fileSystem.open(name, true);
 		if (file == null) {
 			return -1;
@@ -697,6 +786,7 @@ public class UserProcess {
 		if(!isFDValid(fd)) {
 			return -1;
 		}
+		closingFile(fd);
 
 		// pipe
 		if(pipeFdTable[fd] != null) {
@@ -727,6 +817,7 @@ public class UserProcess {
 		}
 
 		// check is actually removed
+		fileChanged(name);
 		boolean removed = ThreadedKernel.fileSystem.remove(name);
 		if(!removed) {
 			return -1;
@@ -863,6 +954,7 @@ public class UserProcess {
 	
 		// read data from file
 		OpenFile file = this.fileTable[fd];
+		fileWritten(file);
 		int remaining = size;
 		int totalWriteCnt = 0;
 		
@@ -958,6 +1050,361 @@ public class UserProcess {
 		return totalWriteCnt;
 	}
 
+	/**
+	 * Helper function to read an iovec array from user memory. Each entry is
+	 * a buffer address followed by a length. Returns <tt>null</tt> if the
+	 * array or any entry in it is invalid.
+	 */
+	private int[][] readIovecs(int iovPtr, int iovcnt) {
+		if(iovcnt < 0 || iovcnt > IOV_MAX) {
+			return null;
+		}
+
+		int[][] iovs = new int[iovcnt][2];
+		if(iovcnt == 0) {
+			return iovs;
+		}
+
+		if(!isPtrValid(iovPtr)) {
+			return null;
+		}
+
+		byte[] entries = new byte[iovcnt * 8];
+		if(readVirtualMemory(iovPtr, entries) != entries.length) {
+			return null;
+		}
+
+		long totalLen = 0;
+		for(int i = 0; i < iovcnt; i ++) {
+			int base = Lib.bytesToInt(entries, i * 8);
+			int len = Lib.bytesToInt(entries, i * 8 + 4);
+			if(len < 0 || (len > 0 && !isPtrValid(base))) {
+				return null;
+			}
+
+			// total must fit in the return value
+			totalLen += len;
+			if(totalLen > Integer.MAX_VALUE) {
+				return null;
+			}
+
+			iovs[i][0] = base;
+			iovs[i][1] = len;
+		}
+		return iovs;
+	}
+
+	private static int iovecsLength(int[][] iovs) {
+		int totalLen = 0;
+		for(int[] iov : iovs) {
+			totalLen += iov[1];
+		}
+		return totalLen;
+	}
+
+	/**
+	 * Read from a file into the given user buffers. The file is read in
+	 * chunks of up to <tt>IO_CHUNK_SIZE</tt> bytes, so a request spanning
+	 * several buffers costs one file access per chunk instead of one per
+	 * page. If <tt>pos</tt> is negative the file pointer is used and
+	 * advanced, otherwise the file is read starting at <tt>pos</tt>.
+	 */
+	private int readFileToIovecs(OpenFile file, int pos, int[][] iovs) {
+		int totalLen = iovecsLength(iovs);
+		byte[] content = new byte[Math.min(totalLen, IO_CHUNK_SIZE)];
+		int iov = 0;
+		int iovOffset = 0;
+		int totalReadCnt = 0;
+
+		while(totalReadCnt < totalLen) {
+			int chunk = Math.min(content.length, totalLen - totalReadCnt);
+			int readCnt = pos < 0 ?
+				file.read(content, 0, chunk) :
+				file.read(pos + totalReadCnt, content, 0, chunk);
+			if(readCnt < 0) {
+				return totalReadCnt > 0 ? totalReadCnt : -1;
+			}
+
+			// scatter the chunk across the buffers
+			int copied = 0;
+			while(copied < readCnt) {
+				int amount = Math.min(readCnt - copied, iovs[iov][1] - iovOffset);
+				int writeCnt = writeVirtualMemory(iovs[iov][0] + iovOffset, content, copied, amount);
+				copied += writeCnt;
+				iovOffset += writeCnt;
+				if(writeCnt < amount) {
+					return totalReadCnt + copied;
+				}
+
+				if(iovOffset == iovs[iov][1]) {
+					iov ++;
+					iovOffset = 0;
+				}
+			}
+
+			totalReadCnt += readCnt;
+
+			// end of file
+			if(readCnt < chunk) {
+				break;
+			}
+		}
+		return totalReadCnt;
+	}
+
+	/**
+	 * Write the given user buffers to a file, gathering them into chunks of
+	 * up to <tt>IO_CHUNK_SIZE</tt> bytes. If <tt>pos</tt> is negative the
+	 * file pointer is used and advanced, otherwise the file is written
+	 * starting at <tt>pos</tt>.
+	 */
+	private int writeFileFromIovecs(OpenFile file, int pos, int[][] iovs) {
+		fileWritten(file);
+		int totalLen = iovecsLength(iovs);
+		byte[] content = new byte[Math.min(totalLen, IO_CHUNK_SIZE)];
+		int iov = 0;
+		int iovOffset = 0;
+		int totalWriteCnt = 0;
+
+		while(totalWriteCnt < totalLen) {
+			int chunk = Math.min(content.length, totalLen - totalWriteCnt);
+
+			// gather the chunk from the buffers; a bad buffer ends it early,
+			// and what was gathered before it is still written
+			int copied = 0;
+			boolean badBuffer = false;
+			while(copied < chunk) {
+				int amount = Math.min(chunk - copied, iovs[iov][1] - iovOffset);
+				int readCnt = readVirtualMemory(iovs[iov][0] + iovOffset, content, copied, amount);
+				copied += readCnt;
+				iovOffset += readCnt;
+				if(readCnt < amount) {
+					badBuffer = true;
+					break;
+				}
+
+				if(iovOffset == iovs[iov][1]) {
+					iov ++;
+					iovOffset = 0;
+				}
+			}
+
+			if(copied > 0) {
+				int writeCnt = pos < 0 ?
+					file.write(content, 0, copied) :
+					file.write(pos + totalWriteCnt, content, 0, copied);
+				if(writeCnt <= 0) {
+					return totalWriteCnt > 0 ? totalWriteCnt : writeCnt;
+				}
+
+				totalWriteCnt += writeCnt;
+				if(writeCnt < copied) {
+					break;
+				}
+			}
+			if(badBuffer) {
+				return totalWriteCnt > 0 ? totalWriteCnt : -1;
+			}
+		}
+		return totalWriteCnt;
+	}
+
+	/**
+	 * Handle the readv() system call.
+	 */
+	private int handleReadv(int fd, int iovPtr, int iovcnt) {
+		if(!isFDValid(fd)) {
+			return -1;
+		}
+
+		int[][] iovs = readIovecs(iovPtr, iovcnt);
+		if(iovs == null) {
+			return -1;
+		}
+
+		// pipe: fill each buffer in turn
+		if(pipeFdTable[fd] != null) {
+			int totalReadCnt = 0;
+			for(int[] iov : iovs) {
+				if(iov[1] == 0) {
+					continue;
+				}
+				int readCnt = handlePipeRead(fd, iov[0], iov[1]);
+				if(readCnt < 0) {
+					return totalReadCnt > 0 ? totalReadCnt : -1;
+				}
+				totalReadCnt += readCnt;
+			}
+			return totalReadCnt;
+		}
+
+		return readFileToIovecs(fileTable[fd], -1, iovs);
+	}
+
+	/**
+	 * Handle the writev() system call.
+	 */
+	private int handleWritev(int fd, int iovPtr, int iovcnt) {
+		if(!isFDValid(fd)) {
+			return -1;
+		}
+
+		int[][] iovs = readIovecs(iovPtr, iovcnt);
+		if(iovs == null) {
+			return -1;
+		}
+
+		// pipe: drain each buffer in turn
+		if(pipeFdTable[fd] != null) {
+			int totalWriteCnt = 0;
+			for(int[] iov : iovs) {
+				if(iov[1] == 0) {
+					continue;
+				}
+				int writeCnt = handlePipeWrite(fd, iov[0], iov[1]);
+				if(writeCnt < 0) {
+					return totalWriteCnt > 0 ? totalWriteCnt : -1;
+				}
+				totalWriteCnt += writeCnt;
+			}
+			return totalWriteCnt;
+		}
+
+		return writeFileFromIovecs(fileTable[fd], -1, iovs);
+	}
+
+	/**
+	 * Handle the pread() system call.
+	 */
+	private int handlePread(int fd, int bufferPtr, int size, int offset) {
+		// streams and pipes have no position to read from
+		if(!isFDValid(fd) || pipeFdTable[fd] != null || offset < 0 || size < 0) {
+			return -1;
+		}
+
+		if(size == 0) {
+			return 0;
+		}
+
+		if(!isPtrValid(bufferPtr)) {
+			return -1;
+		}
+
+		return readFileToIovecs(fileTable[fd], offset, new int[][] { { bufferPtr, size } });
+	}
+
+	/**
+	 * Handle the pwrite() system call.
+	 */
+	private int handlePwrite(int fd, int bufferPtr, int size, int offset) {
+		// streams and pipes have no position to write to
+		if(!isFDValid(fd) || pipeFdTable[fd] != null || offset < 0 || size < 0) {
+			return -1;
+		}
+
+		if(size == 0) {
+			return 0;
+		}
+
+		if(!isPtrValid(bufferPtr)) {
+			return -1;
+		}
+
+		return writeFileFromIovecs(fileTable[fd], offset, new int[][] { { bufferPtr, size } });
+	}
+
+	/**
+	 * Handle the ringsetup() system call.
+	 */
+	private int handleRingSetup(int ringAddr, int entries) {
+		// one ring per process
+		if(ring != null) {
+			return -1;
+		}
+
+		// entries must be a power of two
+		if(entries <= 0 || entries > SyscallRing.MAX_ENTRIES || (entries & (entries - 1)) != 0) {
+			return -1;
+		}
+
+		// the ring must start on a page boundary
+		if(!isPtrValid(ringAddr) || Processor.offsetFromAddress(ringAddr) != 0) {
+			return -1;
+		}
+
+		// every page of the ring must be mapped and writable
+		int lastAddr = ringAddr + SyscallRing.size(entries) - 1;
+		if(!isPtrValid(lastAddr)) {
+			return -1;
+		}
+		for(int vpn = Processor.pageFromAddress(ringAddr); vpn <= Processor.pageFromAddress(lastAddr); vpn ++) {
+			if(!isPageWritable(vpn)) {
+				return -1;
+			}
+		}
+
+		ring = new SyscallRing(this, ringAddr, entries);
+		return 0;
+	}
+
+	/**
+	 * Handle the ringsubmit() system call.
+	 */
+	private int handleRingSubmit(int minComplete) {
+		if(ring == null) {
+			return -1;
+		}
+
+		int submitted = ring.submit();
+		if(submitted < 0) {
+			return -1;
+		}
+
+		if(minComplete > 0) {
+			ring.waitForCompletions(minComplete);
+		}
+		return submitted;
+	}
+
+	/**
+	 * Perform one request taken from this process's submission ring. Called
+	 * by a ring worker thread, so it must not depend on the current process.
+	 * Reads and writes with a negative offset use the file pointer.
+	 *
+	 * @return the result to post to the completion ring.
+	 */
+	int executeRingRequest(int opcode, int fd, int addr, int len, int offset) {
+		switch (opcode) {
+		case SyscallRing.OP_NOP:
+			return 0;
+		case SyscallRing.OP_OPEN:
+			return handleOpen(addr);
+		case SyscallRing.OP_CLOSE:
+			return handleClose(fd);
+		case SyscallRing.OP_READ:
+		case SyscallRing.OP_WRITE:
+			// pipes block on the reader, so they stay synchronous
+			// nor may a mapped file be read or written
+			if(!isFDValid(fd) || pipeFdTable[fd] != null || isMapped(fd) || len < 0) {
+				return -1;
+			}
+			if(len == 0) {
+				return 0;
+			}
+			if(!isPtrValid(addr)) {
+				return -1;
+			}
+
+			int[][] iovs = new int[][] { { addr, len } };
+			int pos = offset < 0 ? -1 : offset;
+			return opcode == SyscallRing.OP_READ ?
+				readFileToIovecs(fileTable[fd], pos, iovs) :
+				writeFileFromIovecs(fileTable[fd], pos, iovs);
+		default:
+			return -1;
+		}
+	}
+
 	private int handleExec(int filePtr, int argc, int argvPtr) {
 		// check pointer and argument pointer
 		if(!isPtrValid(filePtr)) {
@@ -996,56 +1443,68 @@ public class UserProcess {
 
 		// create new process
 		UserProcess newProc = newUserProcess();
-		newProc.parent = this;
-		this.childrenList.add(newProc);
+		UserKernel.processTable.setParent(newProc.pid, this.pid);
 
 		// execute
 		Lib.debug(dbgProcess, "current process pid: "+ this.pid);
 		Lib.debug(dbgProcess, "new process name: " + fileName);
 		Lib.debug(dbgProcess, "new process pid: "+ newProc.pid);
-		Lib.debug(dbgProcess, "new process parent: "+ newProc.parent.pid);
 		boolean success = newProc.execute(fileName, argv);
 		if(!success) {
-			bigLock.acquire();
-			numProc --;
-			bigLock.release();
+			UserKernel.processTable.discard(newProc.pid);
 			return -1;
 		}
 		return newProc.pid;
 	}
 
-	// lock?
 	private int handleJoin(int pid, int statusPtr) {
 		if(!isPtrValid(statusPtr) || pid < 0) {
 			return -1;
 		}
 
-		UserProcess child = null;		
-		for(int i = 0; i < childrenList.size(); i ++) {
-			if(((List<UserProcess>)childrenList).get(i).pid == pid) {
-				child = ((List<UserProcess>)childrenList).get(i);
-				((List<UserProcess>)childrenList).remove(i);
-			}
-		}
-		
+		// join child, suspend until it is a zombie
+		ProcessTable.Entry child = UserKernel.processTable.join(this.pid, pid);
 		if(child == null) {
 			Lib.debug('a', KThread.currentThread().getName() + " child is null");
 			return -1;
 		}
 
-		// join child, suspend
-		child.thread.join();
+		return writeJoinStatus(child, statusPtr);
+	}
 
-		// resume
-		Integer childStatus = this.childrenStatus.get(pid);
-		Lib.debug('a', KThread.currentThread().getName() + "child status: " + childStatus);
+	/**
+	 * Handle the joinany() system call.
+	 */
+	private int handleJoinAny(int pidPtr, int statusPtr) {
+		if(!isPtrValid(pidPtr) || !isPtrValid(statusPtr)) {
+			return -1;
+		}
+
+		// join whichever child exits first
+		ProcessTable.Entry child = UserKernel.processTable.joinAny(this.pid);
+		if(child == null) {
+			Lib.debug('a', KThread.currentThread().getName() + " has no children");
+			return -1;
+		}
+
+		byte[] pidByte = Lib.bytesFromInt(child.getPid());
+		if(writeVirtualMemory(pidPtr, pidByte) != 4) {
+			return -1;
+		}
+
+		return writeJoinStatus(child, statusPtr);
+	}
+
+	// resume: copy out the status of a reaped child
+	private int writeJoinStatus(ProcessTable.Entry child, int statusPtr) {
+		Lib.debug('a', KThread.currentThread().getName() + "child status: " + child.getStatus());
 		// unhandled exception
-		if(childStatus == null) {
+		if(!child.exitedNormally()) {
 			Lib.debug('a', KThread.currentThread().getName() + " child has exception");
 			return 0;
 		}
 
-		byte[] statusByte = Lib.bytesFromInt(childStatus);
+		byte[] statusByte = Lib.bytesFromInt(child.getStatus());
 		int writeCnt = writeVirtualMemory(statusPtr, statusByte);
 		if(writeCnt != 4) {
 			return -1;
@@ -1055,10 +1514,24 @@ public class UserProcess {
 		return 1;
 	}
 
-	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
+	protected static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallMmap = 10, syscallReadv = 13, syscallWritev = 14,
+			syscallPread = 15, syscallPwrite = 16, syscallRingSetup = 17,
+			syscallRingSubmit = 18, syscallJoinAny = 19, syscallFork = 20,
+			syscallSbrk = 21;
+
+	static {
+		String[] syscallNames = { "halt", "exit", "exec", "join", "creat",
+				"open", "read", "write", "close", "unlink", "mmap", "connect",
+				"accept", "readv", "writev", "pread", "pwrite", "ringsetup",
+				"ringsubmit", "joinany", "fork", "sbrk" };
+		for(int i = 0; i < syscallNames.length; i ++) {
+			SyscallStats.setName(i, syscallNames[i]);
+			Tracer.setEventName(Tracer.catSyscall, i, syscallNames[i]);
+		}
+	}
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -1112,6 +1585,50 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>int  mmap(int fd, char *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  pread(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  pwrite(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  ringsetup(void *ring, int entries);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  ringsubmit(int minComplete);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  joinany(int *pid, int *status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>void *sbrk(int increment);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -1122,6 +1639,29 @@ public class UserProcess {
 	 * @return the value to be returned to the user.
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		SyscallStats globalStats = Machine.stats().syscalls;
+		globalStats.recordCall(syscall);
+		syscallStats.recordCall(syscall);
+
+		long startTicks = Machine.timer().getTime();
+		long startNanos = System.nanoTime();
+
+		int result = dispatchSyscall(syscall, a0, a1, a2, a3);
+
+		long ticks = Machine.timer().getTime() - startTicks;
+		long nanos = System.nanoTime() - startNanos;
+		globalStats.recordReturn(syscall, result, ticks, nanos);
+		syscallStats.recordReturn(syscall, result, ticks, nanos);
+		if (Tracer.compiled)
+			Tracer.record(Tracer.catSyscall, syscall, pid, result, (int) ticks);
+		return result;
+	}
+
+	/**
+	 * Carry out a syscall for <tt>handleSyscall()</tt>, which keeps the
+	 * statistics. Subclasses override this to add syscalls.
+	 */
+	protected int dispatchSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		switch (syscall) {
 		case syscallHalt:
 			return handleHalt();
@@ -1135,6 +1675,12 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallMmap:
+		case syscallFork:
+		case syscallSbrk:
+			// files can only be mapped, memory shared copy-on-write, and
+			// the heap grown with demand paging, see VMProcess
+			return -1;
 		case syscallRead:
 			return handleRead(a0, a1, a2);
 		case syscallWrite:
@@ -1143,6 +1689,20 @@ public class UserProcess {
 			return handleExec(a0, a1, a2);
 		case syscallJoin:
 			return handleJoin(a0, a1);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
+		case syscallPread:
+			return handlePread(a0, a1, a2, a3);
+		case syscallPwrite:
+			return handlePwrite(a0, a1, a2, a3);
+		case syscallRingSetup:
+			return handleRingSetup(a0, a1);
+		case syscallRingSubmit:
+			return handleRingSubmit(a0);
+		case syscallJoinAny:
+			return handleJoinAny(a0, a1);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -1183,9 +1743,30 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Return the process ID of this process.
+	 *
+	 * @return this process's ID.
+	 */
+	public int getPid() {
+		return pid;
+	}
+
+	/**
+	 * Return the counters for the system calls made by this process.
+	 * 
+	 * @return this process's syscall counters.
+	 */
+	public SyscallStats getSyscallStats() {
+		return syscallStats;
+	}
+
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name of the file this process's executable was loaded from. */
+	protected String executableName;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -1205,4 +1786,6 @@ public class UserProcess {
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
+
+	private static final char dbgSyscallStats = 'y';
 }
@@ -0,0 +1,140 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * Adaptive replacement, in its clock form CAR (Bansal and Modha, 2004). ARC
+ * proper moves a page to the MRU end of its list on every hit, which needs
+ * every reference to be seen; Nachos only sees used bits, so this keeps ARC's
+ * lists and adaptation but replaces the LRU lists of resident pages with
+ * clocks.
+ *
+ * <p>
+ * <tt>T1</tt> holds pages seen once recently and <tt>T2</tt> pages seen at
+ * least twice. <tt>B1</tt> and <tt>B2</tt> remember pages recently evicted
+ * from each. A fault on a page in <tt>B1</tt> means <tt>T1</tt> was too small
+ * and grows the target size <tt>p</tt> of <tt>T1</tt>; a fault on a page in
+ * <tt>B2</tt> shrinks it.
+ *
+ * <p>
+ * A page's used bit is already set by the access that faulted it in, so the
+ * first time the hand finds a new page referenced it only clears the bit.
+ */
+public class ARCPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new ARC policy.
+	 */
+	public ARCPolicy() {
+	}
+
+	public void initialize(int numFrames) {
+		c = numFrames;
+		fresh = new boolean[numFrames];
+	}
+
+	public void pageIn(int ppn) {
+		Object page = VMKernel.pageKey(ppn);
+
+		if(b1.remove(page)) {
+			// T1 was too small to keep this page
+			p = Math.min(p + Math.max(1, b2.size() / Math.max(b1.size(), 1)), c);
+			numGhostHits ++;
+			t2.addLast(ppn);
+		} else if(b2.remove(page)) {
+			p = Math.max(p - Math.max(1, b1.size() / Math.max(b2.size(), 1)), 0);
+			numGhostHits ++;
+			t2.addLast(ppn);
+		} else {
+			// keep the history at most c pages per side, 2c in all
+			if(t1.size() + b1.size() >= c && !b1.isEmpty()) {
+				removeLRU(b1);
+			} else if(t1.size() + t2.size() + b1.size() + b2.size() >= 2 * c && !b2.isEmpty()) {
+				removeLRU(b2);
+			}
+			t1.addLast(ppn);
+		}
+		fresh[ppn] = true;
+	}
+
+	public void pageFreed(int ppn) {
+		if(!t1.remove((Integer) ppn)) {
+			t2.remove((Integer) ppn);
+		}
+	}
+
+	public int selectVictim() {
+		int skipped1 = 0, skipped2 = 0;
+		int limit = 4 * c + 4;
+		for(int i = 0; i < limit; i ++) {
+			boolean canUseT1 = skipped1 < t1.size(), canUseT2 = skipped2 < t2.size();
+			if(!canUseT1 && !canUseT2) {
+				return -1;
+			}
+
+			boolean fromT1 = canUseT1 && (t1.size() >= Math.max(1, p) || !canUseT2);
+			LinkedList<Integer> list = fromT1 ? t1 : t2;
+			int ppn = list.removeFirst();
+
+			if(!VMKernel.isEvictable(ppn)) {
+				list.addLast(ppn);
+				if(fromT1) {
+					skipped1 ++;
+				} else {
+					skipped2 ++;
+				}
+				continue;
+			}
+
+			Object page = VMKernel.pageKey(ppn);
+			boolean referenced = VMKernel.testAndClearUsed(ppn);
+			if(!referenced) {
+				(fromT1 ? b1 : b2).add(page);
+				return ppn;
+			}
+
+			// only the faulting access: give it one more turn in T1
+			if(fromT1 && fresh[ppn]) {
+				fresh[ppn] = false;
+				t1.addLast(ppn);
+			} else {
+				fresh[ppn] = false;
+				t2.addLast(ppn);
+			}
+		}
+		return -1;
+	}
+
+	private static void removeLRU(LinkedHashSet<Object> list) {
+		Iterator<Object> it = list.iterator();
+		it.next();
+		it.remove();
+	}
+
+	public String toString() {
+		return "ARC (CAR), p " + p + ", T1 " + t1.size() + ", T2 " + t2.size()
+				+ ", B1 " + b1.size() + ", B2 " + b2.size() + ", ghost hits "
+				+ numGhostHits;
+	}
+
+	// the number of frames
+	private int c;
+
+	// target size of T1
+	private int p = 0;
+
+	// resident pages, by frame; the head is where the hand points
+	private LinkedList<Integer> t1 = new LinkedList<Integer>();
+	private LinkedList<Integer> t2 = new LinkedList<Integer>();
+
+	// evicted pages, least recently evicted first
+	private LinkedHashSet<Object> b1 = new LinkedHashSet<Object>();
+	private LinkedHashSet<Object> b2 = new LinkedHashSet<Object>();
+
+	private boolean[] fresh;
+
+	private int numGhostHits = 0;
+}
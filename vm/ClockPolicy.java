@@ -0,0 +1,55 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm: a hand sweeps the frames in order, giving pages whose
+ * used bit is set a second chance and evicting the first page whose bit is
+ * clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+	}
+
+	public void initialize(int numFrames) {
+		resident = new boolean[numFrames];
+	}
+
+	public void pageIn(int ppn) {
+		resident[ppn] = true;
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int selectVictim() {
+		// two sweeps clear every used bit, so a victim turns up unless all are pinned
+		for(int i = 0; i < 2 * resident.length; i ++) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+
+			if(!resident[ppn] || !VMKernel.isEvictable(ppn)) {
+				continue;
+			}
+			if(VMKernel.testAndClearUsed(ppn)) {
+				continue;
+			}
+
+			resident[ppn] = false;
+			return ppn;
+		}
+		return -1;
+	}
+
+	public String toString() {
+		return "CLOCK";
+	}
+
+	private boolean[] resident;
+
+	private int hand = 0;
+}
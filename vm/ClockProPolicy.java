@@ -0,0 +1,260 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * The CLOCK-Pro algorithm (Jiang, Chen and Zhang, 2005). Resident pages are
+ * either <i>hot</i>, having been referenced again soon after they were
+ * brought in, or <i>cold</i>. Only cold pages are evicted. A cold page starts
+ * a <i>test period</i> when it is brought in; if it is referenced again
+ * before the test ends it becomes hot, and if it is evicted during the test,
+ * it stays on the clock as a non-resident page so that a fault on it can be
+ * recognized.
+ *
+ * <p>
+ * All pages share one circular list, ordered by when they were inserted or
+ * last promoted, and three hands sweep it: the cold hand looks for a victim,
+ * the hot hand demotes hot pages to keep at most <i>m - mc</i> of them, and
+ * the test hand ends test periods to keep at most <i>m</i> non-resident
+ * pages. The target number of cold pages <i>mc</i> grows on a fault during a
+ * test period and shrinks when a test period ends without one.
+ *
+ * <p>
+ * A page's used bit is already set by the access that faulted it in, so the
+ * first time the cold hand finds a new page referenced it only clears the
+ * bit.
+ */
+public class ClockProPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new CLOCK-Pro policy.
+	 */
+	public ClockProPolicy() {
+	}
+
+	public void initialize(int numFrames) {
+		m = numFrames;
+		mc = Math.max(1, m / 4);
+		resident = new Entry[numFrames];
+	}
+
+	public void pageIn(int ppn) {
+		Object page = VMKernel.pageKey(ppn);
+		Entry entry = new Entry(page);
+		entry.ppn = ppn;
+		entry.fresh = true;
+
+		Entry ghost = nonResident.remove(page);
+		if(ghost != null) {
+			// faulted during its test period, so it was evicted too soon
+			remove(ghost);
+			numNonResident --;
+			mc = Math.min(mc + 1, m - 1);
+			numGhostHits ++;
+			entry.hot = true;
+		} else if(numHot < m - mc) {
+			// until memory first fills up, pages start hot
+			entry.hot = true;
+		} else {
+			entry.test = true;
+		}
+
+		insertAtHead(entry);
+		resident[ppn] = entry;
+		if(entry.hot) {
+			numHot ++;
+			runHandHot(false);
+		} else {
+			numCold ++;
+		}
+	}
+
+	public void pageFreed(int ppn) {
+		Entry entry = resident[ppn];
+		resident[ppn] = null;
+		if(entry.hot) {
+			numHot --;
+		} else {
+			numCold --;
+		}
+		remove(entry);
+	}
+
+	public int selectVictim() {
+		if(numCold == 0) {
+			runHandHot(true);
+		}
+
+		int limit = 3 * (numHot + numCold + numNonResident) + 3;
+		for(int i = 0; i < limit && handCold != null; i ++) {
+			Entry entry = handCold;
+			handCold = entry.next;
+
+			if(entry.ppn < 0 || entry.hot || !VMKernel.isEvictable(entry.ppn)) {
+				continue;
+			}
+
+			boolean referenced = VMKernel.testAndClearUsed(entry.ppn);
+			if(referenced && entry.fresh) {
+				// only the faulting access
+				entry.fresh = false;
+				continue;
+			}
+			entry.fresh = false;
+
+			if(referenced) {
+				moveToHead(entry);
+				if(entry.test) {
+					// reused within its test period
+					entry.hot = true;
+					entry.test = false;
+					numCold --;
+					numHot ++;
+					runHandHot(false);
+				} else {
+					entry.test = true;
+				}
+				continue;
+			}
+
+			int ppn = entry.ppn;
+			resident[ppn] = null;
+			numCold --;
+			if(entry.test) {
+				// remember it until the test period ends
+				entry.ppn = -1;
+				nonResident.put(entry.page, entry);
+				numNonResident ++;
+				runHandTest();
+			} else {
+				remove(entry);
+			}
+			return ppn;
+		}
+		return -1;
+	}
+
+	// demote hot pages until there are at most m - mc, and a cold page if needCold
+	private void runHandHot(boolean needCold) {
+		int limit = 3 * (numHot + numCold + numNonResident) + 3;
+		for(int i = 0; i < limit && handHot != null; i ++) {
+			if(numHot <= m - mc && (numCold > 0 || !needCold)) {
+				return;
+			}
+
+			Entry entry = handHot;
+			handHot = entry.next;
+
+			if(entry.hot) {
+				if(!VMKernel.isEvictable(entry.ppn) || VMKernel.testAndClearUsed(entry.ppn)) {
+					continue;
+				}
+				entry.hot = false;
+				numHot --;
+				numCold ++;
+			} else {
+				endTest(entry);
+			}
+		}
+	}
+
+	// end test periods until there are at most m non-resident pages
+	private void runHandTest() {
+		int limit = numHot + numCold + numNonResident + 1;
+		for(int i = 0; i < limit && handTest != null && numNonResident > m; i ++) {
+			Entry entry = handTest;
+			handTest = entry.next;
+			if(!entry.hot) {
+				endTest(entry);
+			}
+		}
+	}
+
+	// a cold page's test period ended without it being reused
+	private void endTest(Entry entry) {
+		if(!entry.test) {
+			return;
+		}
+		entry.test = false;
+		mc = Math.max(mc - 1, 1);
+		if(entry.ppn < 0) {
+			nonResident.remove(entry.page);
+			numNonResident --;
+			remove(entry);
+		}
+	}
+
+	// the head is just behind the hot hand, which reaches it last
+	private void insertAtHead(Entry entry) {
+		if(handHot == null) {
+			entry.next = entry.prev = entry;
+			handHot = handCold = handTest = entry;
+			return;
+		}
+		entry.next = handHot;
+		entry.prev = handHot.prev;
+		handHot.prev.next = entry;
+		handHot.prev = entry;
+	}
+
+	private void remove(Entry entry) {
+		Entry next = entry.next == entry ? null : entry.next;
+		if(handHot == entry) {
+			handHot = next;
+		}
+		if(handCold == entry) {
+			handCold = next;
+		}
+		if(handTest == entry) {
+			handTest = next;
+		}
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+		entry.next = entry.prev = null;
+	}
+
+	private void moveToHead(Entry entry) {
+		remove(entry);
+		insertAtHead(entry);
+	}
+
+	public String toString() {
+		return "CLOCK-Pro, hot " + numHot + ", cold " + numCold
+				+ ", non-resident " + numNonResident + ", mc " + mc
+				+ ", ghost hits " + numGhostHits;
+	}
+
+	private static class Entry {
+		Entry(Object page) {
+			this.page = page;
+		}
+
+		final Object page;
+
+		// the frame holding the page, or -1 if it is not resident
+		int ppn = -1;
+
+		boolean hot = false;
+
+		boolean test = false;
+
+		// brought in and not yet seen by the cold hand
+		boolean fresh = false;
+
+		Entry prev, next;
+	}
+
+	// the number of frames, and the target number of cold resident pages
+	private int m, mc;
+
+	private Entry[] resident;
+
+	private HashMap<Object, Entry> nonResident = new HashMap<Object, Entry>();
+
+	private Entry handHot = null, handCold = null, handTest = null;
+
+	private int numHot = 0, numCold = 0, numNonResident = 0;
+
+	private int numGhostHits = 0;
+}
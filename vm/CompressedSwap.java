@@ -0,0 +1,399 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * A compressed in-memory tier in front of the swap file. Evicted pages are
+ * compressed into a pool of bounded size, given in pages by the
+ * <tt>nachos.conf</tt> key <tt>CompressedSwap.size</tt>. When the pool is
+ * full, the least recently stored pages are spilled to the swap file.
+ *
+ * <p>
+ * A page of zeros is stored as nothing, and a page that repeats one word as
+ * that word. Other pages are compressed with a small LZ77 coder; a page that
+ * does not shrink to <tt>maxCompressed</tt> bytes goes straight to the file.
+ *
+ * <p>
+ * Loads are exclusive: a page read back from the pool is dropped from it, and
+ * must be written again when it is next evicted. A page being spilled stays
+ * in the pool until the write finishes, so a fault on it still finds it.
+ */
+public class CompressedSwap {
+	/**
+	 * Allocate a new compressed pool in front of a swap file.
+	 *
+	 * @param swap the swap file to spill to.
+	 * @param defaultSize the pool size in pages if none is configured.
+	 */
+	public CompressedSwap(SwapManager swap, int defaultSize) {
+		this.swap = swap;
+		capacity = Config.getInteger("CompressedSwap.size", defaultSize) * Processor.pageSize;
+		Lib.assertTrue(capacity >= 0);
+
+		lock = new Lock();
+		spillDone = new Condition(lock);
+	}
+
+	/**
+	 * Entry for one compressed page.
+	 */
+	static class Entry {
+		Entry(VMProcess owner, int vpn, byte kind, byte[] data) {
+			this.owner = owner;
+			this.vpn = vpn;
+			this.kind = kind;
+			this.data = data;
+		}
+
+		final VMProcess owner;
+		final int vpn;
+		final byte kind;
+		final byte[] data;
+
+		// being written to the swap file
+		boolean spilling = false;
+		// dropped from the pool, possibly while spilling
+		boolean removed = false;
+	}
+
+	/**
+	 * Test whether a page is held in the pool.
+	 */
+	public boolean contains(VMProcess owner, int vpn) {
+		lock.acquire();
+		boolean result = pages.containsKey(key(owner, vpn));
+		lock.release();
+		return result;
+	}
+
+	/**
+	 * Compress a page into the pool, spilling older pages to the swap file
+	 * if the pool overflows.
+	 *
+	 * @param owner the process the page belongs to.
+	 * @param vpn the virtual page number.
+	 * @param ppn the frame holding the page.
+	 * @return <tt>false</tt> if the page did not compress well enough and
+	 * must be written to the swap file instead.
+	 */
+	public boolean store(VMProcess owner, int vpn, int ppn) {
+		if(capacity == 0) {
+			return false;
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		int offset = ppn * Processor.pageSize;
+
+		byte kind;
+		byte[] data;
+		if(isRepeated(memory, offset, 1)) {
+			kind = memory[offset] == 0 ? kindZero : kindPattern;
+			data = kind == kindZero ? new byte[0] : Arrays.copyOfRange(memory, offset, offset + 4);
+		} else if(isRepeated(memory, offset, 4)) {
+			kind = kindPattern;
+			data = Arrays.copyOfRange(memory, offset, offset + 4);
+		} else {
+			kind = kindLZ;
+			data = compress(memory, offset);
+		}
+
+		lock.acquire();
+		Entry old = pages.get(key(owner, vpn));
+		if(old != null) {
+			remove(old);
+		}
+		if(data == null || data.length > capacity) {
+			numRejected ++;
+			lock.release();
+			return false;
+		}
+
+		Entry entry = new Entry(owner, vpn, kind, data);
+		pages.put(key(owner, vpn), entry);
+		lru.add(entry);
+		usedBytes += data.length;
+		numStores ++;
+		storedBytes += Processor.pageSize;
+		compressedBytes += data.length;
+		if(kind != kindLZ) {
+			numSameFilled ++;
+		}
+
+		// choose pages to spill until the rest fits
+		Entry[] victims = new Entry[lru.size()];
+		int numVictims = 0;
+		int spillingBytes = 0;
+		for(Entry e : lru) {
+			if(e.spilling) {
+				spillingBytes += e.data.length;
+			}
+		}
+		Iterator<Entry> it = lru.iterator();
+		while(usedBytes - spillingBytes > capacity && it.hasNext()) {
+			Entry e = it.next();
+			if(!e.spilling) {
+				e.spilling = true;
+				spillingBytes += e.data.length;
+				victims[numVictims ++] = e;
+			}
+		}
+		lock.release();
+
+		for(int i = 0; i < numVictims; i ++) {
+			spill(victims[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Read a page back from the pool, dropping it from the pool.
+	 *
+	 * @param owner the process the page belongs to.
+	 * @param vpn the virtual page number.
+	 * @param ppn the frame to read the page into.
+	 * @return <tt>false</tt> if the page is not in the pool.
+	 */
+	public boolean load(VMProcess owner, int vpn, int ppn) {
+		lock.acquire();
+		Entry entry = pages.get(key(owner, vpn));
+		if(entry == null) {
+			lock.release();
+			return false;
+		}
+		remove(entry);
+		numLoads ++;
+		lock.release();
+
+		decompress(entry, Machine.processor().getMemory(), ppn * Processor.pageSize);
+		return true;
+	}
+
+	/**
+	 * Read a page held in the pool into a buffer, leaving it in the pool.
+	 *
+	 * @return <tt>false</tt> if the page is not in the pool.
+	 */
+	public boolean copy(VMProcess owner, int vpn, byte[] data, int offset) {
+		lock.acquire();
+		Entry entry = pages.get(key(owner, vpn));
+		lock.release();
+		if(entry == null) {
+			return false;
+		}
+		decompress(entry, data, offset);
+		return true;
+	}
+
+	/**
+	 * Drop every page of a process from the pool. Waits first for any of its
+	 * pages still being spilled, so that the swap file is done with them.
+	 */
+	public void freeAll(VMProcess owner) {
+		freeRange(owner, 0, owner.swapSlots.length);
+	}
+
+	/**
+	 * Drop a range of a process's pages from the pool, as
+	 * <tt>freeAll()</tt> does.
+	 */
+	public void freeRange(VMProcess owner, int first, int count) {
+		lock.acquire();
+		for(int vpn = first; vpn < first + count; vpn ++) {
+			Entry entry;
+			while((entry = pages.get(key(owner, vpn))) != null && entry.spilling) {
+				spillDone.sleep();
+			}
+			if(entry != null) {
+				remove(entry);
+			}
+		}
+		lock.release();
+	}
+
+	public String toString() {
+		int percent = storedBytes == 0 ? 0 : (int) (100 * compressedBytes / storedBytes);
+		return numStores + " stores (" + numSameFilled + " same-filled, " + percent
+				+ "% of original size), " + numLoads + " loads, " + numSpills
+				+ " spilled, " + numRejected + " incompressible, pool "
+				+ usedBytes + "/" + capacity + " bytes";
+	}
+
+	// write a page to the swap file and drop it, unless it was dropped meanwhile
+	private void spill(Entry entry) {
+		byte[] page = new byte[Processor.pageSize];
+		decompress(entry, page, 0);
+		swap.writePage(entry.owner, entry.vpn, page, 0);
+
+		lock.acquire();
+		entry.spilling = false;
+		if(!entry.removed) {
+			remove(entry);
+		}
+		numSpills ++;
+		spillDone.wakeAll();
+		lock.release();
+	}
+
+	// must hold lock
+	private void remove(Entry entry) {
+		entry.removed = true;
+		pages.remove(key(entry.owner, entry.vpn), entry);
+		lru.remove(entry);
+		usedBytes -= entry.data.length;
+	}
+
+	// the pages map key of a process's page
+	private static long key(VMProcess owner, int vpn) {
+		return ((long) owner.getPid() << 32) | vpn;
+	}
+
+	// the page is one group of n bytes over and over
+	private static boolean isRepeated(byte[] page, int offset, int n) {
+		for(int i = n; i < Processor.pageSize; i ++) {
+			if(page[offset + i] != page[offset + i % n]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * The LZ format is a sequence of tokens. A token byte t < 128 is followed
+	 * by t + 1 literal bytes. A token t >= 128 copies (t & 127) + minMatch
+	 * bytes starting the offset given by the next two bytes back.
+	 */
+
+	// compress a page, or return null if it doesn't shrink enough
+	private static byte[] compress(byte[] page, int offset) {
+		int pageSize = Processor.pageSize;
+		byte[] out = new byte[maxCompressed];
+		int[] lastSeen = new int[hashSize];
+		Arrays.fill(lastSeen, -1);
+
+		int n = 0;
+		int literalStart = 0;
+		int i = 0;
+		while(i < pageSize) {
+			int length = 0, distance = 0;
+			if(i + minMatch <= pageSize) {
+				int h = hash(page, offset + i);
+				int candidate = lastSeen[h];
+				lastSeen[h] = i;
+				if(candidate >= 0 && i - candidate <= 0xFFFF) {
+					while(i + length < pageSize && length < maxMatch
+							&& page[offset + candidate + length] == page[offset + i + length]) {
+						length ++;
+					}
+					distance = i - candidate;
+				}
+			}
+
+			if(length < minMatch) {
+				i ++;
+				continue;
+			}
+
+			n = flushLiterals(page, offset, literalStart, i, out, n);
+			if(n < 0 || n + 3 > out.length) {
+				return null;
+			}
+			out[n ++] = (byte) (128 | (length - minMatch));
+			out[n ++] = (byte) (distance >> 8);
+			out[n ++] = (byte) distance;
+			i += length;
+			literalStart = i;
+		}
+		n = flushLiterals(page, offset, literalStart, pageSize, out, n);
+		return n < 0 ? null : Arrays.copyOf(out, n);
+	}
+
+	// emit the literals page[start..end), returning the new length of out or -1 if full
+	private static int flushLiterals(byte[] page, int offset, int start, int end, byte[] out, int n) {
+		while(start < end) {
+			int count = Math.min(end - start, 128);
+			if(n + 1 + count > out.length) {
+				return -1;
+			}
+			out[n ++] = (byte) (count - 1);
+			System.arraycopy(page, offset + start, out, n, count);
+			n += count;
+			start += count;
+		}
+		return n;
+	}
+
+	private static int hash(byte[] page, int i) {
+		int v = (page[i] & 0xFF) | (page[i + 1] & 0xFF) << 8 | (page[i + 2] & 0xFF) << 16;
+		return (v * 0x9E3779B1) >>> (32 - hashBits);
+	}
+
+	private static void decompress(Entry entry, byte[] target, int offset) {
+		int pageSize = Processor.pageSize;
+		byte[] data = entry.data;
+		switch(entry.kind) {
+		case kindZero:
+			Arrays.fill(target, offset, offset + pageSize, (byte) 0);
+			return;
+		case kindPattern:
+			for(int i = 0; i < pageSize; i ++) {
+				target[offset + i] = data[i % 4];
+			}
+			return;
+		}
+
+		int n = 0, i = 0;
+		while(n < data.length) {
+			int t = data[n ++] & 0xFF;
+			if(t < 128) {
+				System.arraycopy(data, n, target, offset + i, t + 1);
+				n += t + 1;
+				i += t + 1;
+			} else {
+				int length = (t & 127) + minMatch;
+				int distance = (data[n] & 0xFF) << 8 | (data[n + 1] & 0xFF);
+				n += 2;
+				// byte by byte, since a match may overlap itself
+				for(int k = 0; k < length; k ++) {
+					target[offset + i + k] = target[offset + i + k - distance];
+				}
+				i += length;
+			}
+		}
+		Lib.assertTrue(i == pageSize, "corrupt compressed page");
+	}
+
+	private SwapManager swap;
+
+	// the pool's size and current use, in bytes
+	private int capacity;
+	private int usedBytes = 0;
+
+	// pooled pages, least recently stored first
+	private LinkedHashSet<Entry> lru = new LinkedHashSet<Entry>();
+	// pooled pages by process and page, see key(); a process has no array of
+	// its own for them, since few of its pages are ever pooled at once
+	private HashMap<Long, Entry> pages = new HashMap<Long, Entry>();
+
+	private Lock lock;
+
+	private Condition spillDone;
+
+	private int numStores = 0, numLoads = 0, numSpills = 0, numRejected = 0, numSameFilled = 0;
+
+	private long storedBytes = 0, compressedBytes = 0;
+
+	private static final byte kindZero = 0, kindPattern = 1, kindLZ = 2;
+
+	// a page must shrink to this many bytes to be worth keeping
+	private static final int maxCompressed = Processor.pageSize * 3 / 4;
+
+	private static final int minMatch = 4, maxMatch = 127 + minMatch;
+
+	private static final int hashBits = 10, hashSize = 1 << hashBits;
+}
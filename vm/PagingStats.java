@@ -0,0 +1,157 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Paging counters, kept globally by <tt>VMKernel</tt> and per process: page
+ * faults by source, split into major faults, which read the page from the
+ * executable, swap or a mapped file, and minor ones, which need no I/O;
+ * evictions, clean and dirty; waits for frames that are pinned or in
+ * transit, and the time spent in them; and for a process, the size of its
+ * resident set over time.
+ */
+public class PagingStats {
+	/**
+	 * Allocate a new, empty set of paging counters.
+	 */
+	public PagingStats() {
+		lastResidentChange = Machine.timer().getTime();
+		startTime = lastResidentChange;
+	}
+
+	/**
+	 * Give a fault source a name to use when printing.
+	 *
+	 * @param source the fault source, as recorded in the page fault trace.
+	 * @param name the name of the source.
+	 */
+	public static void setSourceName(int source, String name) {
+		names[source] = name;
+	}
+
+	/**
+	 * Count a page fault.
+	 *
+	 * @param source where the page came from.
+	 * @param major <tt>true</tt> if the fault read the page from a file.
+	 */
+	public void recordFault(int source, boolean major) {
+		faults[source] ++;
+		if(major) {
+			numMajorFaults ++;
+		} else {
+			numMinorFaults ++;
+		}
+	}
+
+	/**
+	 * Count an eviction.
+	 *
+	 * @param dirty <tt>true</tt> if the page had to be written out.
+	 */
+	public void recordEviction(boolean dirty) {
+		if(dirty) {
+			numDirtyEvictions ++;
+		} else {
+			numCleanEvictions ++;
+		}
+	}
+
+	/**
+	 * Count a wait for a frame that was pinned or in transit.
+	 *
+	 * @param ticks how long the wait lasted.
+	 */
+	public void recordFrameWait(long ticks) {
+		numFrameWaits ++;
+		frameWaitTicks += ticks;
+	}
+
+	/**
+	 * Note a change in the number of frames a process holds.
+	 *
+	 * @param numResident the number it holds now.
+	 */
+	public void recordResident(int numResident) {
+		if(finished) {
+			return;
+		}
+		long now = Machine.timer().getTime();
+		residentTicks += (now - lastResidentChange) * resident;
+		lastResidentChange = now;
+		resident = numResident;
+		peakResident = Math.max(peakResident, numResident);
+		trackingResident = true;
+	}
+
+	/**
+	 * Stop measuring the resident set, when its process exits.
+	 */
+	public void finish() {
+		recordResident(resident);
+		finished = true;
+	}
+
+	/** Return the number of faults that read a page from a file. */
+	public int getNumMajorFaults() {
+		return numMajorFaults;
+	}
+
+	/** Return the number of faults that needed no I/O. */
+	public int getNumMinorFaults() {
+		return numMinorFaults;
+	}
+
+	/**
+	 * Print a summary line, and a line of fault sources. The resident set is
+	 * included for the counters of a process.
+	 *
+	 * @param label a name for the owner of these counters.
+	 */
+	public void print(String label) {
+		String line = "Paging (" + label + "): major faults " + numMajorFaults
+				+ ", minor " + numMinorFaults + ", evictions " + numCleanEvictions
+				+ " clean, " + numDirtyEvictions + " dirty, frame waits "
+				+ numFrameWaits + " (" + frameWaitTicks + " ticks)";
+		if(trackingResident) {
+			recordResident(resident);
+			long elapsed = lastResidentChange - startTime;
+			line += ", resident " + resident + (finished ? " at exit" : " now") + ", peak "
+					+ peakResident + ", mean " + (elapsed == 0 ? String.valueOf(resident)
+							: String.format("%.1f", (double) residentTicks / elapsed));
+		}
+		System.out.println(line);
+
+		StringBuilder sources = new StringBuilder("\tfaults:");
+		for(int i = 0; i < faults.length; i ++) {
+			if(faults[i] > 0) {
+				sources.append(' ').append(names[i]).append(' ').append(faults[i]);
+			}
+		}
+		if(numMajorFaults + numMinorFaults > 0) {
+			System.out.println(sources);
+		}
+	}
+
+	private static final int maxSources = 16;
+
+	private static String[] names = new String[maxSources];
+
+	private int[] faults = new int[maxSources];
+
+	private int numMajorFaults = 0, numMinorFaults = 0;
+
+	private int numCleanEvictions = 0, numDirtyEvictions = 0;
+
+	private int numFrameWaits = 0;
+
+	private long frameWaitTicks = 0;
+
+	// the resident set, and its integral over time since these counters
+	// began, until its process exits
+	private int resident = 0, peakResident = 0;
+
+	private boolean trackingResident = false, finished = false;
+
+	private long residentTicks = 0, lastResidentChange, startTime;
+}
@@ -0,0 +1,53 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A page replacement policy, which decides which physical page to evict when
+ * no frame is free. The policy is chosen with the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>, which names a class implementing this
+ * interface.
+ *
+ * <p>
+ * Frames are identified by physical page number. Every method is called with
+ * <tt>VMKernel.frameLock</tt> held. A policy learns about references only
+ * through the used bits, which it reads with
+ * <tt>VMKernel.testAndClearUsed()</tt> so that hits are counted the same way
+ * for every policy.
+ */
+public interface ReplacementPolicy {
+	/**
+	 * Prepare to manage the specified number of frames, all initially free.
+	 *
+	 * @param numFrames the number of physical pages.
+	 */
+	public void initialize(int numFrames);
+
+	/**
+	 * Called when a page has been brought into a frame. The page is
+	 * identified across evictions by <tt>VMKernel.pageKey(ppn)</tt>.
+	 *
+	 * @param ppn the frame that now holds the page.
+	 */
+	public void pageIn(int ppn);
+
+	/**
+	 * Called when a frame is freed because the process owning its page
+	 * exited, or when the kernel evicts the page itself: to replace among a
+	 * process's own pages, or to swap out a process the load controller
+	 * suspended.
+	 *
+	 * @param ppn the freed frame.
+	 */
+	public void pageFreed(int ppn);
+
+	/**
+	 * Choose a frame to evict, and stop tracking the page in it. Only frames
+	 * for which <tt>VMKernel.isEvictable()</tt> returns <tt>true</tt> may be
+	 * chosen.
+	 *
+	 * @return the frame to evict, or -1 if no frame can be evicted until a
+	 * frame is unpinned.
+	 */
+	public int selectVictim();
+}
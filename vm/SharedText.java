@@ -0,0 +1,178 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The read-only pages of executables, shared by every process running the
+ * same one. Each page keeps the frame that holds it, which has no owning
+ * process, and a list of the processes that map it.
+ *
+ * <p>
+ * An executable is identified by its file name and the layout of its
+ * sections, since the file system keeps nothing like an inode number. Its
+ * pages stay in the cache after the last process running it exits, so the
+ * next one finds them resident if they have not been evicted. Creating,
+ * writing, mapping or removing a file through a system call drops the
+ * entries for its name, so a changed executable is read afresh, and an
+ * entry none of whose pages is mapped or in a frame is dropped at the next
+ * lookup.
+ */
+public class SharedText {
+	/**
+	 * One read-only page of an executable.
+	 */
+	static class Page {
+		// the frame the page is or was last in, or -1; valid while it is in
+		// it, and used if a sharer referenced it since the bit was cleared
+		int ppn = -1;
+		boolean valid = false, used = false;
+
+		// the pages of processes mapping it
+		final LinkedList<VMKernel.Sharer> sharers = new LinkedList<VMKernel.Sharer>();
+
+		// a process is reading the page in; others wait for it
+		boolean loading = false;
+	}
+
+	/**
+	 * Return the shared pages of an executable, indexed by virtual page
+	 * number, with <tt>null</tt> for pages that are not read-only. The array
+	 * covers the executable's sections only.
+	 *
+	 * @param name the name of the executable.
+	 * @param coff the executable, already loaded.
+	 */
+	public static Page[] lookup(String name, Coff coff) {
+		StringBuilder key = new StringBuilder();
+		key.append(coff.getEntryPoint());
+		for(int s = 0; s < coff.getNumSections(); s ++) {
+			CoffSection section = coff.getSection(s);
+			key.append(':').append(section.getName()).append('@').append(section.getFirstVPN())
+					.append('+').append(section.getLength());
+		}
+
+		VMKernel.frameLock.acquire();
+		pruneUnused();
+		HashMap<String, Page[]> layouts = cache.get(name);
+		if(layouts == null) {
+			layouts = new HashMap<String, Page[]>();
+			cache.put(name, layouts);
+		}
+		Page[] pages = layouts.get(key.toString());
+		if(pages == null) {
+			// a page shared with a writable section is not read-only
+			pages = new Page[coff.getNumPages()];
+			for(int vpn = 0; vpn < pages.length; vpn ++) {
+				if(coff.isReadOnlyPage(vpn)) {
+					pages[vpn] = new Page();
+				}
+			}
+			layouts.put(key.toString(), pages);
+		}
+		countUser(pages, 1);
+		VMKernel.frameLock.release();
+		return pages;
+	}
+
+	/**
+	 * Note that another process runs an executable, as a child made by fork
+	 * does.
+	 *
+	 * @param pages the executable's pages, as returned by <tt>lookup()</tt>.
+	 */
+	public static void addUser(Page[] pages) {
+		VMKernel.frameLock.acquire();
+		countUser(pages, 1);
+		VMKernel.frameLock.release();
+	}
+
+	/**
+	 * Note that a process running an executable has exited. Its pages stay
+	 * cached while they are in frames.
+	 *
+	 * @param pages the executable's pages, as returned by <tt>lookup()</tt>.
+	 */
+	public static void release(Page[] pages) {
+		VMKernel.frameLock.acquire();
+		countUser(pages, -1);
+		VMKernel.frameLock.release();
+	}
+
+	// count a process starting or ceasing to run an executable, must hold frameLock
+	private static void countUser(Page[] pages, int delta) {
+		Integer count = users.get(pages);
+		int newCount = (count == null ? 0 : count) + delta;
+		if(newCount > 0) {
+			users.put(pages, newCount);
+		} else {
+			users.remove(pages);
+		}
+	}
+
+	/**
+	 * Forget the cached pages of every executable with a name, because the
+	 * file is about to change. Processes running it keep the pages they map;
+	 * the frames of the rest are freed.
+	 *
+	 * @param name the name of the file.
+	 */
+	public static void invalidate(String name) {
+		VMKernel.frameLock.acquire();
+		HashMap<String, Page[]> layouts = cache.remove(name);
+		if(layouts != null) {
+			for(Page[] pages : layouts.values()) {
+				VMKernel.releaseSharedPages(pages);
+			}
+		}
+		VMKernel.frameLock.release();
+	}
+
+	/**
+	 * Return the number of executables in the cache.
+	 */
+	static int numCached() {
+		int count = 0;
+		for(HashMap<String, Page[]> layouts : cache.values()) {
+			count += layouts.size();
+		}
+		return count;
+	}
+
+	// drop the entries of executables no process runs whose pages are not
+	// in frames, must hold frameLock
+	private static void pruneUnused() {
+		Iterator<HashMap<String, Page[]>> names = cache.values().iterator();
+		while(names.hasNext()) {
+			HashMap<String, Page[]> layouts = names.next();
+			Iterator<Page[]> entries = layouts.values().iterator();
+			while(entries.hasNext()) {
+				Page[] pages = entries.next();
+				boolean inUse = users.containsKey(pages);
+				for(Page page : pages) {
+					if(page != null && VMKernel.isSharedPageInUse(page)) {
+						inUse = true;
+						break;
+					}
+				}
+				if(!inUse) {
+					entries.remove();
+				}
+			}
+			if(layouts.isEmpty()) {
+				names.remove();
+			}
+		}
+	}
+
+	// executables by name, and then by the layout of their sections
+	private static final HashMap<String, HashMap<String, Page[]>> cache =
+			new HashMap<String, HashMap<String, Page[]>>();
+
+	// the number of live processes running each executable
+	private static final IdentityHashMap<Page[], Integer> users = new IdentityHashMap<Page[], Integer>();
+}
@@ -0,0 +1,504 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * Manages the swap file. Swap space is divided into page-sized slots, tracked
+ * with a bitmap. Each process keeps its own map from virtual page to slot, so
+ * a page keeps the same slot for as long as the process lives: a clean page
+ * that is evicted again is not rewritten at all, and a dirty one is rewritten
+ * in place.
+ *
+ * <p>
+ * New slots are allocated next to the slot of a neighboring virtual page when
+ * possible, and otherwise at the start of a free run of
+ * <tt>SwapManager.clusterSize</tt> slots, so that nearby pages of a process
+ * end up close together in the file.
+ *
+ * <p>
+ * A compaction thread moves pages from the end of the swap file into holes
+ * left by exited processes. When the file is much larger than the slots in
+ * use, it copies the live slots into a fresh file and switches to it, since
+ * an <tt>OpenFile</tt> cannot be truncated.
+ *
+ * <p>
+ * A slot is marked busy while it is being read, written or moved. A busy slot
+ * is never moved, and a page whose slot is busy waits for it before doing its
+ * own I/O, looking the slot up again afterwards in case it moved.
+ */
+public class SwapManager {
+	/**
+	 * Create an empty swap file.
+	 */
+	public SwapManager() {
+		clusterSize = Config.getInteger("SwapManager.clusterSize", 8);
+		Lib.assertTrue(clusterSize > 0);
+
+		fileIndex = 0;
+		file = ThreadedKernel.fileSystem.open(fileNames[fileIndex], true);
+		Lib.assertTrue(file != null, "cannot create swap");
+		fileSlots = file.length() / Processor.pageSize;
+		lastSizeChange = Machine.timer().getTime();
+
+		lock = new Lock();
+		slotFree = new Condition(lock);
+		slotsFreed = new Condition(lock);
+
+		new KThread(new Runnable() {
+			public void run() {
+				compactor();
+			}
+		}).setName("swap compactor").fork();
+	}
+
+	/**
+	 * Test whether a page has a copy in swap.
+	 */
+	public boolean hasSlot(VMProcess owner, int vpn) {
+		lock.acquire();
+		boolean result = owner.swapSlots[vpn] >= 0;
+		lock.release();
+		return result;
+	}
+
+	/**
+	 * Write a page to its slot, allocating one if it has none yet.
+	 *
+	 * @param owner the process the page belongs to.
+	 * @param vpn the virtual page number.
+	 * @param ppn the frame holding the page.
+	 */
+	public void writePage(VMProcess owner, int vpn, int ppn) {
+		writePage(owner, vpn, Machine.processor().getMemory(), ppn * Processor.pageSize);
+	}
+
+	/**
+	 * Write a page to its slot from a buffer, allocating a slot if it has
+	 * none yet.
+	 *
+	 * @param owner the process the page belongs to.
+	 * @param vpn the virtual page number.
+	 * @param data the buffer holding the page.
+	 * @param offset the offset of the page in <i>data</i>.
+	 */
+	public void writePage(VMProcess owner, int vpn, byte[] data, int offset) {
+		lock.acquire();
+		if(owner.swapSlots[vpn] < 0) {
+			int slot = allocate(owner, vpn);
+			owner.swapSlots[vpn] = slot;
+			slotOwner[slot] = owner;
+			slotVpn[slot] = vpn;
+		}
+		int slot = beginIO(owner, vpn);
+		OpenFile target = fileFor(slot);
+		if(slot >= fileSlots) {
+			accountSize();
+			fileSlots = slot + 1;
+			peakFileSlots = Math.max(peakFileSlots, fileSlots);
+		}
+		numWrites ++;
+		Machine.stats().numSwapWrites ++;
+		lock.release();
+
+		int pageSize = Processor.pageSize;
+		int res = target.write(slot * pageSize, data, offset, pageSize);
+		if(res != pageSize) {
+			Lib.assertNotReached("swap out faliure: size not equal");
+		}
+
+		endIO(slot);
+	}
+
+	/**
+	 * Read a page from its slot.
+	 *
+	 * @param owner the process the page belongs to.
+	 * @param vpn the virtual page number.
+	 * @param ppn the frame to read the page into.
+	 */
+	public void readPage(VMProcess owner, int vpn, int ppn) {
+		readPage(owner, vpn, Machine.processor().getMemory(), ppn * Processor.pageSize);
+	}
+
+	/**
+	 * Read a page from its slot into a buffer.
+	 *
+	 * @param owner the process the page belongs to.
+	 * @param vpn the virtual page number.
+	 * @param data the buffer to read the page into.
+	 * @param offset the offset of the page in <i>data</i>.
+	 */
+	public void readPage(VMProcess owner, int vpn, byte[] data, int offset) {
+		lock.acquire();
+		int slot = beginIO(owner, vpn);
+		OpenFile source = fileFor(slot);
+		numReads ++;
+		Machine.stats().numSwapReads ++;
+		lock.release();
+
+		int pageSize = Processor.pageSize;
+		int res = source.read(slot * pageSize, data, offset, pageSize);
+		if(res != pageSize) {
+			Lib.assertNotReached("swap in faliure: size not equal");
+		}
+
+		endIO(slot);
+	}
+
+	/**
+	 * Return how many of the pages starting at <i>vpn</i>, up to <i>max</i>,
+	 * sit in consecutive slots and so could be read together.
+	 */
+	public int contiguousSlots(VMProcess owner, int vpn, int max) {
+		lock.acquire();
+		int slot = owner.swapSlots[vpn];
+		int count = 0;
+		while(count < max && vpn + count < owner.swapSlots.length && slot >= 0
+				&& owner.swapSlots[vpn + count] == slot + count) {
+			count ++;
+		}
+		lock.release();
+		return count;
+	}
+
+	/**
+	 * Read consecutive pages of a process, with a single read if their slots
+	 * are still consecutive once they are all idle.
+	 *
+	 * @param owner the process the pages belong to.
+	 * @param vpn the virtual page number of the first page.
+	 * @param ppns the frame to read each page into.
+	 */
+	public void readPages(VMProcess owner, int vpn, int[] ppns) {
+		lock.acquire();
+		int[] slots = new int[ppns.length];
+		boolean contiguous = true;
+		for(int i = 0; i < ppns.length; i ++) {
+			slots[i] = beginIO(owner, vpn + i);
+			contiguous &= slots[i] == slots[0] + i;
+		}
+		OpenFile source = fileFor(slots[0]);
+		for(int i = 1; i < ppns.length; i ++) {
+			contiguous &= fileFor(slots[i]) == source;
+		}
+		numReads += contiguous ? 1 : ppns.length;
+		Machine.stats().numSwapReads += ppns.length;
+		lock.release();
+
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+		if(contiguous) {
+			byte[] buf = new byte[ppns.length * pageSize];
+			int res = source.read(slots[0] * pageSize, buf, 0, buf.length);
+			if(res != buf.length) {
+				Lib.assertNotReached("swap in faliure: size not equal");
+			}
+			for(int i = 0; i < ppns.length; i ++) {
+				System.arraycopy(buf, i * pageSize, memory, ppns[i] * pageSize, pageSize);
+			}
+		} else {
+			// a slot moved in the meantime
+			for(int i = 0; i < ppns.length; i ++) {
+				lock.acquire();
+				OpenFile slotFile = fileFor(slots[i]);
+				lock.release();
+				int res = slotFile.read(slots[i] * pageSize, memory, ppns[i] * pageSize, pageSize);
+				if(res != pageSize) {
+					Lib.assertNotReached("swap in faliure: size not equal");
+				}
+			}
+		}
+
+		for(int i = 0; i < ppns.length; i ++) {
+			endIO(slots[i]);
+		}
+	}
+
+	/**
+	 * Release every slot held by a process.
+	 *
+	 * @param owner the exiting process.
+	 */
+	public void freeAll(VMProcess owner) {
+		freeRange(owner, 0, owner.swapSlots.length);
+	}
+
+	/**
+	 * Release the slots of a range of a process's pages, whose contents are
+	 * no longer needed.
+	 *
+	 * @param owner the process the pages belong to.
+	 * @param first the first virtual page number.
+	 * @param count the number of pages.
+	 */
+	public void freeRange(VMProcess owner, int first, int count) {
+		lock.acquire();
+		for(int vpn = first; vpn < first + count; vpn ++) {
+			// a slot being moved changes under us, so wait and look again
+			while(owner.swapSlots[vpn] >= 0 && busy.get(owner.swapSlots[vpn])) {
+				slotFree.sleep();
+			}
+			int slot = owner.swapSlots[vpn];
+			if(slot >= 0) {
+				accountSize();
+				used.clear(slot);
+				slotOwner[slot] = null;
+				owner.swapSlots[vpn] = -1;
+			}
+		}
+		slotsFreed.wake();
+		lock.release();
+	}
+
+	/**
+	 * Close and remove the swap file.
+	 */
+	public void close() {
+		file.close();
+		boolean removed = ThreadedKernel.fileSystem.remove(fileNames[fileIndex]);
+		Lib.assertTrue(removed);
+	}
+
+	public String toString() {
+		accountSize();
+		long elapsed = lastSizeChange - startTime;
+		return numReads + " reads, " + numWrites + " writes, slots in use "
+				+ used.cardinality() + " (peak " + peakSlots + ", mean " + mean(slotTicks, elapsed)
+				+ "), file " + file.length() / Processor.pageSize + " slots (peak "
+				+ peakFileSlots + ", mean " + mean(fileSlotTicks, elapsed) + "), "
+				+ numMoves + " moved, " + numRewrites + " rewrites";
+	}
+
+	private static String mean(long slotTicks, long elapsed) {
+		return String.format("%.1f", elapsed == 0 ? 0.0 : (double) slotTicks / elapsed);
+	}
+
+	// fold the time since the last change into the integrals of the slots in
+	// use and the file size, must hold lock
+	private void accountSize() {
+		long now = Machine.timer().getTime();
+		slotTicks += (now - lastSizeChange) * used.cardinality();
+		fileSlotTicks += (now - lastSizeChange) * fileSlots;
+		lastSizeChange = now;
+	}
+
+	// choose a free slot for a page, must hold lock
+	private int allocate(VMProcess owner, int vpn) {
+		int slot = -1;
+		int prev = vpn > 0 ? owner.swapSlots[vpn - 1] : -1;
+		int next = vpn + 1 < owner.swapSlots.length ? owner.swapSlots[vpn + 1] : -1;
+		if(prev >= 0 && !used.get(prev + 1)) {
+			slot = prev + 1;
+		} else if(next > 0 && !used.get(next - 1)) {
+			slot = next - 1;
+		} else {
+			// the start of a free run, leaving room for the neighbors
+			slot = used.nextClearBit(0);
+			while(true) {
+				int end = used.nextSetBit(slot);
+				if(end < 0 || end - slot >= clusterSize) {
+					break;
+				}
+				slot = used.nextClearBit(end);
+			}
+		}
+
+		accountSize();
+		used.set(slot);
+		ensureCapacity(slot + 1);
+		peakSlots = Math.max(peakSlots, used.cardinality());
+		return slot;
+	}
+
+	private void ensureCapacity(int numSlots) {
+		if(numSlots <= slotOwner.length) {
+			return;
+		}
+		int capacity = Math.max(numSlots, 2 * slotOwner.length);
+		VMProcess[] owners = new VMProcess[capacity];
+		int[] vpns = new int[capacity];
+		System.arraycopy(slotOwner, 0, owners, 0, slotOwner.length);
+		System.arraycopy(slotVpn, 0, vpns, 0, slotVpn.length);
+		slotOwner = owners;
+		slotVpn = vpns;
+	}
+
+	// wait until a page's slot is idle and mark it busy, must hold lock
+	private int beginIO(VMProcess owner, int vpn) {
+		while(busy.get(owner.swapSlots[vpn])) {
+			slotFree.sleep();
+		}
+		int slot = owner.swapSlots[vpn];
+		Lib.assertTrue(slot >= 0);
+		busy.set(slot);
+		return slot;
+	}
+
+	private void endIO(int slot) {
+		lock.acquire();
+		busy.clear(slot);
+		slotFree.wakeAll();
+		lock.release();
+	}
+
+	// the file holding a slot while a rewrite is under way, must hold lock
+	private OpenFile fileFor(int slot) {
+		return newFile != null && slot < numCopied ? newFile : file;
+	}
+
+	private void compactor() {
+		byte[] buf = new byte[Processor.pageSize];
+		while(true) {
+			// only an exiting process leaves holes
+			lock.acquire();
+			slotsFreed.sleep();
+			lock.release();
+
+			if(worthMoving()) {
+				movePages(buf);
+			}
+			if(worthRewriting()) {
+				rewrite(buf);
+			}
+		}
+	}
+
+	// many holes below the last slot in use
+	private boolean worthMoving() {
+		return used.length() > 2 * used.cardinality() + clusterSize;
+	}
+
+	// the file is much longer than the slots in use
+	private boolean worthRewriting() {
+		return file.length() / Processor.pageSize > 2 * used.length() + minRewriteSlack;
+	}
+
+	// move pages from the end of swap into the lowest holes
+	private void movePages(byte[] buf) {
+		lock.acquire();
+		int from = used.length() - 1;
+		while(from >= 0 && worthMoving()) {
+			int to = used.nextClearBit(0);
+			if(to >= from) {
+				break;
+			}
+			if(!used.get(from) || busy.get(from)) {
+				from --;
+				continue;
+			}
+
+			used.set(to);
+			busy.set(from);
+			busy.set(to);
+			OpenFile source = fileFor(from), target = fileFor(to);
+			lock.release();
+
+			int pageSize = Processor.pageSize;
+			source.read(from * pageSize, buf, 0, pageSize);
+			target.write(to * pageSize, buf, 0, pageSize);
+
+			lock.acquire();
+			VMProcess owner = slotOwner[from];
+			int vpn = slotVpn[from];
+			owner.swapSlots[vpn] = to;
+			slotOwner[to] = owner;
+			slotVpn[to] = vpn;
+			slotOwner[from] = null;
+			used.clear(from);
+			busy.clear(from);
+			busy.clear(to);
+			slotFree.wakeAll();
+			numMoves ++;
+			from --;
+		}
+		lock.release();
+	}
+
+	// copy the live slots into the other swap file and switch to it
+	private void rewrite(byte[] buf) {
+		lock.acquire();
+		int newIndex = 1 - fileIndex;
+		newFile = ThreadedKernel.fileSystem.open(fileNames[newIndex], true);
+		Lib.assertTrue(newFile != null, "cannot create swap");
+		numCopied = 0;
+
+		// slots may be allocated past the end while we copy, so recheck the end
+		while(numCopied < used.length()) {
+			int slot = numCopied;
+			if(used.get(slot)) {
+				while(busy.get(slot)) {
+					slotFree.sleep();
+				}
+				busy.set(slot);
+				lock.release();
+
+				int pageSize = Processor.pageSize;
+				file.read(slot * pageSize, buf, 0, pageSize);
+				newFile.write(slot * pageSize, buf, 0, pageSize);
+
+				lock.acquire();
+				busy.clear(slot);
+				slotFree.wakeAll();
+			}
+			numCopied = slot + 1;
+		}
+
+		OpenFile oldFile = file;
+		int oldIndex = fileIndex;
+		accountSize();
+		fileSlots = numCopied;
+		file = newFile;
+		fileIndex = newIndex;
+		newFile = null;
+		numRewrites ++;
+		lock.release();
+
+		oldFile.close();
+		ThreadedKernel.fileSystem.remove(fileNames[oldIndex]);
+	}
+
+	// the compactor alternates between two files
+	private static final String[] fileNames = { "swap", "swap2" };
+
+	private int fileIndex;
+
+	private OpenFile file;
+
+	// the file being filled in by a rewrite, and how many slots it holds so far
+	private OpenFile newFile = null;
+
+	private int numCopied = 0;
+
+	private BitSet used = new BitSet();
+
+	private BitSet busy = new BitSet();
+
+	// which page is in each slot, so the compactor can update its map
+	private VMProcess[] slotOwner = new VMProcess[64];
+
+	private int[] slotVpn = new int[64];
+
+	private int clusterSize;
+
+	private Lock lock;
+
+	private Condition slotFree;
+
+	private Condition slotsFreed;
+
+	private int peakSlots = 0, numMoves = 0, numRewrites = 0;
+
+	// the swap file's size in slots, and the integrals over time of it and of
+	// the slots in use, for their means
+	private int fileSlots, peakFileSlots = 0;
+
+	private long slotTicks = 0, fileSlotTicks = 0, lastSizeChange, startTime = Machine.timer().getTime();
+
+	// page reads and writes of the swap file, not counting the compactor's
+	private int numReads = 0, numWrites = 0;
+
+	private static final int minRewriteSlack = 32;
+}
@@ -0,0 +1,300 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Replays a memory reference trace written by the processor (see
+ * <tt>ReferenceTrace</tt>) against several memory sizes and replacement
+ * policies, reading the trace once. This runs on the host, outside of Nachos:
+ *
+ * <pre>
+ * java nachos.vm.TraceSimulator [-frames 4,8,16] [-policies lru,fifo,clock] nachos.refs
+ * </pre>
+ *
+ * <p>
+ * LRU is simulated with Mattson's stack algorithm: the stack distance of
+ * every reference gives the misses of every memory size at once, so the LRU
+ * column costs the same however many sizes are asked for, and the smallest
+ * memory that removes every miss but the cold ones is printed as well. FIFO
+ * and the clock algorithm are simulated once per memory size, and also count
+ * the dirty pages they would write back.
+ *
+ * <p>
+ * Pages are identified by address space and vpn, and memory is shared by
+ * every address space, as with the kernel's global replacement. The trace
+ * does not say when a process exits, so its pages age out instead of being
+ * freed.
+ */
+public class TraceSimulator {
+	/**
+	 * Prevent instantiation.
+	 */
+	private TraceSimulator() {
+	}
+
+	/**
+	 * Simulate the trace named on the command line.
+	 *
+	 * @param args the command line arguments.
+	 */
+	public static void main(String[] args) throws IOException {
+		String fileName = null;
+		String frameList = "4,8,16,32,64";
+		String policyList = "lru,fifo,clock";
+
+		for(int i = 0; i < args.length; i ++) {
+			if(args[i].equals("-frames") && i + 1 < args.length) {
+				frameList = args[++ i];
+			} else if(args[i].equals("-policies") && i + 1 < args.length) {
+				policyList = args[++ i];
+			} else {
+				fileName = args[i];
+			}
+		}
+
+		if(fileName == null) {
+			System.err.println("usage: java nachos.vm.TraceSimulator "
+					+ "[-frames n,...] [-policies lru,fifo,clock] <trace file>");
+			System.exit(1);
+		}
+
+		String[] frameArgs = frameList.split(",");
+		int[] frames = new int[frameArgs.length];
+		for(int i = 0; i < frames.length; i ++) {
+			frames[i] = Integer.parseInt(frameArgs[i].trim());
+			Lib.assertTrue(frames[i] > 0, "frame counts must be positive");
+		}
+
+		StackDistance lru = null;
+		ArrayList<String> columns = new ArrayList<String>();
+		ArrayList<Simulation[]> simulations = new ArrayList<Simulation[]>();
+		for(String policy : policyList.split(",")) {
+			policy = policy.trim();
+			if(policy.equals("lru")) {
+				lru = new StackDistance();
+			} else if(policy.equals("fifo") || policy.equals("clock")) {
+				Simulation[] sims = new Simulation[frames.length];
+				for(int i = 0; i < frames.length; i ++) {
+					sims[i] = policy.equals("fifo") ? new FIFO(frames[i]) : new Clock(frames[i]);
+				}
+				simulations.add(sims);
+			} else {
+				System.err.println("unknown policy " + policy);
+				System.exit(1);
+			}
+			columns.add(policy);
+		}
+
+		ReferenceTrace.Reader trace;
+		try {
+			trace = new ReferenceTrace.Reader(fileName);
+		} catch(IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		long numReferences = 0, numWrites = 0;
+		HashSet<Integer> addressSpaces = new HashSet<Integer>();
+		while(trace.next()) {
+			long page = ((long) trace.getAddressSpace() << 32) | (trace.getVpn() & 0xFFFFFFFFL);
+			boolean write = trace.isWrite();
+
+			numReferences ++;
+			if(write) {
+				numWrites ++;
+			}
+			addressSpaces.add(trace.getAddressSpace());
+
+			if(lru != null) {
+				lru.reference(page);
+			}
+			for(Simulation[] sims : simulations) {
+				for(Simulation sim : sims) {
+					sim.reference(page, write);
+				}
+			}
+		}
+		trace.close();
+
+		System.out.println(fileName + ": " + numReferences + " references ("
+				+ numWrites + " writes), " + (lru != null ? lru.numPages() + " pages in " : "")
+				+ addressSpaces.size() + " address spaces, page size " + trace.getPageSize());
+
+		StringBuilder header = new StringBuilder("frames");
+		for(String column : columns) {
+			header.append('\t').append(column);
+		}
+		System.out.println(header);
+
+		for(int i = 0; i < frames.length; i ++) {
+			StringBuilder row = new StringBuilder().append(frames[i]);
+			int next = 0;
+			for(String column : columns) {
+				if(column.equals("lru")) {
+					row.append('\t').append(lru.misses(frames[i]));
+				} else {
+					Simulation sim = simulations.get(next ++)[i];
+					row.append('\t').append(sim.misses).append(" (").append(sim.writeBacks).append(" dirty)");
+				}
+			}
+			System.out.println(row);
+		}
+
+		if(lru != null) {
+			System.out.println("LRU: " + lru.coldMisses() + " cold misses, reached with "
+					+ lru.maxDistance() + " frames");
+		}
+	}
+
+	/**
+	 * Mattson's stack algorithm for LRU. Pages are kept in a stack ordered by
+	 * recency, and a reference's depth in the stack is its stack distance: the
+	 * reference hits in every LRU memory of at least that many frames.
+	 */
+	private static class StackDistance {
+		void reference(long page) {
+			int depth = stack.indexOf(page);
+			if(depth < 0) {
+				cold ++;
+			} else {
+				stack.remove(depth);
+				while(distances.size() <= depth) {
+					distances.add(0L);
+				}
+				distances.set(depth, distances.get(depth) + 1);
+			}
+			stack.add(0, page);
+		}
+
+		// a reference at depth d hits in any memory of more than d frames
+		long misses(int frames) {
+			long misses = cold;
+			for(int depth = frames; depth < distances.size(); depth ++) {
+				misses += distances.get(depth);
+			}
+			return misses;
+		}
+
+		long coldMisses() {
+			return cold;
+		}
+
+		int maxDistance() {
+			return distances.size();
+		}
+
+		int numPages() {
+			return stack.size();
+		}
+
+		private ArrayList<Long> stack = new ArrayList<Long>();
+
+		private ArrayList<Long> distances = new ArrayList<Long>();
+
+		private long cold = 0;
+	}
+
+	/**
+	 * A replacement policy simulated at one memory size.
+	 */
+	private static abstract class Simulation {
+		Simulation(int numFrames) {
+			this.numFrames = numFrames;
+		}
+
+		abstract void reference(long page, boolean write);
+
+		int numFrames;
+
+		long misses = 0, writeBacks = 0;
+	}
+
+	/**
+	 * First in, first out.
+	 */
+	private static class FIFO extends Simulation {
+		FIFO(int numFrames) {
+			super(numFrames);
+		}
+
+		void reference(long page, boolean write) {
+			Boolean dirty = resident.get(page);
+			if(dirty != null) {
+				if(write && !dirty) {
+					resident.put(page, true);
+				}
+				return;
+			}
+
+			misses ++;
+			if(resident.size() == numFrames) {
+				if(resident.remove(queue.removeFirst())) {
+					writeBacks ++;
+				}
+			}
+			resident.put(page, write);
+			queue.addLast(page);
+		}
+
+		// resident pages and whether each is dirty
+		private HashMap<Long, Boolean> resident = new HashMap<Long, Boolean>();
+
+		private ArrayDeque<Long> queue = new ArrayDeque<Long>();
+	}
+
+	/**
+	 * The clock algorithm, as in <tt>ClockPolicy</tt>.
+	 */
+	private static class Clock extends Simulation {
+		Clock(int numFrames) {
+			super(numFrames);
+			pages = new long[numFrames];
+			used = new boolean[numFrames];
+			dirty = new boolean[numFrames];
+		}
+
+		void reference(long page, boolean write) {
+			Integer frame = frames.get(page);
+			if(frame != null) {
+				used[frame] = true;
+				dirty[frame] |= write;
+				return;
+			}
+
+			misses ++;
+			if(numUsed < numFrames) {
+				frame = numUsed ++;
+			} else {
+				while(used[hand]) {
+					used[hand] = false;
+					hand = (hand + 1) % numFrames;
+				}
+				frame = hand;
+				hand = (hand + 1) % numFrames;
+				frames.remove(pages[frame]);
+				if(dirty[frame]) {
+					writeBacks ++;
+				}
+			}
+			pages[frame] = page;
+			used[frame] = true;
+			dirty[frame] = write;
+			frames.put(page, frame);
+		}
+
+		private HashMap<Long, Integer> frames = new HashMap<Long, Integer>();
+
+		private long[] pages;
+
+		private boolean[] used, dirty;
+
+		private int numUsed = 0, hand = 0;
+	}
+}
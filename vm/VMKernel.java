@@ -13,117 +13,1651 @@ public class VMKernel extends UserKernel {
 	// global memory accounting -> inverted page table
 	// process <- page
 	class pageMeta {
+		// the page in the frame, a page of owner's, or one of shared text;
+		// kept after it is evicted, while the frame may still be reclaimed
 		VMProcess owner;
-		boolean isPinned;
-		TranslationEntry PTE;
+		int vpn;
+		// kernel copies in progress; a pinned frame is never evicted
+		int pinCount;
+		// set while the frame is being written to swap or filled in
+		boolean busy;
+		// brought in by fault-around and not referenced yet
+		boolean prefetched;
+		// next frame in the same hash bucket, or -1
+		int hashNext = -1;
+		// the shared text page in the frame; owner is null
+		SharedText.Page shared;
+		// the last working-set sample that found a shared page referenced;
+		// private pages keep theirs in VMProcess.pageUsedAt
+		long lastUsedSample;
+		// a used bit the sampler cleared, still owed to the replacement policy
+		boolean sampledUsed;
+		// the other processes mapping a private page since a fork; the page is
+		// read-only for all of them until one writes to it
+		LinkedList<Sharer> forkSharers = new LinkedList<Sharer>();
+
+		// the page is valid, in a page table or, for shared text, in the page
+		boolean isValid() {
+			return owner != null ? owner.isValid(vpn) : shared != null && shared.valid;
+		}
+
+		boolean isUsed() {
+			return owner != null ? owner.testBits(vpn, Processor.pteUsed) : shared.used;
+		}
+
+		void clearUsed() {
+			if(owner != null) {
+				owner.clearBits(vpn, Processor.pteUsed);
+			} else {
+				shared.used = false;
+			}
+		}
+
+		// shared text is never written
+		boolean isDirty() {
+			return owner != null && owner.testBits(vpn, Processor.pteDirty);
+		}
+	}
+
+	/**
+	 * A page of a process that maps a frame it does not own: one of shared
+	 * text, or one shared with the frame's owner since a fork.
+	 */
+	static class Sharer {
+		Sharer(VMProcess owner, int vpn) {
+			this.owner = owner;
+			this.vpn = vpn;
+		}
+
+		final VMProcess owner;
+		final int vpn;
 	}
 
 	public static pageMeta[] invertedPageTable = new pageMeta[Machine.processor().getNumPhysPages()]; 
-	public static Lock bigLock2;
-	public static Condition pinnedCV;
-	public static OpenFile swapFile;
-	public static Queue<Integer> swapList = new LinkedList<>(); // how many pages can be written to swap file
-	public static int swapSize = 30;
-	public static int clockptr = 0;
-
-	private static boolean ifAllPinned() {
-		boolean allPinned = true;
-		for(int i = 0; i < invertedPageTable.length; i ++) {
-			if(!invertedPageTable[i].isPinned) {
-				allPinned = false;
+	// serializes frame selection; guards invertedPageTable and physMemory
+	public static Lock frameLock;
+	// woken whenever a frame is freed, unpinned, or stops being busy
+	public static Condition frameCV;
+	public static SwapManager swap;
+	// evicted pages are compressed here first, and reach swap when it overflows
+	public static CompressedSwap compressedSwap;
+	// chooses eviction victims, set by VMKernel.replacementPolicy
+	public static ReplacementPolicy replacementPolicy;
+	// frames that are busy or pinned, so "nothing evictable" is an O(1) test
+	private static int numUnavailable = 0;
+	// replacement statistics
+	private static int numHits = 0, numMisses = 0, numEvictions = 0, numDirtyEvictions = 0;
+	// dirty pages queued for write-back by the policy, see scheduleWriteBack()
+	private static SynchList writeBackQueue = null;
+	// the page-out daemon keeps between lowWater and highWater frames free
+	private static int lowWater, highWater;
+	private static Condition pageOutCV;
+	private static int numPageOuts = 0, numReclaims = 0;
+	// a frame of zeros shared read-only by every untouched stack and BSS page,
+	// pinned once per mapping and freed with the last; -1 when there is none
+	public static int zeroFrame = -1;
+	private static int numZeroMaps = 0, numZeroCopies = 0;
+	// fault-around statistics
+	private static int numPrefetched = 0, numPrefetchUsed = 0, numPrefetchWasted = 0;
+	// hash of (process, vpn) to the frame holding the page, chained through pageMeta.hashNext
+	private static int[] hashBuckets;
+	// software TLB management; tlbVPN is the page of tlbOwner each TLB entry
+	// maps, or -1. Without a TLB the processor walks the page tables, and
+	// sets the used and dirty bits in them itself.
+	private static boolean usingTLB;
+	private static int[] tlbVPN;
+	private static VMProcess tlbOwner = null;
+	private static boolean tlbRandom;
+	// shared text statistics
+	private static int numSharedLoads = 0, numSharedMaps = 0, numSharedReleased = 0;
+	private static int numTLBRefills = 0, numTLBPreloads = 0, numTLBFlushes = 0, numTLBFlushesAvoided = 0;
+	// load control: live processes in the order they were last admitted, and
+	// those swapped out by the load controller, longest waiting first
+	private static LinkedList<VMProcess> activeProcesses = new LinkedList<VMProcess>();
+	private static LinkedList<VMProcess> suspendedProcesses = new LinkedList<VMProcess>();
+	private static Condition resumeCV;
+	// working sets are sampled every sampleInterval ticks, over the last workingSetWindow samples
+	private static int sampleInterval, workingSetWindow;
+	private static long numSamples = 0;
+	// the most frames a process may hold before it must replace its own pages, 0 for no limit
+	private static int maxResident;
+	private static int numSuspensions = 0, numResumes = 0, numSwappedOut = 0, numLocalEvictions = 0;
+	private static int peakDemand = 0, lastStolen = 0, numOverloaded = 0;
+	// paging statistics for all processes, and those of each process by
+	// pid, kept after it exits for the summary at halt
+	static PagingStats pagingStats;
+	// evictions of shared text pages, which belong to no process
+	private static PagingStats sharedTextStats;
+	private static TreeMap<Integer, PagingStats> processStats = new TreeMap<Integer, PagingStats>();
+	// copy-on-write fork statistics
+	private static int numForks = 0, numForkShared = 0, numForkCopies = 0, numForkReuses = 0,
+			numForkSwapCopies = 0;
+	// consecutive overloaded samples before a process is suspended
+	private static final int overloadSamples = 2;
+	// samples without running after which a process counts as idle
+	private static final int idleSamples = 2;
+
+	private static boolean isUnavailable(pageMeta frame) {
+		return frame.busy || frame.pinCount > 0;
+	}
+
+	// a frame still holds a process's page, valid or left for reclaim
+	private static boolean holds(int ppn, VMProcess owner, int vpn) {
+		return ppn >= 0 && invertedPageTable[ppn].owner == owner && invertedPageTable[ppn].vpn == vpn;
+	}
+
+	// a frame still holds a shared text page
+	private static boolean holdsShared(SharedText.Page page) {
+		return page.ppn >= 0 && invertedPageTable[page.ppn].shared == page;
+	}
+
+	// a page whose frame is being written to swap or filled in, must hold frameLock
+	private static boolean inTransit(VMProcess owner, int vpn) {
+		int ppn = owner.ppnOf(vpn);
+		if(ppn < 0 || !invertedPageTable[ppn].busy) {
+			return false;
+		}
+		return holds(ppn, owner, vpn) || findSharer(invertedPageTable[ppn].forkSharers, owner, vpn) != null;
+	}
+
+	// a process's page in a list of sharers, or null
+	private static Sharer findSharer(LinkedList<Sharer> sharers, VMProcess owner, int vpn) {
+		for(Sharer sharer : sharers) {
+			if(sharer.owner == owner && sharer.vpn == vpn) {
+				return sharer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return an object that identifies the page in a frame, and is equal for
+	 * the same page after it has been evicted and brought back, for policies
+	 * that remember evicted pages.
+	 */
+	public static Object pageKey(int ppn) {
+		pageMeta frame = invertedPageTable[ppn];
+		if(frame.owner == null) {
+			return frame.shared;
+		}
+		// pids are never reused
+		return ((long) frame.owner.getPid() << 32) | frame.vpn;
+	}
+
+	// set or clear a frame's busy bit, keeping numUnavailable current, must hold frameLock
+	private static void setBusy(int ppn, boolean busy) {
+		pageMeta frame = invertedPageTable[ppn];
+		boolean wasUnavailable = isUnavailable(frame);
+		frame.busy = busy;
+		numUnavailable += (isUnavailable(frame) ? 1 : 0) - (wasUnavailable ? 1 : 0);
+	}
+
+	// wait for a frame that is pinned or in transit, counting the wait against
+	// the process waiting, must hold frameLock
+	private static void waitForFrame() {
+		long start = Machine.timer().getTime();
+		frameCV.sleep();
+		long ticks = Machine.timer().getTime() - start;
+		pagingStats.recordFrameWait(ticks);
+		UserProcess process = UserKernel.currentProcess();
+		if(process instanceof VMProcess) {
+			((VMProcess) process).pagingStats.recordFrameWait(ticks);
+		}
+	}
+
+	// count the eviction of a page, against its owner or, for a page of
+	// shared text, which has none, separately; must hold frameLock
+	private static void countEviction(VMProcess owner, boolean dirty) {
+		pagingStats.recordEviction(dirty);
+		if(owner != null) {
+			owner.pagingStats.recordEviction(dirty);
+		} else {
+			sharedTextStats.recordEviction(dirty);
+		}
+	}
+
+	// ask the policy for a frame to evict, must hold frameLock
+	private static int getNextPage() {
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		while(true) {
+			// everything is pinned or in transit, wait for a frame to be released
+			if(numUnavailable == invertedPageTable.length) {
+				waitForFrame();
+				continue;
+			}
+
+			int ppn = replacementPolicy.selectVictim();
+			if(ppn >= 0) {
+				Lib.assertTrue(isEvictable(ppn));
+				return ppn;
+			}
+
+			// the policy is waiting on write-backs it scheduled
+			waitForFrame();
+		}
+	}
+
+	private static int hash(VMProcess owner, int vpn) {
+		return ((owner.getPid() * 0x9E3779B1) ^ vpn) & (hashBuckets.length - 1);
+	}
+
+	// add a frame that just became valid to the hash, must hold frameLock
+	private static void hashInsert(int ppn) {
+		pageMeta frame = invertedPageTable[ppn];
+		int bucket = hash(frame.owner, frame.vpn);
+		frame.hashNext = hashBuckets[bucket];
+		hashBuckets[bucket] = ppn;
+		frame.owner.numResident ++;
+		frame.owner.pagingStats.recordResident(frame.owner.numResident);
+	}
+
+	// remove a frame from the hash, must hold frameLock
+	private static void hashRemove(int ppn) {
+		pageMeta frame = invertedPageTable[ppn];
+		int bucket = hash(frame.owner, frame.vpn);
+		if(hashBuckets[bucket] == ppn) {
+			hashBuckets[bucket] = frame.hashNext;
+		} else {
+			for(int i = hashBuckets[bucket]; i >= 0; i = invertedPageTable[i].hashNext) {
+				if(invertedPageTable[i].hashNext == ppn) {
+					invertedPageTable[i].hashNext = frame.hashNext;
+					break;
+				}
+			}
+		}
+		frame.hashNext = -1;
+		frame.owner.numResident --;
+		frame.owner.pagingStats.recordResident(frame.owner.numResident);
+	}
+
+	/**
+	 * Find the frame holding a resident page, using the hash of the inverted
+	 * page table.
+	 *
+	 * @return the frame, or -1 if the page is not in a frame of its own.
+	 */
+	public static int lookupFrame(VMProcess owner, int vpn) {
+		frameLock.acquire();
+		int ppn = hashBuckets[hash(owner, vpn)];
+		while(ppn >= 0) {
+			pageMeta frame = invertedPageTable[ppn];
+			if(frame.owner == owner && frame.vpn == vpn) {
 				break;
 			}
+			ppn = frame.hashNext;
 		}
-		return allPinned;
+		frameLock.release();
+		return ppn;
 	}
 
-	// if need to expand, expand, else do nothing
-	private static void checkExpandSwap() {
-		// Lib.debug('f', "swapList's size is " + swapList.size());
-		if(swapList.size() == 0) {
-			int originalSize = swapSize;
-			swapSize += swapSize;
-			for(int i = originalSize; i < swapSize; i ++) {
-				swapList.add(i);
+	// a frame's page is no longer valid, must hold frameLock
+	private static void unmapFrame(int ppn) {
+		pageMeta frame = invertedPageTable[ppn];
+		if(frame.shared != null) {
+			// unmap it from every process sharing it
+			for(Sharer sharer : frame.shared.sharers) {
+				invalidateTLB(sharer.owner, sharer.vpn);
+				sharer.owner.clearBits(sharer.vpn, Processor.pteValid);
 			}
-			Lib.debug('f', "Doubling swapSize from " + originalSize + " to " + swapSize);
+			frame.shared.sharers.clear();
+			frame.shared.valid = false;
+			return;
+		}
+		// the processes sharing it since a fork each get a copy in swap, see
+		// writeToSwap(), and a writable page when they fault it back in
+		for(Sharer sharer : frame.forkSharers) {
+			invalidateTLB(sharer.owner, sharer.vpn);
+			sharer.owner.clearBits(sharer.vpn, Processor.pteValid | Processor.pteReadOnly);
+		}
+		if(!frame.forkSharers.isEmpty()) {
+			frame.owner.setBits(frame.vpn, Processor.pteDirty);
 		}
-		return;
+		invalidateTLB(frame.owner, frame.vpn);
+		frame.owner.clearBits(frame.vpn, Processor.pteValid | Processor.pteReadOnly);
+		hashRemove(ppn);
 	}
 
-	// use clock algorithm to get next page
-	public static int getNextPageClock() {
-		// all pinned, sleep, will be waken when someone call unpin()
-		while(ifAllPinned()) {
-			pinnedCV.sleep();
+	// copy a TLB entry's used and dirty bits into its page, clearing them in
+	// the TLB if asked, must hold frameLock
+	private static void syncTLBEntry(int i, boolean clearUsed, boolean clearDirty) {
+		TranslationEntry entry = Machine.processor().readTLBEntry(i);
+		if(!entry.valid) {
+			return;
 		}
+		tlbOwner.setBits(tlbVPN[i], (entry.used ? Processor.pteUsed : 0) | (entry.dirty ? Processor.pteDirty : 0));
+		if((clearUsed && entry.used) || (clearDirty && entry.dirty)) {
+			entry.used &= !clearUsed;
+			entry.dirty &= !clearDirty;
+			Machine.processor().writeTLBEntry(i, entry);
+		}
+	}
 
-		// clock
-		while(invertedPageTable[clockptr].isPinned || invertedPageTable[clockptr].PTE.used) {
-			invertedPageTable[clockptr].PTE.used = false;
-			clockptr = (++clockptr) % invertedPageTable.length;
-			Lib.debug('a', "inverted page table: " + invertedPageTable[clockptr].PTE);
+	// bring a page's used and dirty bits up to date from the TLB, must hold
+	// frameLock; without one they are up to date already
+	private static void syncTLB(VMProcess owner, int vpn, boolean clearUsed, boolean clearDirty) {
+		if(!usingTLB || owner != tlbOwner) {
+			return;
+		}
+		for(int i = 0; i < tlbVPN.length; i ++) {
+			if(tlbVPN[i] == vpn) {
+				syncTLBEntry(i, clearUsed, clearDirty);
+			}
+		}
+	}
+
+	// drop a page's TLB entry, keeping its bits, must hold frameLock
+	private static void invalidateTLB(VMProcess owner, int vpn) {
+		if(!usingTLB || owner != tlbOwner) {
+			return;
+		}
+		for(int i = 0; i < tlbVPN.length; i ++) {
+			if(tlbVPN[i] == vpn) {
+				syncTLBEntry(i, false, false);
+				Machine.processor().writeTLBEntry(i, new TranslationEntry());
+				tlbVPN[i] = -1;
+			}
+		}
+	}
+
+	// the TLB entry to replace: a free one, else random or not recently used
+	private static int chooseTLBEntry() {
+		int size = tlbVPN.length;
+		for(int i = 0; i < size; i ++) {
+			if(tlbVPN[i] < 0) {
+				return i;
+			}
+		}
+		if(tlbRandom) {
+			return Lib.random(size);
+		}
+
+		int start = Lib.random(size);
+		for(int k = 0; k < size; k ++) {
+			int i = (start + k) % size;
+			if(!Machine.processor().readTLBEntry(i).used) {
+				return i;
+			}
+		}
+		// all recently used: start a new period
+		for(int i = 0; i < size; i ++) {
+			syncTLBEntry(i, true, false);
+		}
+		return start;
+	}
+
+	// write a valid page into a TLB entry, with its used and dirty bits clear
+	private static void writeTLB(int i, VMProcess owner, int vpn) {
+		Machine.processor().writeTLBEntry(i, new TranslationEntry(vpn, owner.ppnOf(vpn), true,
+				owner.testBits(vpn, Processor.pteReadOnly), false, false));
+		tlbVPN[i] = vpn;
+	}
+
+	/**
+	 * Load a resident page into the TLB, replacing another entry if it is
+	 * full. Does nothing if the page was evicted in the meantime, so the
+	 * access misses again.
+	 */
+	public static void fillTLB(VMProcess owner, int vpn) {
+		frameLock.acquire();
+		Lib.assertTrue(tlbOwner == owner);
+		if(owner.isValid(vpn)) {
+			int i = chooseTLBEntry();
+			if(tlbVPN[i] >= 0) {
+				syncTLBEntry(i, false, false);
+			}
+			writeTLB(i, owner, vpn);
+			numTLBRefills ++;
+		}
+		frameLock.release();
+	}
+
+	/**
+	 * Give the TLB to a process that is about to run. The hardware TLB has no
+	 * process tags, so they are kept here: if the process still owns the TLB,
+	 * as when only kernel threads ran in between, nothing is flushed.
+	 * Otherwise the TLB is flushed and reloaded with the entries the process
+	 * had when it last ran, if their pages are still resident.
+	 *
+	 * <p>
+	 * Called during a context switch, so it cannot take <tt>frameLock</tt>,
+	 * and disables interrupts instead; nothing that holds the lock gives up
+	 * the processor in the middle of changing the TLB.
+	 *
+	 * @param saved the pages the process had in the TLB, or <tt>null</tt>.
+	 */
+	public static void switchTLB(VMProcess process, int[] saved) {
+		boolean intStatus = Machine.interrupt().disable();
+		if(tlbOwner == process) {
+			numTLBFlushesAvoided ++;
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
+		flushTLB();
+		numTLBFlushes ++;
+		tlbOwner = process;
+
+		if(saved != null) {
+			for(int i = 0; i < saved.length && i < tlbVPN.length; i ++) {
+				if(saved[i] >= 0 && process.isValid(saved[i])) {
+					writeTLB(i, process, saved[i]);
+					numTLBPreloads ++;
+				}
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+	}
+
+	// empty the TLB, keeping the bits of its owner's pages
+	private static void flushTLB() {
+		for(int i = 0; i < tlbVPN.length; i ++) {
+			if(tlbVPN[i] >= 0) {
+				syncTLBEntry(i, false, false);
+				Machine.processor().writeTLBEntry(i, new TranslationEntry());
+				tlbVPN[i] = -1;
+			}
+		}
+	}
+
+	/**
+	 * Return the pages in the TLB, to be reloaded by <tt>switchTLB()</tt>
+	 * when the process that owns it runs again. Like <tt>switchTLB()</tt>,
+	 * this runs with interrupts disabled rather than under <tt>frameLock</tt>.
+	 */
+	public static int[] saveTLB(VMProcess process) {
+		boolean intStatus = Machine.interrupt().disable();
+		int[] saved = null;
+		if(tlbOwner == process) {
+			for(int i = 0; i < tlbVPN.length; i ++) {
+				if(tlbVPN[i] >= 0) {
+					syncTLBEntry(i, false, false);
+				}
+			}
+			saved = tlbVPN.clone();
+		}
+		Machine.interrupt().restore(intStatus);
+		return saved;
+	}
+
+	/**
+	 * Test whether a frame holds a page that can be evicted now. A policy
+	 * must never choose a frame for which this is <tt>false</tt>, and should
+	 * leave such frames' state alone when it passes them.
+	 */
+	public static boolean isEvictable(int ppn) {
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		pageMeta frame = invertedPageTable[ppn];
+		return (frame.owner != null || frame.shared != null) && !isUnavailable(frame);
+	}
+
+	/**
+	 * Test and clear the used bit of the page in a frame. A set bit is
+	 * counted as a hit, since the page was referenced while resident.
+	 */
+	public static boolean testAndClearUsed(int ppn) {
+		if(!collectUsed(invertedPageTable[ppn])) {
+			return false;
+		}
+		invertedPageTable[ppn].clearUsed();
+		numHits ++;
+		return true;
+	}
+
+	// gather a frame's used bits into its page's and return it, must hold frameLock
+	private static boolean collectUsed(pageMeta frame) {
+		boolean used = frame.sampledUsed;
+		frame.sampledUsed = false;
+		if(frame.shared != null) {
+			// a shared page is used if any sharer used it
+			for(Sharer sharer : frame.shared.sharers) {
+				used |= takeUsed(sharer.owner, sharer.vpn);
+			}
+			frame.shared.used |= used;
+		} else {
+			for(Sharer sharer : frame.forkSharers) {
+				used |= takeUsed(sharer.owner, sharer.vpn);
+			}
+			syncTLB(frame.owner, frame.vpn, true, false);
+			if(used) {
+				frame.owner.setBits(frame.vpn, Processor.pteUsed);
+			}
+		}
+		checkPrefetched(frame);
+		return frame.isUsed();
+	}
+
+	// test and clear the used bit of a page mapping another's frame
+	private static boolean takeUsed(VMProcess owner, int vpn) {
+		syncTLB(owner, vpn, true, false);
+		boolean used = owner.testBits(vpn, Processor.pteUsed);
+		owner.clearBits(vpn, Processor.pteUsed);
+		return used;
+	}
+
+	// a prefetched page that has been referenced paid off, must hold frameLock
+	private static void checkPrefetched(pageMeta frame) {
+		if(frame.prefetched && frame.isUsed()) {
+			frame.prefetched = false;
+			numPrefetchUsed ++;
+			if(frame.owner != null) {
+				frame.owner.prefetchUsed();
+			}
+		}
+	}
+
+	// a page is being evicted; if it was prefetched and never used, it was wasted
+	private static void checkPrefetchWasted(pageMeta frame) {
+		checkPrefetched(frame);
+		if(frame.prefetched) {
+			frame.prefetched = false;
+			numPrefetchWasted ++;
+			if(frame.owner != null) {
+				frame.owner.prefetchWasted();
+			}
+		}
+	}
+
+	/**
+	 * Test whether the page in a frame has been modified since it was last
+	 * written to swap.
+	 */
+	public static boolean isDirty(int ppn) {
+		pageMeta frame = invertedPageTable[ppn];
+		if(frame.owner != null) {
+			syncTLB(frame.owner, frame.vpn, false, false);
+		}
+		return frame.isDirty();
+	}
+
+	/**
+	 * Queue the dirty page in a frame to be written to swap in the
+	 * background, so it can later be evicted without waiting on the write.
+	 * The frame stays pinned until the write finishes. Must hold
+	 * <tt>frameLock</tt>.
+	 */
+	public static void scheduleWriteBack(int ppn) {
+		Lib.assertTrue(frameLock.isHeldByCurrentThread() && isEvictable(ppn));
+		if(writeBackQueue == null) {
+			writeBackQueue = new SynchList();
+			new KThread(new Runnable() {
+				public void run() {
+					while(true) {
+						writeBack((Integer) writeBackQueue.removeFirst());
+					}
+				}
+			}).setName("write-back").fork();
+		}
+
+		invertedPageTable[ppn].pinCount ++;
+		numUnavailable ++;
+		writeBackQueue.add(ppn);
+	}
+
+	private static void writeBack(int ppn) {
+		frameLock.acquire();
+		VMProcess owner = invertedPageTable[ppn].owner;
+		int vpn = invertedPageTable[ppn].vpn;
+		// writes made while the copy is in flight set the bit again
+		syncTLB(owner, vpn, false, true);
+		owner.clearBits(vpn, Processor.pteDirty);
+		frameLock.release();
+
+		writeToSwap(ppn, owner, vpn);
+		unpin(ppn);
+	}
+
+	/**
+	 * Allocate a frame for a page, evicting another page if no frame is free.
+	 * Only the choice of frame happens under <tt>frameLock</tt>; the victim is
+	 * written to swap without it, so other processes keep faulting meanwhile.
+	 * The frame is returned busy; the caller fills it in and then calls
+	 * <tt>finishPageIn()</tt>.
+	 *
+	 * <p>
+	 * If the page itself was just evicted, this first waits for it to finish
+	 * being written to swap, so that its swap slot is known.
+	 *
+	 * @param owner the process the page belongs to.
+	 * @param vpn the page.
+	 * @return the physical page number of the frame.
+	 */
+	public static int allocateFrame(VMProcess owner, int vpn) {
+		return allocateFrame(owner, vpn, null);
+	}
+
+	/**
+	 * Allocate a frame for a shared text page claimed with
+	 * <tt>mapSharedPage()</tt> or <tt>claimSharedPage()</tt>, as
+	 * <tt>allocateFrame()</tt> does for a process's page. The caller calls
+	 * <tt>finishSharedPageIn()</tt>.
+	 */
+	public static int allocateSharedFrame(SharedText.Page page) {
+		return allocateFrame(null, -1, page);
+	}
+
+	// allocate a frame for a page of owner's, or of shared text if owner is null
+	private static int allocateFrame(VMProcess owner, int vpn, SharedText.Page page) {
+		frameLock.acquire();
+		while(owner != null && inTransit(owner, vpn)) {
+			waitForFrame();
 		}
-		
-		pageMeta evictPage = invertedPageTable[clockptr];
-		clockptr = (++clockptr) % invertedPageTable.length;
+
+		VMProcess victimOwner = null;
+		int victimVPN = -1;
+		boolean victimDirty = false;
+		// a process at its resident limit replaces one of its own pages
+		int ppn = selectLocalVictim(owner);
+		boolean evicting = ppn >= 0;
+		if(evicting) {
+			replacementPolicy.pageFreed(ppn);
+			numLocalEvictions ++;
+		} else if(physMemory.size() > 0) {
+			// a page the daemon left in the frame can no longer be reclaimed
+			ppn = physMemory.poll();
+			if(physMemory.size() < lowWater) {
+				pageOutCV.wake();
+			}
+		} else {
+			ppn = getNextPage();
+			evicting = true;
+		}
+		pageMeta frame = invertedPageTable[ppn];
+		if(evicting) {
+			victimOwner = frame.owner;
+			victimVPN = frame.vpn;
+			unmapFrame(ppn);
+			checkPrefetchWasted(frame);
+			victimDirty = frame.isDirty();
+			numEvictions ++;
+			if(victimDirty) {
+				numDirtyEvictions ++;
+			}
+			countEviction(victimOwner, victimDirty);
+		}
+		setBusy(ppn, true);
+		frameLock.release();
 
 		// dirty, write to swap
-		if(evictPage.PTE.dirty) {
-			writeToSwap(evictPage.PTE.ppn, evictPage.PTE);
+		if(victimDirty) {
+			writeToSwap(ppn, victimOwner, victimVPN);
+		}
+
+		// hand the frame over; the victim is no longer in transit
+		frameLock.acquire();
+		Lib.assertTrue(frame.forkSharers.isEmpty());
+		setPage(frame, owner, vpn, page);
+		if(owner != null) {
+			// the page faulted, so it is in the working set
+			owner.pageUsedAt[vpn] = owner.virtualSamples;
+		}
+		frameCV.wakeAll();
+		frameLock.release();
+		return ppn;
+	}
+
+	// give a frame a new page, must hold frameLock
+	private static void setPage(pageMeta frame, VMProcess owner, int vpn, SharedText.Page page) {
+		frame.owner = owner;
+		frame.vpn = vpn;
+		frame.shared = page;
+		frame.sampledUsed = false;
+	}
+
+	// the frame a process at its resident limit should give up, or -1 if it is
+	// under the limit or has nothing evictable; second chance over its own
+	// frames, must hold frameLock
+	private static int selectLocalVictim(VMProcess owner) {
+		if(maxResident == 0 || owner == null || owner.numResident < maxResident) {
+			return -1;
+		}
+		int numFrames = invertedPageTable.length;
+		for(int i = 0; i < 2 * numFrames; i ++) {
+			int ppn = owner.localHand;
+			owner.localHand = (ppn + 1) % numFrames;
+			pageMeta frame = invertedPageTable[ppn];
+			if(frame.owner != owner || !frame.isValid() || !isEvictable(ppn)) {
+				continue;
+			}
+			if(!testAndClearUsed(ppn)) {
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Allocate a frame to prefetch a page into, but only if one is free
+	 * without dipping into the page-out daemon's reserve: prefetching never
+	 * evicts, directly or by waking the daemon. Like <tt>allocateFrame()</tt>, the frame is returned busy
+	 * and the caller fills it in and calls <tt>finishPageIn()</tt>.
+	 *
+	 * @return the frame, or -1 if the page is already resident, in transit or
+	 * reclaimable, or memory is short.
+	 */
+	public static int allocatePrefetchFrame(VMProcess owner, int vpn) {
+		return allocatePrefetchFrame(owner, vpn, null);
+	}
+
+	/**
+	 * Allocate a frame to prefetch a shared text page claimed with
+	 * <tt>claimSharedPage()</tt> into, as <tt>allocatePrefetchFrame()</tt>
+	 * does for a process's page.
+	 */
+	public static int allocateSharedPrefetchFrame(SharedText.Page page) {
+		return allocatePrefetchFrame(null, -1, page);
+	}
+
+	// a free frame for a page of owner's, or of shared text if owner is null, or -1
+	private static int allocatePrefetchFrame(VMProcess owner, int vpn, SharedText.Page page) {
+		frameLock.acquire();
+		if((owner != null && (owner.isValid(vpn) || holds(owner.ppnOf(vpn), owner, vpn) || inTransit(owner, vpn)))
+				|| physMemory.size() <= Math.max(highWater, 1)
+				|| (maxResident > 0 && owner != null && owner.numResident >= maxResident)) {
+			frameLock.release();
+			return -1;
+		}
+
+		int ppn = physMemory.poll();
+		setBusy(ppn, true);
+		setPage(invertedPageTable[ppn], owner, vpn, page);
+		frameLock.release();
+		return ppn;
+	}
+
+	/**
+	 * Map a shared text page into a process, if it is resident or was evicted
+	 * by the page-out daemon but is still in its frame. Otherwise the caller
+	 * must read it in: the page is marked as loading, so other processes
+	 * wait for it, and the caller calls <tt>allocateSharedFrame()</tt> and
+	 * <tt>finishSharedPageIn()</tt>.
+	 *
+	 * @param owner the process mapping the page.
+	 * @param vpn the page in its address space.
+	 * @return <tt>true</tt> if the page is now mapped.
+	 */
+	public static boolean mapSharedPage(VMProcess owner, int vpn, SharedText.Page page) {
+		frameLock.acquire();
+		while(true) {
+			if(page.loading || (holdsShared(page) && invertedPageTable[page.ppn].busy)) {
+				waitForFrame();
+				continue;
+			}
+
+			if(!page.valid && holdsShared(page)) {
+				physMemory.remove((Integer) page.ppn);
+				page.used = true;
+				page.valid = true;
+				numReclaims ++;
+				replacementPolicy.pageIn(page.ppn);
+				if(physMemory.size() < lowWater) {
+					pageOutCV.wake();
+				}
+			}
+
+			if(page.valid) {
+				addSharer(page, owner, vpn);
+				numSharedMaps ++;
+				frameLock.release();
+				return true;
+			}
+
+			page.loading = true;
+			frameLock.release();
+			return false;
 		}
-		
-		evictPage.PTE.valid = false;
-		return evictPage.PTE.ppn;
 	}
 
-	// don't forget to pin/unpin
-	public static void writeToSwap(int ppn, TranslationEntry PTE) {
-		// pin
-		pin(ppn);
-		checkExpandSwap();
-		// poll page from swap list, process, vpn -> spn
+	/**
+	 * Claim a shared text page for fault-around, if it is not in memory and
+	 * no one is loading it. Never waits.
+	 *
+	 * @return <tt>true</tt> if the caller should load it, as after
+	 * <tt>mapSharedPage()</tt> returns <tt>false</tt>.
+	 */
+	public static boolean claimSharedPage(SharedText.Page page) {
+		frameLock.acquire();
+		boolean claimed = !page.loading && !page.valid && !holdsShared(page);
+		if(claimed) {
+			page.loading = true;
+		}
+		frameLock.release();
+		return claimed;
+	}
+
+	/**
+	 * Give up a claim on a shared text page without loading it.
+	 */
+	public static void abandonSharedPage(SharedText.Page page) {
+		frameLock.acquire();
+		page.loading = false;
+		frameCV.wakeAll();
+		frameLock.release();
+	}
+
+	/**
+	 * Make a shared text page read into a frame resident, and map it into
+	 * the process that read it.
+	 *
+	 * @param owner the process that read the page.
+	 * @param vpn the page in its address space.
+	 * @param prefetched <tt>true</tt> if nothing has faulted on the page.
+	 */
+	public static void finishSharedPageIn(int ppn, SharedText.Page page, VMProcess owner, int vpn,
+			boolean prefetched) {
+		frameLock.acquire();
+		pageMeta frame = invertedPageTable[ppn];
+		Lib.assertTrue(frame.shared == page && frame.owner == null);
+		frame.lastUsedSample = numSamples;
+		page.ppn = ppn;
+		page.used = !prefetched;
+		page.valid = true;
+		page.loading = false;
+		addSharer(page, owner, vpn);
+		if(prefetched) {
+			owner.clearBits(vpn, Processor.pteUsed);
+		}
+		setBusy(ppn, false);
+		frame.prefetched = prefetched;
+		if(prefetched) {
+			numPrefetched ++;
+		} else {
+			numMisses ++;
+		}
+		numSharedLoads ++;
+		replacementPolicy.pageIn(ppn);
+		frameCV.wakeAll();
+		frameLock.release();
+	}
+
+	// a shared text page that is mapped, being loaded, or still in a frame,
+	// must hold frameLock
+	static boolean isSharedPageInUse(SharedText.Page page) {
+		return page.loading || !page.sharers.isEmpty() || page.valid || holdsShared(page);
+	}
+
+	// free the frames of shared text pages no process maps, once their
+	// executable has changed and no process will map them again; must hold
+	// frameLock
+	static void releaseSharedPages(SharedText.Page[] pages) {
+		for(SharedText.Page page : pages) {
+			if(page == null || !page.valid || !page.sharers.isEmpty()) {
+				continue;
+			}
+			int ppn = page.ppn;
+			pageMeta frame = invertedPageTable[ppn];
+			if(frame.shared != page || isUnavailable(frame)) {
+				continue;
+			}
+			unmapFrame(ppn);
+			checkPrefetched(frame);
+			replacementPolicy.pageFreed(ppn);
+			physMemory.add(ppn);
+			frame.shared = null;
+			frame.prefetched = false;
+			numSharedReleased ++;
+		}
+	}
+
+	// map a resident shared page into a process, must hold frameLock
+	private static void addSharer(SharedText.Page page, VMProcess owner, int vpn) {
+		owner.setPPN(vpn, page.ppn);
+		owner.setBits(vpn, Processor.pteUsed | Processor.pteValid);
+		page.sharers.add(new Sharer(owner, vpn));
+	}
+
+	/**
+	 * Take back a page that the page-out daemon evicted, if its frame is
+	 * still on the free list and has not been reused. Must be called before
+	 * <tt>allocateFrame()</tt>, by the owner of the page.
+	 *
+	 * @return the frame, now holding the valid page again, or -1.
+	 */
+	public static int reclaimFrame(VMProcess owner, int vpn) {
+		frameLock.acquire();
+		// the daemon may still be writing it out
+		while(inTransit(owner, vpn)) {
+			waitForFrame();
+		}
+
+		int ppn = owner.ppnOf(vpn);
+		if(!holds(ppn, owner, vpn) || owner.isValid(vpn)) {
+			frameLock.release();
+			return -1;
+		}
+
+		physMemory.remove((Integer) ppn);
+		owner.setBits(vpn, Processor.pteUsed | Processor.pteValid);
+		hashInsert(ppn);
+		owner.pageUsedAt[vpn] = owner.virtualSamples;
+		numReclaims ++;
+		replacementPolicy.pageIn(ppn);
+		if(physMemory.size() < lowWater) {
+			pageOutCV.wake();
+		}
+		frameLock.release();
+		return ppn;
+	}
+
+	// evict pages ahead of demand so faults find free frames
+	private static void pageOutDaemon() {
+		frameLock.acquire();
+		while(true) {
+			while(physMemory.size() >= lowWater) {
+				pageOutCV.sleep();
+			}
+
+			while(physMemory.size() < highWater) {
+				if(numUnavailable + physMemory.size() == invertedPageTable.length) {
+					break;
+				}
+				int ppn = replacementPolicy.selectVictim();
+				if(ppn < 0) {
+					break;
+				}
+
+				pageMeta frame = invertedPageTable[ppn];
+				unmapFrame(ppn);
+				checkPrefetchWasted(frame);
+				setBusy(ppn, true);
+				numPageOuts ++;
+				boolean dirty = frame.isDirty();
+				countEviction(frame.owner, dirty);
+				frameLock.release();
+
+				// clean it now so the page can be reclaimed or the frame reused without I/O
+				if(dirty) {
+					writeToSwap(ppn, frame.owner, frame.vpn);
+					frame.owner.clearBits(frame.vpn, Processor.pteDirty);
+				}
+
+				frameLock.acquire();
+				setBusy(ppn, false);
+				physMemory.add(ppn);
+				frameCV.wakeAll();
+			}
+
+			// nothing more could be evicted; wait for the next fault to ask again
+			if(physMemory.size() < lowWater) {
+				pageOutCV.sleep();
+			}
+		}
+	}
+
+	/**
+	 * Admit a new process to memory. Called once its page table is set up.
+	 */
+	public static void addProcess(VMProcess process) {
+		frameLock.acquire();
+		process.lastRanSample = numSamples;
+		activeProcesses.add(process);
+		processStats.put(process.getPid(), process.pagingStats);
+		frameLock.release();
+	}
+
+	/**
+	 * Block a process the load controller has swapped out until it is
+	 * resumed. Called by the process on entering the kernel.
+	 */
+	public static void waitIfSuspended(VMProcess process) {
+		frameLock.acquire();
+		while(process.suspended) {
+			resumeCV.sleep();
+		}
+		frameLock.release();
+	}
+
+	// sample the used bits and adjust the multiprogramming level, forever
+	private static void loadController() {
+		while(true) {
+			ThreadedKernel.alarm.waitUntil(sampleInterval);
+			frameLock.acquire();
+			int demand = sampleWorkingSets();
+			peakDemand = Math.max(peakDemand, demand);
+
+			// the frames the working sets may take without the page-out daemon
+			// having to steal from them
+			int capacity = invertedPageTable.length - lowWater;
+			VMProcess victim = null;
+			int numRunning = 0;
+			for(VMProcess process : activeProcesses) {
+				if(isRunning(process) && process.workingSet > 0) {
+					numRunning ++;
+					victim = process;
+				}
+			}
+
+			// pages are being taken from the working sets, and not just for a
+			// moment, as when a process starts while its parent is about to wait
+			int numStolen = numEvictions + numPageOuts;
+			if(demand > capacity && numStolen > lastStolen) {
+				numOverloaded ++;
+			} else {
+				numOverloaded = 0;
+			}
+			lastStolen = numStolen;
+
+			if(numOverloaded >= overloadSamples && numRunning > 1) {
+				numOverloaded = 0;
+				// the most recently admitted process gives way
+				suspend(victim);
+			} else if(!suspendedProcesses.isEmpty()) {
+				VMProcess next = suspendedProcesses.getFirst();
+				if(numRunning == 0 || demand + next.workingSet <= capacity) {
+					resume(next);
+				}
+			}
+			frameLock.release();
+		}
+	}
+
+	// a process that has not run lately, as when it waits for a child or for
+	// input, makes no demand; its pages are left to the policy
+	private static boolean isRunning(VMProcess process) {
+		return numSamples - process.lastRanSample < idleSamples;
+	}
+
+	/*
+	 * The working set is the pages referenced in the last workingSetWindow
+	 * samples, whether or not they are still resident: under thrashing the
+	 * resident set is smaller than the working set. For a private page the
+	 * window is counted in samples in which its owner ran, so that a process
+	 * sharing the CPU with others does not see its pages age while it waits
+	 * for its turn.
+	 */
+
+	// take a sample of every resident page's used bit, and return the total
+	// working set of the processes running, must hold frameLock
+	private static int sampleWorkingSets() {
+		numSamples ++;
+		for(VMProcess process : activeProcesses) {
+			if(process.ranSinceSample) {
+				process.ranSinceSample = false;
+				process.virtualSamples ++;
+				process.lastRanSample = numSamples;
+			}
+		}
+
+		// a shared page counts once, however many processes use it
+		int demand = 0;
+		for(int ppn = 0; ppn < invertedPageTable.length; ppn ++) {
+			pageMeta frame = invertedPageTable[ppn];
+			if(frame.busy || !frame.isValid()) {
+				continue;
+			}
+			if(collectUsed(frame)) {
+				// the policy still sees the reference
+				frame.clearUsed();
+				frame.sampledUsed = true;
+				if(frame.owner != null) {
+					frame.owner.pageUsedAt[frame.vpn] = frame.owner.virtualSamples;
+					for(Sharer sharer : frame.forkSharers) {
+						sharer.owner.pageUsedAt[sharer.vpn] = sharer.owner.virtualSamples;
+					}
+				} else {
+					frame.lastUsedSample = numSamples;
+				}
+			}
+			if(frame.shared != null && numSamples - frame.lastUsedSample < workingSetWindow) {
+				demand ++;
+			}
+		}
+
+		for(VMProcess process : activeProcesses) {
+			int workingSet = 0;
+			for(int usedAt : process.pageUsedAt) {
+				if(process.virtualSamples - usedAt < workingSetWindow) {
+					workingSet ++;
+				}
+			}
+			// a process just resumed has not faulted its working set back in yet
+			if(numSamples - process.resumedAt < workingSetWindow) {
+				process.workingSet = Math.max(process.workingSet, workingSet);
+			} else {
+				process.workingSet = workingSet;
+			}
+			if(isRunning(process)) {
+				demand += process.workingSet;
+			}
+		}
+		return demand;
+	}
+
+	// swap a process out and keep it from running, must hold frameLock
+	private static void suspend(VMProcess process) {
+		Lib.debug(dbgVM, "suspending process " + process.getPid() + ", working set " + process.workingSet);
+		activeProcesses.remove(process);
+		suspendedProcesses.add(process);
+		process.suspended = true;
+		numSuspensions ++;
+
+		// it stops at its next fault or system call; pages it is using until
+		// then are in transit, and it faults them back in when it resumes
+		for(int ppn = 0; ppn < invertedPageTable.length; ppn ++) {
+			pageMeta frame = invertedPageTable[ppn];
+			if(frame.owner != process || !frame.isValid() || !isEvictable(ppn)) {
+				continue;
+			}
+			unmapFrame(ppn);
+			checkPrefetchWasted(frame);
+			replacementPolicy.pageFreed(ppn);
+			setBusy(ppn, true);
+			numSwappedOut ++;
+			int vpn = frame.vpn;
+			frameLock.release();
+
+			if(process.testBits(vpn, Processor.pteDirty)) {
+				writeToSwap(ppn, process, vpn);
+				process.clearBits(vpn, Processor.pteDirty);
+			}
+
+			frameLock.acquire();
+			setBusy(ppn, false);
+			physMemory.add(ppn);
+			frameCV.wakeAll();
+		}
+	}
+
+	// let a suspended process run again, must hold frameLock
+	private static void resume(VMProcess process) {
+		Lib.debug(dbgVM, "resuming process " + process.getPid() + ", working set " + process.workingSet);
+		suspendedProcesses.remove(process);
+		activeProcesses.add(process);
+		process.suspended = false;
+		process.resumedAt = numSamples;
+		process.lastRanSample = numSamples;
+		numResumes ++;
+		resumeCV.wakeAll();
+	}
+
+	/**
+	 * Make a page filled in after <tt>allocateFrame()</tt> or
+	 * <tt>allocatePrefetchFrame()</tt> valid. A prefetched page starts with
+	 * its used bit clear, so the policy evicts it first unless it is
+	 * referenced.
+	 *
+	 * @param prefetched <tt>true</tt> if nothing has faulted on the page.
+	 */
+	public static void finishPageIn(int ppn, VMProcess owner, int vpn, boolean prefetched) {
+		frameLock.acquire();
+		owner.setPPN(vpn, ppn);
+		owner.setBits(vpn, (prefetched ? 0 : Processor.pteUsed) | Processor.pteValid);
+		hashInsert(ppn);
+		setBusy(ppn, false);
+		invertedPageTable[ppn].prefetched = prefetched;
+		if(prefetched) {
+			numPrefetched ++;
+		} else {
+			numMisses ++;
+		}
+		replacementPolicy.pageIn(ppn);
+		frameCV.wakeAll();
+		frameLock.release();
+	}
+
+	/**
+	 * Map a page to the shared zero frame, read-only. The owner's first write
+	 * to it faults, and <tt>copyZeroPage()</tt> gives it a frame of its own.
+	 * The zero frame is shared by every such page, so they cost at most one
+	 * frame between them. Must be called by the owner of the page.
+	 */
+	public static void mapZeroPage(VMProcess owner, int vpn) {
+		frameLock.acquire();
+		if(zeroFrame < 0) {
+			frameLock.release();
+			int ppn = allocateFrame(owner, vpn);
+			int pageSize = Processor.pageSize;
+			Arrays.fill(Machine.processor().getMemory(), ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+
+			// ownerless, so no policy sees it
+			frameLock.acquire();
+			invertedPageTable[ppn].owner = null;
+			setBusy(ppn, false);
+			if(zeroFrame < 0) {
+				zeroFrame = ppn;
+			} else {
+				// another process made one while we waited for a frame
+				physMemory.add(ppn);
+				frameCV.wakeAll();
+			}
+		}
+		if(invertedPageTable[zeroFrame].pinCount ++ == 0) {
+			numUnavailable ++;
+		}
+		owner.setPPN(vpn, zeroFrame);
+		owner.clearBits(vpn, Processor.pteDirty);
+		owner.setBits(vpn, Processor.pteReadOnly | Processor.pteUsed | Processor.pteValid);
+		numZeroMaps ++;
+		frameLock.release();
+	}
+
+	/**
+	 * Test whether a page is mapped to the shared zero frame.
+	 */
+	public static boolean isZeroMapped(VMProcess owner, int vpn) {
+		return owner.isValid(vpn) && zeroFrame >= 0 && owner.ppnOf(vpn) == zeroFrame;
+	}
+
+	// drop a mapping of the zero frame, must hold frameLock
+	private static void unmapZeroPage(VMProcess owner, int vpn) {
+		invalidateTLB(owner, vpn);
+		owner.clearBits(vpn, Processor.pteValid | Processor.pteReadOnly);
+		unpinLocked(zeroFrame);
+	}
+
+	/**
+	 * Give a page mapped to the zero frame a private, zero-filled, writable
+	 * frame. Must be called by the owner of the page.
+	 *
+	 * @return the new frame.
+	 */
+	public static int copyZeroPage(VMProcess owner, int vpn) {
+		Lib.assertTrue(isZeroMapped(owner, vpn));
+		frameLock.acquire();
+		unmapZeroPage(owner, vpn);
+		numZeroCopies ++;
+		frameLock.release();
+
+		int ppn = allocateFrame(owner, vpn);
 		int pageSize = Processor.pageSize;
-		int swapPageNum = swapList.poll();
-		
-		PTE.vpn = swapPageNum;
-		byte[] memory = Machine.processor().getMemory();
-		int res = swapFile.write(swapPageNum * pageSize, memory, ppn * pageSize, pageSize);
-		
-		if(res != pageSize) {
-			Lib.assertNotReached("swap out faliure: size not equal");
+		Arrays.fill(Machine.processor().getMemory(), ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+		finishPageIn(ppn, owner, vpn, false);
+		return ppn;
+	}
+
+	/**
+	 * Release every frame and swap slot held by a process. Waits first for
+	 * any of its pages that are still being written to swap.
+	 */
+	public static void freePages(VMProcess owner) {
+		frameLock.acquire();
+		boolean inTransit = true;
+		while(inTransit) {
+			inTransit = false;
+			for(int i = 0; i < invertedPageTable.length; i ++) {
+				pageMeta frame = invertedPageTable[i];
+				if(frame.owner == owner && isUnavailable(frame)) {
+					inTransit = true;
+				}
+				// a copy for it may be being written to swap
+				for(Sharer sharer : frame.forkSharers) {
+					inTransit |= sharer.owner == owner && frame.busy;
+				}
+			}
+			if(inTransit) {
+				waitForFrame();
+			}
 		}
+		// the resident set at exit, before its frames are released
+		owner.pagingStats.finish();
 
-		//unpin
-		unpin(ppn);
+		for(int vpn = 0; vpn < owner.pageTable.length; vpn ++) {
+			if(!owner.isValid(vpn)) {
+				continue;
+			}
+			int ppn = owner.ppnOf(vpn);
+			SharedText.Page shared = invertedPageTable[ppn].shared;
+			Sharer sharer = shared != null ? findSharer(shared.sharers, owner, vpn) : null;
+			if(isZeroMapped(owner, vpn)) {
+				unmapZeroPage(owner, vpn);
+			} else if(sharer != null) {
+				// the page stays cached for the next process to run the executable
+				shared.sharers.remove(sharer);
+				invalidateTLB(owner, vpn);
+				owner.clearBits(vpn, Processor.pteValid);
+			} else if(invertedPageTable[ppn].owner != owner) {
+				// shared with another process since a fork, which keeps it
+				removeForkSharer(ppn, owner, vpn);
+			}
+		}
+
+		for(int ppn = 0; ppn < invertedPageTable.length; ppn ++) {
+			pageMeta frame = invertedPageTable[ppn];
+			if(frame.owner != owner) {
+				continue;
+			}
+			// a page shared since a fork passes to a process still using it
+			if(frame.isValid() && !frame.forkSharers.isEmpty()) {
+				promoteForkSharer(ppn);
+				continue;
+			}
+			// a page the daemon evicted is already on the free list
+			if(frame.isValid()) {
+				unmapFrame(ppn);
+				checkPrefetched(frame);
+				replacementPolicy.pageFreed(ppn);
+				physMemory.add(ppn);
+			}
+			frame.owner = null;
+			frame.prefetched = false;
+		}
+		if(tlbOwner == owner) {
+			flushTLB();
+			tlbOwner = null;
+		}
+		activeProcesses.remove(owner);
+		suspendedProcesses.remove(owner);
+		frameCV.wakeAll();
+		frameLock.release();
+
+		compressedSwap.freeAll(owner);
+		swap.freeAll(owner);
 	}
 
-	// if stack/coff is written and is swapped to swap
-	// everytime you read <- swap read
-	public static void readFromSwap(int ppn, int swapPageNum) {
-		// pin
-		pin(ppn);
+	/**
+	 * Release the frames of a range of a process's pages, writing the dirty
+	 * ones out first. Used to unmap a file, whose pages are written back to
+	 * the file rather than to swap. Must be called by the owner of the pages.
+	 */
+	public static void freeRange(VMProcess owner, int first, int count) {
+		frameLock.acquire();
+		for(int vpn = first; vpn < first + count; vpn ++) {
+			// wait out a write-back or a kernel copy
+			while(holds(owner.ppnOf(vpn), owner, vpn) && isUnavailable(invertedPageTable[owner.ppnOf(vpn)])) {
+				waitForFrame();
+			}
+			int ppn = owner.ppnOf(vpn);
+			if(!holds(ppn, owner, vpn)) {
+				continue;
+			}
+
+			pageMeta frame = invertedPageTable[ppn];
+			// a page the daemon evicted is already clean and on the free list
+			if(owner.isValid(vpn)) {
+				unmapFrame(ppn);
+				checkPrefetched(frame);
+				replacementPolicy.pageFreed(ppn);
+				setBusy(ppn, true);
+				frameLock.release();
+
+				if(owner.testBits(vpn, Processor.pteDirty)) {
+					writeToSwap(ppn, owner, vpn);
+					owner.clearBits(vpn, Processor.pteDirty);
+				}
+
+				frameLock.acquire();
+				setBusy(ppn, false);
+				physMemory.add(ppn);
+			}
+			frame.owner = null;
+			frame.prefetched = false;
+			frameCV.wakeAll();
+		}
+		frameLock.release();
+	}
+
+	/**
+	 * Share a process's memory with a child made by <tt>fork()</tt>. Every
+	 * resident private page of the parent is mapped read-only into the child
+	 * and made read-only in the parent; the frame's owner and its list of
+	 * fork sharers count the processes mapping it. Pages mapped to the zero
+	 * frame or to shared text are mapped into the child the same way. Pages
+	 * in swap are copied to the child's swap, since slots are per process.
+	 *
+	 * <p>
+	 * The child's page table must already hold an entry, not valid, for
+	 * every page to be shared. Must be called by the parent, holding its
+	 * page table lock, so none of its pages come in meanwhile.
+	 */
+	public static void forkPages(VMProcess parent, VMProcess child) {
+		frameLock.acquire();
+		// let evictions finish, so each page is either resident or in swap
+		boolean inTransit = true;
+		while(inTransit) {
+			inTransit = false;
+			for(int vpn = 0; vpn < parent.pageTable.length; vpn ++) {
+				inTransit |= parent.hasPage(vpn) && inTransit(parent, vpn);
+			}
+			if(inTransit) {
+				waitForFrame();
+			}
+		}
+
+		boolean[] swapped = new boolean[parent.pageTable.length];
+		for(int vpn = 0; vpn < parent.pageTable.length; vpn ++) {
+			if(!parent.hasPage(vpn) || !child.hasPage(vpn)) {
+				continue;
+			}
+			if(!parent.isValid(vpn)) {
+				swapped[vpn] = true;
+				continue;
+			}
+
+			int ppn = parent.ppnOf(vpn);
+			pageMeta frame = invertedPageTable[ppn];
+			if(isZeroMapped(parent, vpn)) {
+				frame.pinCount ++;
+				numZeroMaps ++;
+			} else if(frame.shared != null) {
+				addSharer(frame.shared, child, vpn);
+				continue;
+			} else {
+				// the parent may have it writable in the TLB
+				invalidateTLB(parent, vpn);
+				parent.setBits(vpn, Processor.pteReadOnly);
+				frame.forkSharers.add(new Sharer(child, vpn));
+				child.pageUsedAt[vpn] = child.virtualSamples;
+				numForkShared ++;
+			}
+			child.setPPN(vpn, ppn);
+			child.clearBits(vpn, Processor.pteDirty);
+			child.setBits(vpn, Processor.pteReadOnly | Processor.pteUsed | Processor.pteValid);
+		}
+		numForks ++;
+		frameLock.release();
+
+		byte[] page = new byte[Processor.pageSize];
+		for(int vpn = 0; vpn < swapped.length; vpn ++) {
+			if(swapped[vpn] && inSwap(parent, vpn)) {
+				if(!compressedSwap.copy(parent, vpn, page, 0)) {
+					swap.readPage(parent, vpn, page, 0);
+				}
+				swap.writePage(child, vpn, page, 0);
+				numForkSwapCopies ++;
+			}
+		}
+	}
+
+	/**
+	 * Give a process its own copy of a page it shares since a fork, on its
+	 * first write to it. If no other process maps the page any more, it is
+	 * simply made writable. Must be called by the owner of the page.
+	 *
+	 * @return the frame now holding the page, writable.
+	 */
+	public static int copyForkedPage(VMProcess owner, int vpn) {
+		frameLock.acquire();
+		Lib.assertTrue(owner.isValid(vpn) && owner.testBits(vpn, Processor.pteReadOnly));
+		int ppn = owner.ppnOf(vpn);
+		pageMeta frame = invertedPageTable[ppn];
+		if(frame.forkSharers.isEmpty()) {
+			Lib.assertTrue(holds(ppn, owner, vpn));
+			invalidateTLB(owner, vpn);
+			owner.clearBits(vpn, Processor.pteReadOnly);
+			numForkReuses ++;
+			frameLock.release();
+			return ppn;
+		}
+
+		// the others keep the frame; it stays pinned while it is copied
+		if(holds(ppn, owner, vpn)) {
+			promoteForkSharer(ppn);
+		} else {
+			removeForkSharer(ppn, owner, vpn);
+		}
+		if(frame.pinCount ++ == 0) {
+			numUnavailable ++;
+		}
+		owner.clearBits(vpn, Processor.pteReadOnly);
+		numForkCopies ++;
+		frameLock.release();
+
+		int copy = allocateFrame(owner, vpn);
 		int pageSize = Processor.pageSize;
 		byte[] memory = Machine.processor().getMemory();
-		int res = swapFile.read(swapPageNum * pageSize, memory, ppn * pageSize, pageSize);
-		if(res != pageSize) {
-			Lib.assertNotReached("swap in faliure: size not equal");
-		}
-		// unpin
+		System.arraycopy(memory, ppn * pageSize, memory, copy * pageSize, pageSize);
 		unpin(ppn);
+		// nothing in swap holds this copy
+		owner.setBits(vpn, Processor.pteDirty);
+		finishPageIn(copy, owner, vpn, false);
+		return copy;
+	}
+
+	// a process sharing a page since a fork stops mapping it, must hold frameLock
+	private static void removeForkSharer(int ppn, VMProcess owner, int vpn) {
+		LinkedList<Sharer> sharers = invertedPageTable[ppn].forkSharers;
+		sharers.remove(findSharer(sharers, owner, vpn));
+		invalidateTLB(owner, vpn);
+		owner.clearBits(vpn, Processor.pteValid);
+	}
+
+	// the owner of a page shared since a fork stops mapping it, and the first
+	// process sharing it becomes the owner, must hold frameLock
+	private static void promoteForkSharer(int ppn) {
+		pageMeta frame = invertedPageTable[ppn];
+		hashRemove(ppn);
+		invalidateTLB(frame.owner, frame.vpn);
+		frame.owner.clearBits(frame.vpn, Processor.pteValid);
+
+		Sharer next = frame.forkSharers.removeFirst();
+		frame.owner = next.owner;
+		frame.vpn = next.vpn;
+		// its swap holds no copy of the page, or an old one
+		next.owner.setBits(next.vpn, Processor.pteDirty);
+		hashInsert(ppn);
+	}
+
+	/**
+	 * Drop a range of a process's pages without saving them, as when its
+	 * heap shrinks. Their frames are freed and their copies in swap dropped,
+	 * so the pages read as zeros if they are used again. Must be called by
+	 * the owner of the pages, holding its page table lock.
+	 */
+	public static void discardRange(VMProcess owner, int first, int count) {
+		frameLock.acquire();
+		for(int vpn = first; vpn < first + count; vpn ++) {
+			if(!owner.hasPage(vpn)) {
+				continue;
+			}
+			// wait out a write to swap or a kernel copy
+			while(inTransit(owner, vpn) || (holds(owner.ppnOf(vpn), owner, vpn)
+					&& isUnavailable(invertedPageTable[owner.ppnOf(vpn)]))) {
+				waitForFrame();
+			}
+
+			int ppn = owner.ppnOf(vpn);
+			boolean valid = owner.isValid(vpn);
+			if(isZeroMapped(owner, vpn)) {
+				unmapZeroPage(owner, vpn);
+			} else if(valid && invertedPageTable[ppn].owner != owner) {
+				removeForkSharer(ppn, owner, vpn);
+			} else if(valid && !invertedPageTable[ppn].forkSharers.isEmpty()) {
+				promoteForkSharer(ppn);
+			} else if(holds(ppn, owner, vpn)) {
+				pageMeta frame = invertedPageTable[ppn];
+				// a page the daemon evicted is already on the free list
+				if(valid) {
+					unmapFrame(ppn);
+					checkPrefetched(frame);
+					replacementPolicy.pageFreed(ppn);
+					physMemory.add(ppn);
+				}
+				frame.owner = null;
+				frame.prefetched = false;
+			}
+		}
+		frameCV.wakeAll();
+		frameLock.release();
+
+		compressedSwap.freeRange(owner, first, count);
+		swap.freeRange(owner, first, count);
 	}
 
-	// pin must hold the lock 
-	public static void pin(int ppn) {
-		Lib.assertTrue(bigLock2.isHeldByCurrentThread());
-		invertedPageTable[ppn].isPinned = true;
+	/**
+	 * Test whether a page has a copy in the compressed pool or the swap file.
+	 */
+	public static boolean inSwap(VMProcess owner, int vpn) {
+		return compressedSwap.contains(owner, vpn) || swap.hasSlot(owner, vpn);
+	}
+
+	// write a page to the compressed pool, or its swap slot if it doesn't compress,
+	// or a page of a mapped file back to the file; the frame must be busy or pinned
+	public static void writeToSwap(int ppn, VMProcess owner, int vpn) {
+		Lib.assertTrue(isUnavailable(invertedPageTable[ppn]));
+		if(owner.writeMappedPage(vpn, ppn)) {
+			return;
+		}
+		storePage(ppn, owner, vpn);
+
+		// an evicted page shared since a fork is written for each process sharing it
+		pageMeta frame = invertedPageTable[ppn];
+		if(!owner.isValid(vpn) && !frame.forkSharers.isEmpty()) {
+			for(Sharer sharer : frame.forkSharers) {
+				storePage(ppn, sharer.owner, sharer.vpn);
+			}
+			frameLock.acquire();
+			frame.forkSharers.clear();
+			frameLock.release();
+		}
+	}
+
+	private static void storePage(int ppn, VMProcess owner, int vpn) {
+		if(!compressedSwap.store(owner, vpn, ppn)) {
+			swap.writePage(owner, vpn, ppn);
+		}
+	}
+
+	// if stack/coff is written and is swapped to swap
+	// everytime you read <- swap read, the frame must be busy
+	// returns false if the page came from the compressed pool, which keeps no
+	// copy, so the page must be written again when it is evicted
+	public static boolean readFromSwap(int ppn, VMProcess owner, int vpn) {
+		Lib.assertTrue(invertedPageTable[ppn].busy);
+		if(compressedSwap.load(owner, vpn, ppn)) {
+			return false;
+		}
+		swap.readPage(owner, vpn, ppn);
+		return true;
+	}
+
+	/**
+	 * Pin the frame holding a page, if the page is still resident.
+	 *
+	 * @return the pinned frame, or -1 if the page was evicted.
+	 */
+	public static int pin(VMProcess owner, int vpn) {
+		frameLock.acquire();
+		int ppn = -1;
+		if(owner.isValid(vpn)) {
+			ppn = owner.ppnOf(vpn);
+			// the caller is about to reference it
+			owner.setBits(vpn, Processor.pteUsed);
+			checkPrefetched(invertedPageTable[ppn]);
+			if(invertedPageTable[ppn].pinCount ++ == 0) {
+				numUnavailable ++;
+			}
+		}
+		frameLock.release();
+		return ppn;
 	}
 
-	// pin must hold the lock 
 	public static void unpin(int ppn) {
-		Lib.assertTrue(bigLock2.isHeldByCurrentThread());
-		invertedPageTable[ppn].isPinned = false;
-		pinnedCV.wakeAll();
+		frameLock.acquire();
+		unpinLocked(ppn);
+		frameLock.release();
+	}
+
+	// the zero frame is freed when its last mapping or kernel copy is done with it
+	private static void unpinLocked(int ppn) {
+		Lib.assertTrue(invertedPageTable[ppn].pinCount > 0);
+		invertedPageTable[ppn].pinCount --;
+		if(invertedPageTable[ppn].pinCount == 0) {
+			numUnavailable --;
+			if(ppn == zeroFrame) {
+				zeroFrame = -1;
+				physMemory.add(ppn);
+			}
+			frameCV.wakeAll();
+		}
 	}
 
 	/**
@@ -142,18 +1676,59 @@ public class VMKernel extends UserKernel {
 		for(int i = 0; i < invertedPageTable.length; i ++) {
 			invertedPageTable[i] = new pageMeta();
 		}
+		hashBuckets = new int[Integer.highestOneBit(2 * invertedPageTable.length - 1)];
+		Arrays.fill(hashBuckets, -1);
+
+		usingTLB = Machine.processor().hasTLB();
+		Lib.assertTrue(usingTLB || Machine.processor().hasPackedPageTable(),
+				"VMKernel needs a TLB or Processor.packedPageTable");
+		if(usingTLB) {
+			tlbVPN = new int[Machine.processor().getTLBSize()];
+			Arrays.fill(tlbVPN, -1);
+			String tlbPolicy = Config.getString("VMKernel.tlbReplacement", "nru");
+			Lib.assertTrue(tlbPolicy.equals("nru") || tlbPolicy.equals("random"),
+					"VMKernel.tlbReplacement must be nru or random");
+			tlbRandom = tlbPolicy.equals("random");
+		}
+
+		String policyName = Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy");
+		replacementPolicy = (ReplacementPolicy) Lib.constructObject(policyName);
+		replacementPolicy.initialize(invertedPageTable.length);
 
-		// if file exists, truncate
-		swapFile = ThreadedKernel.fileSystem.open("swap", true);
-		Lib.assertTrue(swapFile != null, "cannot create swap");
+		frameLock = new Lock();
+		frameCV = new Condition(frameLock);
+		pagingStats = new PagingStats();
+		sharedTextStats = new PagingStats();
+		swap = new SwapManager();
 
-		// init swap list, default 30 pages
-		for(int i = 0; i < 30; i++) {
-			swapList.add(i);
+		int numFrames = invertedPageTable.length;
+		compressedSwap = new CompressedSwap(swap, numFrames / 4);
+		lowWater = Config.getInteger("VMKernel.freeLowWater", numFrames / 8);
+		highWater = Config.getInteger("VMKernel.freeHighWater", numFrames / 4);
+		Lib.assertTrue(lowWater >= 0 && highWater >= lowWater && highWater < numFrames,
+				"bad free frame watermarks");
+		pageOutCV = new Condition(frameLock);
+		if(highWater > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					pageOutDaemon();
+				}
+			}).setName("page-out daemon").fork();
 		}
 
-		bigLock2 = new Lock();
-		pinnedCV = new Condition(bigLock2);
+		maxResident = Config.getInteger("VMKernel.maxResident", 0);
+		sampleInterval = Config.getInteger("VMKernel.workingSetInterval", 2000);
+		workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 4);
+		Lib.assertTrue(maxResident >= 0 && sampleInterval >= 0 && workingSetWindow > 0,
+				"bad working set parameters");
+		resumeCV = new Condition(frameLock);
+		if(sampleInterval > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					loadController();
+				}
+			}).setName("load controller").fork();
+		}
 	}
 
 	/**
@@ -174,9 +1749,48 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
-		swapFile.close();
-		boolean removed = ThreadedKernel.fileSystem.remove("swap");
-		Lib.assertTrue(removed);
+		System.out.println("Replacement (" + replacementPolicy + "): hits " + numHits
+				+ ", misses " + numMisses + ", evictions " + numEvictions
+				+ " (" + numDirtyEvictions + " dirty), page-outs " + numPageOuts
+				+ ", reclaims " + numReclaims);
+		if(usingTLB) {
+			System.out.println("TLB (" + tlbVPN.length + " entries, " + (tlbRandom ? "random" : "NRU")
+					+ "): refills " + numTLBRefills + ", preloaded " + numTLBPreloads
+					+ ", flushes " + numTLBFlushes + ", flushes avoided " + numTLBFlushesAvoided);
+		}
+		System.out.println("Shared text: loaded " + numSharedLoads + ", mapped from cache " + numSharedMaps
+				+ ", released " + numSharedReleased + " of changed executables, "
+				+ SharedText.numCached() + " executables cached");
+		System.out.println("Zero page: mapped " + numZeroMaps + ", copied on write " + numZeroCopies);
+		System.out.println("Fault-around: prefetched " + numPrefetched + ", used "
+				+ numPrefetchUsed + ", wasted " + numPrefetchWasted);
+		if(VMProcess.superpageSize > 1) {
+			System.out.println("Superpages (" + VMProcess.superpageSize + " pages): loaded whole "
+					+ VMProcess.numSuperpages + ", split " + VMProcess.numSuperpagesSplit);
+		}
+		if(sampleInterval > 0 || maxResident > 0) {
+			System.out.println("Load control: " + numSamples + " samples, peak demand " + peakDemand
+					+ " frames, suspended " + numSuspensions + " (" + numSwappedOut + " pages swapped out)"
+					+ ", resumed " + numResumes + ", local evictions " + numLocalEvictions);
+		}
+		if(numForks > 0) {
+			System.out.println("Fork: " + numForks + " forks, " + numForkShared + " pages shared, "
+					+ numForkCopies + " copied on write, " + numForkReuses + " made writable in place, "
+					+ numForkSwapCopies + " copied in swap");
+		}
+		System.out.println("Stack and heap: stack grew " + VMProcess.numStackGrowths + " times ("
+				+ VMProcess.numStackPages + " pages), sbrk added " + VMProcess.numHeapPages
+				+ " heap pages, released " + VMProcess.numHeapReleased);
+		System.out.println("Mapped files: " + VMProcess.numMappedReads + " pages read, "
+				+ VMProcess.numMappedWrites + " written back");
+		pagingStats.print("all processes");
+		for(Map.Entry<Integer, PagingStats> entry : processStats.entrySet()) {
+			entry.getValue().print("pid " + entry.getKey());
+		}
+		sharedTextStats.print("shared text");
+		System.out.println("Compressed swap: " + compressedSwap);
+		System.out.println("Swap space: " + swap);
+		swap.close();
 		super.terminate();
 	}
 
@@ -5,13 +5,87 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
 public class VMProcess extends UserProcess {
-	int[] coffTable;
 	int coffPageCnt = 0;
-	Lock bigLock2 = VMKernel.bigLock2;
+	/*
+	 * A page's entry is one int, the word the processor translates from
+	 * without a TLB, with pteMapped set for every page of the address space.
+	 * It keeps the frame its page was last in after the page is evicted, so
+	 * the page can be reclaimed. Besides it, only a page's swap slot and
+	 * working-set age are kept per virtual page; its COFF section, mapped
+	 * file and compressed copy are looked up from the few sections, mappings
+	 * and pooled pages instead.
+	 */
+	// hides UserProcess.pageTable, which stays null
+	int[] pageTable;
+	// the swap slot of each page, or -1; owned by VMKernel.swap
+	int[] swapSlots;
+	// guards this process's page table; faults in other processes don't wait on it
+	Lock pageTableLock = new Lock();
+	// fault-around: how many neighbors to bring in with a faulting page
+	private int prefetchWindow = maxPrefetchWindow;
+	// the last page read from swap, to spot sequential access
+	private int lastSwapInVpn = -2;
+	// the read-only pages of the executable, shared with other processes running it
+	SharedText.Page[] sharedPages;
+	// the pages this process had in the TLB when it was switched out
+	private int[] savedTLB = null;
+	// load control, guarded by VMKernel.frameLock: frames of its own in memory,
+	// its working set estimate, and whether the load controller swapped it out
+	int numResident = 0;
+	int workingSet = 0;
+	long resumedAt = -1;
+	boolean suspended = false;
+	// its virtual time, in working-set samples during which it ran, and the
+	// virtual time each page was last found referenced
+	int virtualSamples = 0;
+	long lastRanSample = 0;
+	int[] pageUsedAt;
+	boolean ranSinceSample = false;
+	// where replacement among its own frames resumes, once at its resident limit
+	int localHand = 0;
+	// its faults, evictions and resident set over time, see VMKernel.pagingStats
+	PagingStats pagingStats = new PagingStats();
+	// files mapped by mmap()
+	private LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+	// the last page of a mapped file read in, to spot sequential access
+	private int lastMapInVpn = -2;
+	// the registers a child made by fork() starts with, or null
+	private int[] forkRegisters = null;
+	// the heap runs from heapBase up to the break, a byte address, and the
+	// stack from stackTop down to stackBottom; both grow into the pages
+	// between, which have no page table entries until then
+	private int heapBase, heapBreak;
+	private int stackBottom, stackTop;
+
+	/**
+	 * A file mapped into memory by <tt>mmap()</tt>. Its pages are read from
+	 * the file when first touched, and dirty ones are written back to it
+	 * when evicted or unmapped. The mapping has an <tt>OpenFile</tt> of its
+	 * own, so it can still be flushed after the descriptor is closed on exit.
+	 */
+	private static class Mapping {
+		Mapping(int fd, OpenFile file, int firstVPN, int length) {
+			this.fd = fd;
+			this.file = file;
+			this.firstVPN = firstVPN;
+			this.length = length;
+			numPages = Lib.divRoundUp(length, pageSize);
+		}
+
+		final int fd;
+		final OpenFile file;
+		final int firstVPN, numPages;
+		// the length of the file when it was mapped; bytes past it are not written back
+		final int length;
+	}
 
 	/**
 	 * Allocate a new process.
@@ -20,12 +94,46 @@ public class VMProcess extends UserProcess {
 		super();
 	}
 
+	/**
+	 * Called by the kernel when a prefetched page of this process is
+	 * referenced. Widens the fault-around window.
+	 */
+	void prefetchUsed() {
+		prefetchWindow = Math.min(prefetchWindow + 1, maxPrefetchWindow);
+	}
+
+	/**
+	 * Called by the kernel when a prefetched page of this process is evicted
+	 * without having been referenced. Halves the fault-around window.
+	 */
+	void prefetchWasted() {
+		prefetchWindow = Math.max(prefetchWindow / 2, Math.min(1, maxPrefetchWindow));
+	}
+
+	/**
+	 * Initialize the registers. A child made by <tt>fork()</tt> starts with
+	 * its parent's registers, returning 0 from the system call.
+	 */
+	public void initRegisters() {
+		if(forkRegisters == null) {
+			super.initRegisters();
+			return;
+		}
+		for(int i = 0; i < Processor.numUserRegisters; i ++) {
+			Machine.processor().writeRegister(i, forkRegisters[i]);
+		}
+		forkRegisters = null;
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
 		super.saveState();
+		if(Machine.processor().hasTLB()) {
+			savedTLB = VMKernel.saveTLB(this);
+		}
 	}
 
 	/**
@@ -33,7 +141,21 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		ranSinceSample = true;
+		if(Machine.processor().hasTLB()) {
+			VMKernel.switchTLB(this, savedTLB);
+		} else {
+			Machine.processor().setPackedPageTable(pageTable);
+		}
+		Machine.processor().setAddressSpace(getPid());
+	}
+
+	/**
+	 * Leave room for the heap and the stack to grow to their limits, and a
+	 * page between them that neither may take.
+	 */
+	protected int growthPages() {
+		return maxHeapPages + 1 + maxStackPages - stackPages;
 	}
 
 	/**
@@ -43,8 +165,11 @@ public class VMProcess extends UserProcess {
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		pageTable = new TranslationEntry[numPages];
-		this.coffTable = new int[numPages];
+		pageTable = new int[numPages];
+		this.swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+		this.pageUsedAt = new int[numPages];
+		Arrays.fill(pageUsedAt, neverUsed);
 		
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -52,82 +177,688 @@ public class VMProcess extends UserProcess {
 
 			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 					+ " section (" + section.getLength() + " pages) VMProcess");
-
-			for (int i = 0; i < section.getLength(); i++) {
-				int vpn = section.getFirstVPN() + i;
-				coffTable[vpn] = s;
-				boolean readOnly = section.isReadOnly();
-				pageTable[vpn] = new TranslationEntry(-1, -1, false, readOnly, false, false);
-				coffPageCnt ++;
-			}
+		}
+		// a page holding the end of one section and the start of the next is
+		// writable if either is
+		coffPageCnt = coff.getNumPages();
+		for(int vpn = 0; vpn < coffPageCnt; vpn ++) {
+			pageTable[vpn] = emptyPTE | (coff.isReadOnlyPage(vpn) ? Processor.pteReadOnly : 0);
 		}
 
 		// load stack/arg stack + arg = 9 pages, rest are coff
 		for(int i = numPages - stackPages - 1; i < numPages; i ++) {
-			pageTable[i] = new TranslationEntry(-1, -1, false, false, false, false);
+			pageTable[i] = emptyPTE;
 		}
+		heapBase = coffPageCnt;
+		heapBreak = heapBase * pageSize;
+		stackTop = numPages - 1;
+		stackBottom = stackTop - stackPages;
+
+		sharedPages = SharedText.lookup(executableName, coff);
+		VMKernel.addProcess(this);
 		return true;
 	}
 
 	// handle swapped out page (coff, stack)
-	private void handleSwappedPage(TranslationEntry PTE) {
-		PTE.dirty = false;
-		VMKernel.readFromSwap(PTE.ppn, PTE.vpn);
+	private void handleSwappedPage(int vpn) {
+		if(VMKernel.readFromSwap(ppnOf(vpn), this, vpn)) {
+			clearBits(vpn, Processor.pteDirty);
+		} else {
+			setBits(vpn, Processor.pteDirty);
+		}
+	}
+
+	// the mapped file a page belongs to, or null
+	private Mapping mappingOf(int vpn) {
+		for(Mapping mapping : mappings) {
+			if(vpn >= mapping.firstVPN && vpn < mapping.firstVPN + mapping.numPages) {
+				return mapping;
+			}
+		}
+		return null;
 	}
 
 	// handle readOnly/clean coff (code section)
-	private void handleCleanCoff(int secNum, int vpn, int ppn) {
-		VMKernel.pin(ppn);
-		CoffSection coffSec = coff.getSection(secNum);
-		int secppn = vpn - coffSec.getFirstVPN();
-		coffSec.loadPage(secppn, ppn);
-		VMKernel.unpin(ppn);
+	private void handleCleanCoff(int vpn, int ppn) {
+		coff.loadPage(vpn, ppn);
+		Machine.stats().numCOFFReads ++;
 	}
 
-	// handle new stack page -> zero init
-	private void handleNewStackPage(byte[] memory, int ppn) {
-		VMKernel.pin(ppn);
-		byte[] zeroMemory = new byte[pageSize];
-		System.arraycopy(zeroMemory, 0, memory, pageSize * ppn, pageSize);
-		VMKernel.unpin(ppn);
+	// the shared page for a read-only page of the executable, or null
+	private SharedText.Page sharedPage(int vpn) {
+		return vpn < sharedPages.length ? sharedPages[vpn] : null;
 	}
 
-	protected void requestPage(int vpn) {
-		Lib.debug(dbgProcess, "request page with vpn: " + vpn + " phys memory size: " + VMKernel.physMemory.size());
+	// a frame to load a neighbor of a COFF fault into along with it, or -1;
+	// the neighbor must be shared if the faulting page is, and private if not
+	private int faultAroundFrame(int vpn, boolean shared) {
+		if(vpn < 0 || vpn >= coffPageCnt || (sharedPage(vpn) != null) != shared
+				|| !coff.isInitializedPage(vpn) || isValid(vpn) || VMKernel.inSwap(this, vpn)) {
+			return -1;
+		}
 
-		// get physical page: evict or use free memory
-		int ppn = -1;
-		if(VMKernel.physMemory.size() == 0) {
-			ppn = VMKernel.getNextPageClock();
+		SharedText.Page page = sharedPage(vpn);
+		if(page == null) {
+			return VMKernel.allocatePrefetchFrame(this, vpn);
+		}
+		// resident already, or someone else is loading it
+		if(!VMKernel.claimSharedPage(page)) {
+			return -1;
+		}
+		int frame = VMKernel.allocateSharedPrefetchFrame(page);
+		if(frame < 0) {
+			VMKernel.abandonSharedPage(page);
+		}
+		return frame;
+	}
+
+	/*
+	 * Load a COFF page together with up to prefetchWindow neighbors of the
+	 * same kind, or with superpages, with the rest of its superpage: the
+	 * aligned group of superpageSize pages around it, loaded and mapped as a
+	 * unit by this one fault. A superpage is split where it holds pages of
+	 * another kind, or ones already resident or in swap.
+	 */
+	private void faultAroundCoff(int vpn, int ppn) {
+		int lowest = 0, highest = coffPageCnt - 1, window = prefetchWindow;
+		if(superpageSize > 1) {
+			lowest = vpn - vpn % superpageSize;
+			highest = Math.min(lowest + superpageSize, coffPageCnt) - 1;
+			window = highest - lowest;
+		}
+		boolean shared = sharedPage(vpn) != null;
+
+		// grow a run of frames around the faulting page, ahead first
+		int first = vpn, last = vpn;
+		int[] frames = new int[2 * window + 1];
+		int center = window;
+		frames[center] = ppn;
+		while(last - first < window && last < highest) {
+			int frame = faultAroundFrame(last + 1, shared);
+			if(frame < 0) {
+				break;
+			}
+			last ++;
+			frames[center + last - vpn] = frame;
+		}
+		while(last - first < window && first > lowest) {
+			int frame = faultAroundFrame(first - 1, shared);
+			if(frame < 0) {
+				break;
+			}
+			first --;
+			frames[center + first - vpn] = frame;
+		}
+		if(superpageSize > 1) {
+			if(last - first == highest - lowest) {
+				numSuperpages ++;
+			} else {
+				numSuperpagesSplit ++;
+			}
+		}
+
+		int[] ppns = Arrays.copyOfRange(frames, center + first - vpn, center + last - vpn + 1);
+		coff.loadPages(first, ppns);
+		Machine.stats().numCOFFReads += ppns.length;
+		for(int i = first; i <= last; i ++) {
+			if(i == vpn) {
+				continue;
+			}
+			SharedText.Page page = sharedPage(i);
+			if(page != null) {
+				VMKernel.finishSharedPageIn(ppns[i - first], page, this, i, true);
+			} else {
+				VMKernel.finishPageIn(ppns[i - first], this, i, true);
+			}
+		}
+	}
+
+	// read a page from swap, and the pages after it if access looks sequential
+	private void swapInAround(int vpn, int ppn) {
+		int count = 1;
+		if(vpn == lastSwapInVpn + 1 && prefetchWindow > 0 && !VMKernel.compressedSwap.contains(this, vpn)) {
+			count = VMKernel.swap.contiguousSlots(this, vpn, prefetchWindow + 1);
+		}
+
+		int[] ppns = new int[count];
+		ppns[0] = ppn;
+		int n = 1;
+		// a pooled page's slot, if it has one, is out of date
+		while(n < count && !VMKernel.compressedSwap.contains(this, vpn + n)) {
+			int frame = VMKernel.allocatePrefetchFrame(this, vpn + n);
+			if(frame < 0) {
+				break;
+			}
+			ppns[n ++] = frame;
+		}
+
+		if(n == 1) {
+			handleSwappedPage(vpn);
 		} else {
-			ppn = VMKernel.physMemory.poll();
+			ppns = Arrays.copyOf(ppns, n);
+			for(int i = 0; i < n; i ++) {
+				clearBits(vpn + i, Processor.pteDirty);
+			}
+			VMKernel.swap.readPages(this, vpn, ppns);
+			for(int i = 1; i < n; i ++) {
+				VMKernel.finishPageIn(ppns[i], this, vpn + i, true);
+			}
+		}
+		lastSwapInVpn = vpn + n - 1;
+	}
+
+	// read a page of a mapped file, and the pages after it if access looks sequential
+	private void mapInAround(Mapping mapping, int vpn, int ppn) {
+		int count = 1;
+		if(vpn == lastMapInVpn + 1) {
+			count = Math.min(prefetchWindow + 1, mapping.firstVPN + mapping.numPages - vpn);
+		}
+
+		int[] ppns = new int[count];
+		ppns[0] = ppn;
+		int n = 1;
+		while(n < count) {
+			int frame = VMKernel.allocatePrefetchFrame(this, vpn + n);
+			if(frame < 0) {
+				break;
+			}
+			ppns[n ++] = frame;
+		}
+
+		// one read for the run; the last page is zero-filled past the end of the file
+		int pos = (vpn - mapping.firstVPN) * pageSize;
+		byte[] buf = new byte[n * pageSize];
+		mapping.file.read(pos, buf, 0, Math.min(buf.length, mapping.length - pos));
+		byte[] memory = Machine.processor().getMemory();
+		for(int i = 0; i < n; i ++) {
+			System.arraycopy(buf, i * pageSize, memory, ppns[i] * pageSize, pageSize);
+			clearBits(vpn + i, Processor.pteDirty);
+		}
+		for(int i = 1; i < n; i ++) {
+			VMKernel.finishPageIn(ppns[i], this, vpn + i, true);
+		}
+		lastMapInVpn = vpn + n - 1;
+		numMappedReads += n;
+	}
+
+	/**
+	 * Write a page of a mapped file back to the file. Called by the kernel
+	 * in place of writing the page to swap; the frame is busy or pinned.
+	 *
+	 * @return <tt>false</tt> if the page is not part of a mapped file.
+	 */
+	boolean writeMappedPage(int vpn, int ppn) {
+		Mapping mapping = mappingOf(vpn);
+		if(mapping == null) {
+			return false;
 		}
+		int pos = (vpn - mapping.firstVPN) * pageSize;
+		int length = Math.min(pageSize, mapping.length - pos);
+		mapping.file.write(pos, Machine.processor().getMemory(), ppn * pageSize, length);
+		numMappedWrites ++;
+		return true;
+	}
+
+	// a page whose contents come from the executable, rather than starting as zeros
+	private boolean isInitializedCoff(int vpn) {
+		return vpn < coffPageCnt && coff.isInitializedPage(vpn);
+	}
+
+	// bring a page in, must hold pageTableLock
+	protected void requestPage(int vpn) {
+		Lib.assertTrue(pageTableLock.isHeldByCurrentThread());
+		// skip building the message unless it will be printed; this runs on every fault
+		if(Lib.test(dbgProcess))
+			Lib.debug(dbgProcess, "request page with vpn: " + vpn + " phys memory size: " + VMKernel.physMemory.size());
+
+		// evicted by the page-out daemon but still in memory: no I/O needed
+		int ppn = VMKernel.reclaimFrame(this, vpn);
+		if(ppn >= 0) {
+			recordFault(faultReclaim, false, vpn, ppn);
+			return;
+		}
+
+		// a page of a mapped file comes from the file, and never goes to swap
+		Mapping mapping = mappingOf(vpn);
+		if(mapping != null) {
+			ppn = VMKernel.allocateFrame(this, vpn);
+			setPPN(vpn, ppn);
+			mapInAround(mapping, vpn, ppn);
+			VMKernel.finishPageIn(ppn, this, vpn, false);
+			recordFault(faultMapped, true, vpn, ppn);
+			return;
+		}
+
+		// read-only pages of the executable are shared with other processes running it
+		SharedText.Page page = sharedPage(vpn);
+		if(page != null) {
+			requestSharedPage(vpn, page);
+			return;
+		}
+
+		// untouched stack/args and BSS pages share the zero frame until written
+		boolean swapped = VMKernel.inSwap(this, vpn);
+		if(!swapped && !isInitializedCoff(vpn)) {
+			VMKernel.mapZeroPage(this, vpn);
+			recordFault(faultZeroMap, false, vpn, VMKernel.zeroFrame);
+			return;
+		}
+
+		// get physical page: evict or use free memory, the frame stays busy until filled in
+		ppn = VMKernel.allocateFrame(this, vpn);
 		Lib.assertTrue(ppn >= 0, "requested physical page number should >= 0");
-		
-		VMKernel.invertedPageTable[ppn].owner = this;
-		VMKernel.invertedPageTable[ppn].PTE = pageTable[vpn];
-		pageTable[vpn].valid = true;
-		pageTable[vpn].ppn = ppn;
-		pageTable[vpn].used = true;
-
-		// check whether coff or stack/args, if coff, load it, if stack/args, 0 init (unswapped out pages)
-		int swapPageNum = pageTable[vpn].vpn;
-		if(swapPageNum >= 0) {
-			handleSwappedPage(pageTable[vpn]);
-		} else if((coffPageCnt > vpn && swapPageNum < 0) || pageTable[vpn].readOnly) {
-			handleCleanCoff(coffTable[vpn], vpn, ppn);
+		setPPN(vpn, ppn);
+
+		// swapped out, or still in the executable; a page in the compressed
+		// pool is a minor fault, since it needs no I/O
+		int source;
+		boolean pooled = false;
+		if(swapped) {
+			source = faultFromSwap;
+			pooled = VMKernel.compressedSwap.contains(this, vpn);
+			swapInAround(vpn, ppn);
 		} else {
-			handleNewStackPage(Machine.processor().getMemory(), ppn);
+			source = faultFromCoff;
+			if(prefetchWindow > 0 || superpageSize > 1) {
+				faultAroundCoff(vpn, ppn);
+			} else {
+				handleCleanCoff(vpn, ppn);
+			}
 		}
 
+		VMKernel.finishPageIn(ppn, this, vpn, false);
+
+		recordFault(source, !pooled, vpn, ppn);
+
 		return;
 	}
 
+	// count a fault here and in the kernel's totals, and trace it
+	private void recordFault(int source, boolean major, int vpn, int ppn) {
+		pagingStats.recordFault(source, major);
+		VMKernel.pagingStats.recordFault(source, major);
+		if(Tracer.compiled)
+			Tracer.record(Tracer.catPageFault, source, getPid(), vpn, ppn);
+	}
+
+	// map a shared text page, reading it in if no process has it in memory
+	private void requestSharedPage(int vpn, SharedText.Page page) {
+		if(VMKernel.mapSharedPage(this, vpn, page)) {
+			recordFault(faultShared, false, vpn, ppnOf(vpn));
+			return;
+		}
+
+		int ppn = VMKernel.allocateSharedFrame(page);
+		if(prefetchWindow > 0 || superpageSize > 1) {
+			faultAroundCoff(vpn, ppn);
+		} else {
+			handleCleanCoff(vpn, ppn);
+		}
+		VMKernel.finishSharedPageIn(ppn, page, this, vpn, false);
+
+		recordFault(faultFromCoff, true, vpn, ppn);
+	}
+
+	// first write to a page mapped to the zero frame, must hold pageTableLock
+	private void copyOnWrite(int vpn) {
+		Lib.assertTrue(pageTableLock.isHeldByCurrentThread());
+		int ppn = VMKernel.copyZeroPage(this, vpn);
+		recordFault(faultZeroFill, false, vpn, ppn);
+	}
+
+	// first write to a page shared since a fork, must hold pageTableLock
+	private void copyForkedPage(int vpn) {
+		Lib.assertTrue(pageTableLock.isHeldByCurrentThread());
+		int ppn = VMKernel.copyForkedPage(this, vpn);
+		recordFault(faultForkCopy, false, vpn, ppn);
+	}
+
+	// refill the TLB; resident pages are found in the hash without the page table lock
+	private void handleTLBMiss(int vpn) {
+		if(VMKernel.lookupFrame(this, vpn) < 0) {
+			pageTableLock.acquire();
+			if(!isValid(vpn)) {
+				requestPage(vpn);
+			}
+			pageTableLock.release();
+		}
+		VMKernel.fillTLB(this, vpn);
+	}
+
+	// make a page resident and pin its frame, returns the frame
+	private int pinPage(int vpn, boolean write) {
+		pageTableLock.acquire();
+		int ppn = -1;
+		while(ppn < 0) {
+			if(!isValid(vpn)) {
+				requestPage(vpn);
+			}
+			if(write && VMKernel.isZeroMapped(this, vpn)) {
+				copyOnWrite(vpn);
+			} else if(write && isValid(vpn) && testBits(vpn, Processor.pteReadOnly)) {
+				copyForkedPage(vpn);
+			}
+			// -1 if it was evicted again before we got to pin it
+			ppn = VMKernel.pin(this, vpn);
+		}
+		pageTableLock.release();
+		return ppn;
+	}
+
+	/**
+	 * Test whether an address is part of the address space, first growing
+	 * the stack down to it if it is just below the stack: no lower than the
+	 * stack pointer, and within the stack's limit.
+	 */
+	private boolean growStack(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		pageTableLock.acquire();
+		if(pageTable[vpn] != 0) {
+			pageTableLock.release();
+			return true;
+		}
+		if(vpn >= stackBottom || vpn < stackTop - maxStackPages
+				|| vaddr < Machine.processor().readRegister(Processor.regSP)) {
+			pageTableLock.release();
+			return false;
+		}
+
+		// the pages in between too, so the stack stays contiguous
+		for(int i = vpn; i < stackBottom; i ++) {
+			pageTable[i] = emptyPTE;
+		}
+		numStackGrowths ++;
+		numStackPages += stackBottom - vpn;
+		stackBottom = vpn;
+		pageTableLock.release();
+		return true;
+	}
+
+	/**
+	 * Handle the sbrk() system call: move the break by <i>increment</i>
+	 * bytes. Pages the heap grows into are demand-zero; pages it gives up
+	 * are dropped, frames and swap alike.
+	 *
+	 * @return the old break, or -1.
+	 */
+	private int handleSbrk(int increment) {
+		pageTableLock.acquire();
+		long newBreak = (long) heapBreak + increment;
+		if(newBreak < heapBase * pageSize || newBreak > (long) (heapBase + maxHeapPages) * pageSize) {
+			pageTableLock.release();
+			return -1;
+		}
+
+		int oldEnd = Lib.divRoundUp(heapBreak, pageSize);
+		int newEnd = Lib.divRoundUp((int) newBreak, pageSize);
+		for(int vpn = oldEnd; vpn < newEnd; vpn ++) {
+			pageTable[vpn] = emptyPTE;
+		}
+		if(newEnd < oldEnd) {
+			VMKernel.discardRange(this, newEnd, oldEnd - newEnd);
+			for(int vpn = newEnd; vpn < oldEnd; vpn ++) {
+				pageTable[vpn] = 0;
+				pageUsedAt[vpn] = neverUsed;
+			}
+			numHeapReleased += oldEnd - newEnd;
+		} else {
+			numHeapPages += newEnd - oldEnd;
+		}
+
+		int oldBreak = heapBreak;
+		heapBreak = (int) newBreak;
+		pageTableLock.release();
+		return oldBreak;
+	}
+
+	/**
+	 * Handle the mmap() system call: map the whole of an open file at a page
+	 * aligned address, above the stack or in the space left by an earlier
+	 * mapping.
+	 *
+	 * @return the length of the file, or -1.
+	 */
+	private int handleMmap(int fd, int address) {
+		OpenFile file = getOpenFile(fd);
+		if(file == null || address <= 0 || address % pageSize != 0 || findMapping(fd) != null
+				|| file.getFileSystem() == null || file.length() < 0) {
+			return -1;
+		}
+		int length = file.length();
+		int firstVPN = address / pageSize;
+		int count = Lib.divRoundUp(length, pageSize);
+		// the space up to the stack is kept for the heap and the stack
+		if(firstVPN <= stackTop || firstVPN + count > maxVirtualPages) {
+			return -1;
+		}
+
+		OpenFile mapped = file.getFileSystem().open(file.getName(), false);
+		if(mapped == null) {
+			return -1;
+		}
+		// pages written to the mapping reach the file
+		fileChanged(file.getName());
+
+		pageTableLock.acquire();
+		for(int vpn = firstVPN; vpn < firstVPN + count && vpn < pageTable.length; vpn ++) {
+			if(pageTable[vpn] != 0) {
+				pageTableLock.release();
+				mapped.close();
+				return -1;
+			}
+		}
+		if(firstVPN + count > pageTable.length) {
+			growAddressSpace(firstVPN + count);
+		}
+
+		Mapping mapping = new Mapping(fd, mapped, firstVPN, length);
+		for(int vpn = firstVPN; vpn < firstVPN + count; vpn ++) {
+			pageTable[vpn] = emptyPTE;
+		}
+		mappings.add(mapping);
+		pageTableLock.release();
+		return length;
+	}
+
+	// the mapping made through a file descriptor, or null
+	private Mapping findMapping(int fd) {
+		for(Mapping mapping : mappings) {
+			if(mapping.fd == fd) {
+				return mapping;
+			}
+		}
+		return null;
+	}
+
+	// write a mapping's dirty pages back to its file and remove it from the address space
+	private void unmap(Mapping mapping) {
+		pageTableLock.acquire();
+		VMKernel.freeRange(this, mapping.firstVPN, mapping.numPages);
+		for(int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn ++) {
+			pageTable[vpn] = 0;
+		}
+		mappings.remove(mapping);
+		pageTableLock.release();
+		mapping.file.close();
+	}
+
+	/*
+	 * Every array indexed by virtual page number grows with the page table.
+	 * The kernel reads them through this process's fields each time, and
+	 * nothing here gives up the processor, so no one sees a stale copy.
+	 */
+	private void growAddressSpace(int newNumPages) {
+		int oldNumPages = pageTable.length;
+		pageTable = Arrays.copyOf(pageTable, newNumPages);
+		swapSlots = Arrays.copyOf(swapSlots, newNumPages);
+		Arrays.fill(swapSlots, oldNumPages, newNumPages, -1);
+		pageUsedAt = Arrays.copyOf(pageUsedAt, newNumPages);
+		Arrays.fill(pageUsedAt, oldNumPages, newNumPages, neverUsed);
+		numPages = newNumPages;
+		if(!Machine.processor().hasTLB()) {
+			Machine.processor().setPackedPageTable(pageTable);
+		}
+	}
+
+	// a page is part of the address space
+	boolean hasPage(int vpn) {
+		return vpn >= 0 && vpn < pageTable.length && pageTable[vpn] != 0;
+	}
+
+	boolean isValid(int vpn) {
+		return (pageTable[vpn] & Processor.pteValid) != 0;
+	}
+
+	// any of the Processor.pte bits are set in a page's entry
+	boolean testBits(int vpn, int bits) {
+		return (pageTable[vpn] & bits) != 0;
+	}
+
+	void setBits(int vpn, int bits) {
+		pageTable[vpn] |= bits;
+	}
+
+	void clearBits(int vpn, int bits) {
+		pageTable[vpn] &= ~bits;
+	}
+
+	// the frame a page is or was last in, or -1
+	int ppnOf(int vpn) {
+		int ppn = pageTable[vpn] & Processor.ptePPNMask;
+		return ppn == noFrame ? -1 : ppn;
+	}
+
+	void setPPN(int vpn, int ppn) {
+		pageTable[vpn] = (pageTable[vpn] & ~Processor.ptePPNMask) | (ppn < 0 ? noFrame : ppn);
+	}
+
+	/**
+	 * Handle the fork() system call: make a child running the same program
+	 * with a copy of this process's memory, shared copy-on-write, and of its
+	 * file descriptors. Mapped files are not mapped in the child.
+	 *
+	 * @return the child's process ID, or -1.
+	 */
+	private int handleFork() {
+		// the child reads its pages from an executable of its own, closed when it exits
+		OpenFile executable = ThreadedKernel.fileSystem.open(executableName, false);
+		if(executable == null) {
+			return -1;
+		}
+		VMProcess child = (VMProcess) newUserProcess();
+		try {
+			child.coff = new Coff(executable);
+		} catch(EOFException e) {
+			executable.close();
+			UserKernel.processTable.discard(child.getPid());
+			return -1;
+		}
+		UserKernel.processTable.setParent(child.getPid(), getPid());
+
+		pageTableLock.acquire();
+		child.executableName = executableName;
+		child.numPages = numPages;
+		child.pageTable = new int[pageTable.length];
+		for(int vpn = 0; vpn < pageTable.length; vpn ++) {
+			if(pageTable[vpn] != 0 && mappingOf(vpn) == null) {
+				child.pageTable[vpn] = emptyPTE | (sharedPage(vpn) != null ? Processor.pteReadOnly : 0);
+			}
+		}
+		child.coffPageCnt = coffPageCnt;
+		child.swapSlots = new int[pageTable.length];
+		Arrays.fill(child.swapSlots, -1);
+		child.pageUsedAt = new int[pageTable.length];
+		Arrays.fill(child.pageUsedAt, neverUsed);
+		child.sharedPages = sharedPages;
+		SharedText.addUser(sharedPages);
+		child.prefetchWindow = prefetchWindow;
+		child.heapBase = heapBase;
+		child.heapBreak = heapBreak;
+		child.stackTop = stackTop;
+		child.stackBottom = stackBottom;
+		VMKernel.forkPages(this, child);
+		pageTableLock.release();
+
+		copyFilesTo(child);
+		VMKernel.addProcess(child);
+
+		// the child returns 0 from the system call
+		Processor processor = Machine.processor();
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for(int i = 0; i < Processor.numUserRegisters; i ++) {
+			child.forkRegisters[i] = processor.readRegister(i);
+		}
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+		child.forkRegisters[Processor.regNextPC] = processor.readRegister(Processor.regNextPC) + 4;
+
+		child.thread = new UThread(child);
+		child.thread.setName(executableName).fork();
+		return child.getPid();
+	}
+
+	/**
+	 * A mapped file's descriptor stays mapped until it is closed.
+	 */
+	protected boolean isMapped(int fd) {
+		return findMapping(fd) != null;
+	}
+
+	/**
+	 * Closing the descriptor of a mapped file unmaps it, writing its dirty
+	 * pages back.
+	 */
+	protected void closingFile(int fd) {
+		Mapping mapping = findMapping(fd);
+		if(mapping != null) {
+			unmap(mapping);
+		}
+	}
+
+	/**
+	 * Add mmap(), fork() and sbrk(), and keep the descriptor of a mapped file from being read
+	 * or written until it is closed.
+	 */
+	protected int dispatchSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch(syscall) {
+		case syscallMmap:
+			return handleMmap(a0, a1);
+		case syscallFork:
+			return handleFork();
+		case syscallSbrk:
+			return handleSbrk(a0);
+		case syscallRead:
+		case syscallWrite:
+		case syscallReadv:
+		case syscallWritev:
+		case syscallPread:
+		case syscallPwrite:
+			if(isMapped(a0)) {
+				return -1;
+			}
+			break;
+		}
+		return super.dispatchSyscall(syscall, a0, a1, a2, a3);
+	}
+
+	/**
+	 * A file that changes may be an executable whose text is cached.
+	 */
+	protected void fileChanged(String name) {
+		SharedText.invalidate(name);
+	}
+
+	/**
+	 * Only the read-only sections of the executable stay read-only. A page
+	 * mapped to the zero frame, or shared with another process since a fork,
+	 * is read-only only until its first write.
+	 */
+	protected boolean isPageWritable(int vpn) {
+		return pageTable[vpn] != 0 && sharedPage(vpn) == null;
+	}
+
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		bigLock2.acquire();
-		int res = readVirtualMemoryRecursive(vaddr, data, offset, length);
-		bigLock2.release();
-		return res;
+		return readVirtualMemoryRecursive(vaddr, data, offset, length);
 	}
 
 	public int readVirtualMemoryRecursive(int vaddr, byte[] data, int offset, int length) {
@@ -142,19 +873,22 @@ public class VMProcess extends UserProcess {
 		}
 		
 		int vpn = Processor.pageFromAddress(vaddr);
+		// a buffer on the stack, below anything the program has touched yet
+		if(pageTable[vpn] == 0 && KThread.currentThread() == thread) {
+			growStack(vaddr);
+		}
+		if(pageTable[vpn] == 0) {
+			return 0;
+		}
 
 		// handle page fault
-		if(!pageTable[vpn].valid) {
-			requestPage(vpn);
-		}
-		
-		int ppn = pageTable[vpn].ppn;
-		VMKernel.pin(ppn);
-		pageTable[vpn].used = true;
+		int ppn = pinPage(vpn, false);
+		setBits(vpn, Processor.pteUsed);
 		int pageOffset = Processor.offsetFromAddress(vaddr);
 		int physAddr = ppn * Processor.pageSize + pageOffset;
 		
 		if (physAddr < 0 || physAddr >= memory.length) {
+			VMKernel.unpin(ppn);
 			return 0;
 		}
 
@@ -179,10 +913,7 @@ public class VMProcess extends UserProcess {
 
 
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		bigLock2.acquire();
-		int res = writeVirtualMemoryRecursive(vaddr, data, offset, length);
-		bigLock2.release();
-		return res;
+		return writeVirtualMemoryRecursive(vaddr, data, offset, length);
 	}
 
 	public int writeVirtualMemoryRecursive(int vaddr, byte[] data, int offset, int length) {
@@ -197,19 +928,20 @@ public class VMProcess extends UserProcess {
 		}
 		
 		int vpn = Processor.pageFromAddress(vaddr);
-
-		if(!pageTable[vpn].valid) {
-			requestPage(vpn);
+		if(pageTable[vpn] == 0 && KThread.currentThread() == thread) {
+			growStack(vaddr);
+		}
+		if(!isPageWritable(vpn)) {
+			return 0;
 		}
 
-		int ppn = pageTable[vpn].ppn;
-		VMKernel.pin(ppn);
-		pageTable[vpn].used = true;
-		pageTable[vpn].dirty = true;
+		int ppn = pinPage(vpn, true);
+		setBits(vpn, Processor.pteUsed | Processor.pteDirty);
 		int pageOffset = Processor.offsetFromAddress(vaddr);
 		int physAddr = ppn * Processor.pageSize + pageOffset;
 
-		if (physAddr < 0 || physAddr >= memory.length || pageTable[vpn].readOnly) {
+		if (physAddr < 0 || physAddr >= memory.length) {
+			VMKernel.unpin(ppn);
 			return 0;
 		}
 
@@ -232,23 +964,19 @@ public class VMProcess extends UserProcess {
 		return amount;
 	}
 
-	protected int handleExit(int status) {
-		bigLock2.acquire();
-		Lib.debug('f', "I exited.");
-		for(int i = 0; i < pageTable.length; i ++) {
-			if(pageTable[i].vpn != -1) {
-				VMKernel.swapList.add(pageTable[i].vpn);
-			}
-		}
-		bigLock2.release();
-		return super.handleExit(status);
-	}
-
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		Lib.debug('f', "I exited.");
+		while(!mappings.isEmpty()) {
+			unmap(mappings.getFirst());
+		}
+		VMKernel.freePages(this);
+		if(sharedPages != null) {
+			SharedText.release(sharedPages);
+		}
+		coff.close();
 	}
 
 	/**
@@ -259,13 +987,50 @@ public class VMProcess extends UserProcess {
 	 * @param cause the user exception that occurred.
 	 */
 	public void handleException(int cause) {
+		// swapped out by the load controller: wait until there is room for it
+		if(suspended) {
+			VMKernel.waitIfSuspended(this);
+		}
+
 		switch (cause) {
 		case Processor.exceptionPageFault:
-			bigLock2.acquire();
 			int virtualAddr = Machine.processor().readRegister(Processor.regBadVAddr);
 			int vpn = Processor.pageFromAddress(virtualAddr);
-			requestPage(vpn);
-			bigLock2.release();
+			if(vpn < 0 || vpn >= pageTable.length || !growStack(virtualAddr)) {
+				super.handleException(cause);
+				break;
+			}
+			pageTableLock.acquire();
+			// a ring worker may have brought it in while we waited
+			if(!isValid(vpn)) {
+				requestPage(vpn);
+			}
+			pageTableLock.release();
+			break;
+		case Processor.exceptionTLBMiss:
+			int missAddr = Machine.processor().readRegister(Processor.regBadVAddr);
+			int missVpn = Processor.pageFromAddress(missAddr);
+			if(missVpn < 0 || missVpn >= pageTable.length || !growStack(missAddr)) {
+				super.handleException(cause);
+				break;
+			}
+			handleTLBMiss(missVpn);
+			break;
+		case Processor.exceptionReadOnly:
+			int writeAddr = Machine.processor().readRegister(Processor.regBadVAddr);
+			int writeVpn = Processor.pageFromAddress(writeAddr);
+			if(writeVpn < 0 || writeVpn >= pageTable.length || !isPageWritable(writeVpn)) {
+				super.handleException(cause);
+				break;
+			}
+			pageTableLock.acquire();
+			if(VMKernel.isZeroMapped(this, writeVpn)) {
+				copyOnWrite(writeVpn);
+			} else if(isValid(writeVpn) && testBits(writeVpn, Processor.pteReadOnly)) {
+				copyForkedPage(writeVpn);
+			}
+			// otherwise it was evicted meanwhile, and the write faults again
+			pageTableLock.release();
 			break;
 		default:
 			super.handleException(cause);
@@ -277,5 +1042,59 @@ public class VMProcess extends UserProcess {
 
 	private static final char dbgProcess = 'a';
 
+	// the most pages an address space may grow to by mapping files
+	private static final int maxVirtualPages = 1 << 16;
+
+	// pages of mapped files read in and written back
+	static int numMappedReads = 0, numMappedWrites = 0;
+
+	// the most pages the heap and the stack may grow to
+	private static final int maxHeapPages = Config.getInteger("VMProcess.maxHeapPages", 256);
+	private static final int maxStackPages = Config.getInteger("VMProcess.maxStackPages", 64);
+
+	// stack faults that grew the stack and the pages they added, and heap
+	// pages added and given up through sbrk()
+	static int numStackGrowths = 0, numStackPages = 0, numHeapPages = 0, numHeapReleased = 0;
+
+	// a page table entry's bit for a page in the address space, which the
+	// processor ignores, and its frame number for none
+	static final int pteMapped = 1 << 24, noFrame = Processor.ptePPNMask;
+
+	// the entry of a page of the address space that has never been in a frame
+	private static final int emptyPTE = pteMapped | noFrame;
+
+	// the pageUsedAt of a page never found referenced, far outside any window
+	static final int neverUsed = Integer.MIN_VALUE / 2;
+
+	// the largest fault-around window, 0 to load one page per fault
+	private static final int maxPrefetchWindow = Config.getInteger("VMProcess.faultAround", 8);
+
+	// pages in a superpage of the executable; 0 or 1 for none
+	static final int superpageSize = Config.getInteger("VMProcess.superpageSize", 0);
+
+	// superpages loaded whole, and ones split into smaller runs
+	static int numSuperpages = 0, numSuperpagesSplit = 0;
+
+	/** Fault sources, as recorded in the page fault trace. */
+	static final int faultFromSwap = 0, faultFromCoff = 1, faultZeroFill = 2,
+			faultReclaim = 3, faultZeroMap = 4, faultShared = 5, faultMapped = 6,
+			faultForkCopy = 7;
+
+	static {
+		nameFault(faultFromSwap, "swap");
+		nameFault(faultFromCoff, "coff");
+		nameFault(faultZeroFill, "zero");
+		nameFault(faultReclaim, "reclaim");
+		nameFault(faultZeroMap, "zero-map");
+		nameFault(faultShared, "shared");
+		nameFault(faultMapped, "mapped");
+		nameFault(faultForkCopy, "fork-copy");
+	}
+
+	private static void nameFault(int source, String name) {
+		Tracer.setEventName(Tracer.catPageFault, source, name);
+		PagingStats.setSourceName(source, name);
+	}
+
 	private static final char dbgVM = 'v';
 }
@@ -0,0 +1,113 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps the frames,
+ * but a page is only evicted once it has gone unreferenced for longer than
+ * the working set window, given in ticks by the <tt>nachos.conf</tt> key
+ * <tt>WSClockPolicy.window</tt>.
+ *
+ * <p>
+ * Old pages that are dirty are not written back by the faulting process.
+ * Instead the hand queues them for write-back in the background and keeps
+ * looking for an old clean page; if it finds none, the fault waits for one of
+ * the queued writes to finish. Only when no page is old does the policy fall
+ * back to evicting a page in the working set, clean ones first.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+	}
+
+	public void initialize(int numFrames) {
+		resident = new boolean[numFrames];
+		lastUse = new long[numFrames];
+		window = Config.getInteger("WSClockPolicy.window", 20000);
+	}
+
+	public void pageIn(int ppn) {
+		resident[ppn] = true;
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int selectVictim() {
+		long now = Machine.timer().getTime();
+		int scheduled = 0;
+		int youngClean = -1, youngDirty = -1;
+
+		// a page referenced on the first lap has a fresh lastUse on the second
+		for(int i = 0; i < 2 * resident.length; i ++) {
+			int ppn = hand;
+			hand = (hand + 1) % resident.length;
+
+			if(!resident[ppn] || !VMKernel.isEvictable(ppn)) {
+				continue;
+			}
+			if(VMKernel.testAndClearUsed(ppn)) {
+				lastUse[ppn] = now;
+				continue;
+			}
+
+			boolean dirty = VMKernel.isDirty(ppn);
+			if(now - lastUse[ppn] <= window) {
+				if(!dirty && youngClean < 0) {
+					youngClean = ppn;
+				} else if(dirty && youngDirty < 0) {
+					youngDirty = ppn;
+				}
+				continue;
+			}
+
+			if(!dirty) {
+				return evict(ppn);
+			}
+			if(scheduled < maxWriteBacks) {
+				VMKernel.scheduleWriteBack(ppn);
+				scheduled ++;
+				numWriteBacks ++;
+			}
+		}
+
+		// a page being cleaned will be old and clean once its write finishes
+		if(scheduled > 0) {
+			return -1;
+		}
+		if(youngClean >= 0) {
+			return evict(youngClean);
+		}
+		if(youngDirty >= 0) {
+			return evict(youngDirty);
+		}
+		return -1;
+	}
+
+	private int evict(int ppn) {
+		resident[ppn] = false;
+		return ppn;
+	}
+
+	public String toString() {
+		return "WSClock, window " + window + ", background write-backs " + numWriteBacks;
+	}
+
+	private boolean[] resident;
+
+	// the time each page was last seen referenced
+	private long[] lastUse;
+
+	private long window;
+
+	private int hand = 0;
+
+	private int numWriteBacks = 0;
+
+	// write-backs queued by one call, so a fault doesn't flood the queue
+	private static final int maxWriteBacks = 4;
+}